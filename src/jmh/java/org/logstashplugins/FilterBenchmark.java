@@ -0,0 +1,116 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.Configuration;
+import co.elastic.logstash.api.Event;
+import co.elastic.logstash.api.FilterMatchListener;
+import org.logstash.plugins.ConfigurationImpl;
+import org.logstash.plugins.ContextImpl;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MMDB#filter} end to end, one pipeline batch per invocation. Scores are
+ * per event; run with the {@code gc} profiler (the default in build.gradle) to
+ * see bytes allocated per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+
+    static final int BATCH_SIZE = 125;
+    private static final int BATCHES = 64;
+
+    /**
+     * demo (IPv4 demo.mmdb), ipv4 or ipv6 (synthetic databases of {@link #networks} records)
+     */
+    @Param({"demo", "ipv4", "ipv6"})
+    public String database;
+
+    @Param({"100000"})
+    public int networks;
+
+    /**
+     * the shape of the synthetic records, see {@link SyntheticDatabases.Shape}
+     */
+    @Param({"demo"})
+    public String shape;
+
+    @Param({"all", "projected"})
+    public String fields;
+
+    @Param({"0", "4096"})
+    public int cacheSize;
+
+    @Param({"1.0", "0.5"})
+    public double hitRatio;
+
+    private MMDB filter;
+    private List<List<Event>> batches;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Map<String, Object> configMap = new HashMap<>();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("cache_size", (long) cacheSize);
+        if ("projected".equals(fields)) {
+            configMap.put("fields", Arrays.asList("name", "vlan_id:vlan", "country.iso_code:country"));
+        }
+        List<String> addresses;
+        if ("demo".equals(database)) {
+            configMap.put("database", SyntheticDatabases.DEMO);
+            addresses = SyntheticDatabases.demoAddresses(hitRatio, BATCH_SIZE * BATCHES, 1);
+        } else {
+            int ipVersion = "ipv6".equals(database) ? 6 : 4;
+            File file = File.createTempFile("benchmark-", ".mmdb");
+            file.deleteOnExit();
+            SyntheticDatabases.write(file, ipVersion, networks, SyntheticDatabases.Shape.parse(shape), 0);
+            configMap.put("database", file.getPath());
+            addresses = SyntheticDatabases.addresses(ipVersion, networks, hitRatio, BATCH_SIZE * BATCHES, 1);
+        }
+        Configuration config = new ConfigurationImpl(configMap);
+        filter = new MMDB("benchmark", config, new ContextImpl(null, NoopMetric.INSTANCE));
+
+        batches = new ArrayList<>(BATCHES);
+        for (int b = 0; b < BATCHES; b++) {
+            List<Event> batch = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Event e = new org.logstash.Event();
+                e.setField("ip", addresses.get(b * BATCH_SIZE + i));
+                batch.add(e);
+            }
+            batches.add(batch);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        filter.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void filter(Blackhole blackhole) {
+        List<Event> batch = batches.get(next);
+        next = (next + 1) % BATCHES;
+        blackhole.consume(filter.filter(batch, new FilterMatchListener() {
+            @Override
+            public void filterMatched(Event event) {
+                blackhole.consume(event);
+            }
+        }));
+    }
+}
@@ -0,0 +1,151 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.Event;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stages of a lookup in isolation, against a synthetic database: parsing
+ * the source value, walking the search tree, decoding the record (fully and
+ * projected) and writing the result into an event. Scores are per address.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmark {
+
+    private static final int ADDRESSES = 1024;
+
+    @Param({"4", "6"})
+    public int ipVersion;
+
+    @Param({"100000"})
+    public int networks;
+
+    private String[] sources;
+    private byte[][] addresses;
+    private int[] lengths;
+    private long[] results;
+    private DatabaseReader reader;
+    private DataDecoder decoder;
+    private FieldProjection projection;
+    private Object[] values;
+    private LookupResult[] lookupResults;
+    private Event event;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File file = SyntheticDatabases.synthetic(ipVersion, networks);
+        reader = new DatabaseReader(file);
+        decoder = reader.newEventDecoder();
+
+        Map<String, FieldNode> fields = new HashMap<>();
+        fields.put("name", new FieldNode("name", "name"));
+        fields.put("vlan_id", new FieldNode("vlan_id", "vlan"));
+        FieldNode country = new FieldNode("country", null);
+        country.getChildMap().put("iso_code", new FieldNode("iso_code", "country"));
+        fields.put("country", country);
+        projection = new FieldProjection("info", fields);
+        values = new Object[projection.size()];
+
+        List<String> hits = SyntheticDatabases.addresses(ipVersion, networks, 1.0, ADDRESSES, 1);
+        sources = hits.toArray(new String[0]);
+        addresses = new byte[ADDRESSES][16];
+        lengths = new int[ADDRESSES];
+        results = new long[ADDRESSES];
+        lookupResults = new LookupResult[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            lengths[i] = IpLiteralParser.parse(sources[i], addresses[i]);
+            results[i] = reader.lookup(addresses[i], lengths[i]);
+            decoder.decodeProjected(DatabaseReader.dataOffset(results[i]), projection, values);
+            lookupResults[i] = LookupResult.fromProjection(projection, values, addresses[i], lengths[i],
+                DatabaseReader.prefixLength(results[i]));
+        }
+        event = new org.logstash.Event();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public void parseLiteral(Blackhole blackhole) {
+        byte[] buffer = new byte[16];
+        for (String source : sources) {
+            blackhole.consume(IpLiteralParser.parse(source, buffer));
+        }
+    }
+
+    /**
+     * What parsing cost before source values were restricted to literals.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public void parseInetAddress(Blackhole blackhole) throws IOException {
+        for (String source : sources) {
+            blackhole.consume(InetAddress.getByName(source).getAddress());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public void lookup(Blackhole blackhole) throws IOException {
+        for (int i = 0; i < ADDRESSES; i++) {
+            blackhole.consume(reader.lookup(addresses[i], lengths[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public void decodeFull(Blackhole blackhole) throws IOException {
+        for (long result : results) {
+            blackhole.consume(decoder.decode(DatabaseReader.dataOffset(result)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public void decodeProjected(Blackhole blackhole) throws IOException {
+        for (long result : results) {
+            decoder.decodeProjected(DatabaseReader.dataOffset(result), projection, values);
+            blackhole.consume(values);
+        }
+    }
+
+    /**
+     * Writing a projected result into an event, as MMDB#renderResultIntoEvent does.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ADDRESSES)
+    public void render(Blackhole blackhole) {
+        for (LookupResult result : lookupResults) {
+            for (int j = 0; j < result.targets.length; j++) {
+                result.targets[j].set(event, result.valueFor(j));
+            }
+        }
+        blackhole.consume(event);
+    }
+
+    /**
+     * Setting single values of a few of the types records decode into.
+     */
+    @Benchmark
+    @OperationsPerInvocation(3)
+    public void setField(Blackhole blackhole) {
+        LookupResult result = lookupResults[0];
+        FieldProjection.Target target = result.targets[0];
+        target.set(event, "network 1");
+        target.set(event, 1234L);
+        target.set(event, Arrays.asList("internal", "lan"));
+        blackhole.consume(event);
+    }
+}
@@ -0,0 +1,187 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.PluginConfigSpec;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Command line front end of {@link BulkEnricher}. Every filter setting is an
+ * option of the same name, and the throughput is reported on stderr at the end:
+ * <pre>
+ * java -cp "logstash-filter-mmdb.jar:$LS_HOME/logstash-core/lib/jars/*" org.logstashplugins.BulkEnrich \
+ *     --database networks.mmdb --source ip --target ipinfo --fields '["name", "vlan_id"]' \
+ *     --output enriched.json.gz archive-*.json.gz
+ * </pre>
+ */
+public final class BulkEnrich {
+
+    private static final String USAGE = String.join("\n",
+        "usage: BulkEnrich [options] [input ...]",
+        "",
+        "Enriches NDJSON or CSV records from the inputs, or stdin when there are none",
+        "or an input is -. Inputs and the output ending in .gz are compressed.",
+        "",
+        "  --format ndjson|csv   default: csv if the first input ends in .csv(.gz)",
+        "  --output FILE         default: stdout",
+        "  --batch-size N        records per batch, default 1000",
+        "  --workers N           threads, default the number of processors",
+        "  --SETTING VALUE       any setting of the mmdb filter, such as --database,",
+        "                        --source and --target; arrays and hashes as JSON");
+
+    private BulkEnrich() {
+    }
+
+    public static void main(String[] args) {
+        BulkEnricher.Format format = null;
+        String outputName = null;
+        int batchSize = 1000;
+        int workers = Runtime.getRuntime().availableProcessors();
+        Map<String, Object> settings = new HashMap<>();
+        List<String> inputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-h") || arg.equals("--help")) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                if (!arg.startsWith("--")) {
+                    inputs.add(arg);
+                    continue;
+                }
+                if (i + 1 == args.length) {
+                    throw new IllegalStateException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--format":
+                        format = BulkEnricher.Format.parse(value);
+                        break;
+                    case "--output":
+                        outputName = value;
+                        break;
+                    case "--batch-size":
+                        batchSize = parseInt(arg, value);
+                        break;
+                    case "--workers":
+                        workers = parseInt(arg, value);
+                        break;
+                    default:
+                        String name = arg.substring(2);
+                        settings.put(name, parseSetting(name, value));
+                }
+            }
+        } catch (IllegalStateException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        if (inputs.isEmpty()) {
+            inputs.add("-");
+        }
+        if (format == null) {
+            format = stripGzip(inputs.get(0)).toLowerCase().endsWith(".csv")
+                ? BulkEnricher.Format.CSV : BulkEnricher.Format.NDJSON;
+        }
+
+        BulkEnricher.Result total = new BulkEnricher.Result();
+        try (BulkEnricher enricher = new BulkEnricher(settings, format, batchSize, workers);
+             Writer output = openOutput(outputName)) {
+            for (String input : inputs) {
+                try (Reader in = openInput(input)) {
+                    total.add(enricher.enrich(in, output));
+                }
+            }
+        } catch (IllegalStateException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(2);
+        } catch (IOException ex) {
+            System.err.println("Enrichment failed: " + ex);
+            System.exit(1);
+        }
+        System.err.println(String.format("Enriched %d records in %.1f s (%.0f records/s): %d matched, %d passed through unread",
+            total.getRecords(), total.getNanos() / 1e9, total.getRecordsPerSecond(), total.getMatched(), total.getInvalid()));
+    }
+
+    private static int parseInt(String option, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalStateException(option + " must be a number");
+        }
+    }
+
+    /**
+     * Converts a value given on the command line to the type of the setting it is for.
+     */
+    private static Object parseSetting(String name, String value) {
+        for (PluginConfigSpec<?> spec : MMDB.SETTINGS) {
+            if (!spec.name().equals(name)) {
+                continue;
+            }
+            if (spec.type() == String.class) {
+                return value;
+            }
+            if (spec.type() == Long.class) {
+                try {
+                    return Long.valueOf(value);
+                } catch (NumberFormatException ex) {
+                    throw new IllegalStateException("--" + name + " must be a number");
+                }
+            }
+            if (spec.type() == Boolean.class) {
+                if (!value.equals("true") && !value.equals("false")) {
+                    throw new IllegalStateException("--" + name + " must be true or false");
+                }
+                return Boolean.valueOf(value);
+            }
+            Object parsed;
+            try {
+                parsed = Json.parse(value);
+            } catch (IllegalArgumentException ex) {
+                parsed = null;
+            }
+            if (parsed == null || !spec.type().isInstance(parsed)) {
+                throw new IllegalStateException("--" + name + " must be a JSON " + (spec.type() == Map.class ? "object" : "array"));
+            }
+            return parsed;
+        }
+        throw new IllegalStateException("Unknown option --" + name);
+    }
+
+    private static Reader openInput(String name) throws IOException {
+        InputStream in = name.equals("-") ? System.in : Files.newInputStream(Paths.get(name));
+        if (name.endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        return new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+    private static Writer openOutput(String name) throws IOException {
+        OutputStream out = name == null ? System.out : Files.newOutputStream(Paths.get(name));
+        if (name != null && name.endsWith(".gz")) {
+            out = new GZIPOutputStream(out, 1 << 16);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    private static String stripGzip(String name) {
+        return name.endsWith(".gz") ? name.substring(0, name.length() - 3) : name;
+    }
+}
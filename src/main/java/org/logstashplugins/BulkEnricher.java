@@ -0,0 +1,347 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.Event;
+import org.logstash.plugins.ConfigurationImpl;
+import org.logstash.plugins.ContextImpl;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Enriches records outside of a Logstash pipeline, for backfills of archived
+ * logs: records are read from a stream, run through an {@link MMDB} filter in
+ * batches on a pool of worker threads, and written out in their original
+ * order. Only a bounded number of batches is in flight at any time, so memory
+ * stays constant however long the input is.
+ * <p>
+ * Records are newline delimited JSON objects, or CSV with a header line. CSV
+ * output has the input columns followed by one column for each top-level field
+ * the filter writes, holding JSON where the value is an object or an array.
+ * Records that can't be read (not a JSON object, or a CSV row with the wrong
+ * number of fields) are passed through unchanged.
+ * <p>
+ * Records go through the filter as {@code org.logstash.Event}s, so logstash-core
+ * and its jars must be on the classpath, though no pipeline is started.
+ * {@link BulkEnrich} is the command line front end.
+ */
+public final class BulkEnricher implements Closeable {
+
+    public enum Format {
+        NDJSON, CSV;
+
+        public static Format parse(String value) {
+            for (Format format : values()) {
+                if (format.name().equalsIgnoreCase(value)) {
+                    return format;
+                }
+            }
+            throw new IllegalStateException("Format must be one of ndjson or csv");
+        }
+    }
+
+    private static final AtomicInteger threads = new AtomicInteger();
+
+    private final MMDB filter;
+    private final Format format;
+    private final int batchSize;
+    private final int maxInFlight;
+    private final ExecutorService workers;
+    private final List<String> targets;
+    // the CSV header of the first input, which every later one must repeat
+    private List<String> header;
+    private int[] targetColumns;
+
+    /**
+     * @param settings  the settings of the filter, as they would appear in a pipeline configuration
+     * @param batchSize records per batch, and so per call to the filter
+     * @param workers   threads enriching batches; also bounds the batches in flight to twice as many
+     */
+    public BulkEnricher(Map<String, Object> settings, Format format, int batchSize, int workers) {
+        if (batchSize <= 0 || workers <= 0) {
+            throw new IllegalStateException("Batch size and workers must be >0");
+        }
+        this.filter = new MMDB("bulk-enrich", new ConfigurationImpl(settings), new ContextImpl(null, NoopMetric.INSTANCE));
+        this.format = format;
+        this.batchSize = batchSize;
+        this.maxInFlight = workers * 2;
+        this.targets = new ArrayList<>(this.filter.getTopLevelTargets());
+        this.workers = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "mmdb-enrich-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * What one or more calls to {@link #enrich(Reader, Writer)} got through.
+     */
+    public static final class Result {
+        private long records;
+        private long matched;
+        private long invalid;
+        private long nanos;
+
+        public long getRecords() {
+            return records;
+        }
+
+        /**
+         * Records the filter found something for.
+         */
+        public long getMatched() {
+            return matched;
+        }
+
+        /**
+         * Records passed through unchanged because they couldn't be read.
+         */
+        public long getInvalid() {
+            return invalid;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public double getRecordsPerSecond() {
+            return nanos == 0 ? 0.0 : records * 1e9 / nanos;
+        }
+
+        public void add(Result other) {
+            records += other.records;
+            matched += other.matched;
+            invalid += other.invalid;
+            nanos += other.nanos;
+        }
+    }
+
+    private static final class Chunk {
+        final StringBuilder text = new StringBuilder();
+        int records;
+        int matched;
+        int invalid;
+    }
+
+    /**
+     * Enriches every record of {@code input} into {@code output}. Calls must not overlap;
+     * neither stream is closed.
+     */
+    public Result enrich(Reader input, Writer output) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        BufferedReader in = input instanceof BufferedReader ? (BufferedReader) input : new BufferedReader(input, 1 << 16);
+        if (format == Format.CSV && !readHeader(in, output)) {
+            return result;
+        }
+        Deque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        try {
+            List<String> records = new ArrayList<>(batchSize);
+            String record;
+            while ((record = format == Format.CSV ? Csv.readRecord(in) : in.readLine()) != null) {
+                if (record.trim().isEmpty()) {
+                    continue;
+                }
+                records.add(record);
+                if (records.size() == batchSize) {
+                    inFlight.add(submit(records));
+                    records = new ArrayList<>(batchSize);
+                    if (inFlight.size() >= maxInFlight) {
+                        write(inFlight.remove(), output, result);
+                    }
+                }
+            }
+            if (!records.isEmpty()) {
+                inFlight.add(submit(records));
+            }
+            while (!inFlight.isEmpty()) {
+                write(inFlight.remove(), output, result);
+            }
+        } finally {
+            for (Future<Chunk> chunk : inFlight) {
+                chunk.cancel(true);
+            }
+        }
+        output.flush();
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private boolean readHeader(BufferedReader in, Writer output) throws IOException {
+        String line = Csv.readRecord(in);
+        if (line == null) {
+            return false;
+        }
+        List<String> header = Csv.parse(line);
+        if (this.header != null) {
+            if (!this.header.equals(header)) {
+                throw new IOException("CSV header " + header + " differs from the first input's " + this.header);
+            }
+            return true;
+        }
+        this.header = header;
+        this.targetColumns = new int[targets.size()];
+        List<String> columns = new ArrayList<>(header);
+        for (int t = 0; t < targets.size(); t++) {
+            int column = header.indexOf(targets.get(t));
+            if (column < 0) {
+                column = columns.size();
+                columns.add(targets.get(t));
+            }
+            targetColumns[t] = column;
+        }
+        StringBuilder text = new StringBuilder();
+        Csv.write(columns, text);
+        output.append(text).append('\n');
+        return true;
+    }
+
+    private Future<Chunk> submit(List<String> records) {
+        return workers.submit(() -> format == Format.CSV ? enrichCsv(records) : enrichJson(records));
+    }
+
+    private void write(Future<Chunk> future, Writer output, Result result) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while enriching");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException("Enrichment failed", ex.getCause());
+        }
+        output.append(chunk.text);
+        result.records += chunk.records;
+        result.matched += chunk.matched;
+        result.invalid += chunk.invalid;
+    }
+
+    private Chunk enrichJson(List<String> records) {
+        Chunk chunk = new Chunk();
+        Map<?, ?>[] inputs = new Map<?, ?>[records.size()];
+        org.logstash.Event[] events = new org.logstash.Event[records.size()];
+        List<Event> batch = new ArrayList<>(records.size());
+        for (int i = 0; i < inputs.length; i++) {
+            Object parsed;
+            try {
+                parsed = Json.parse(records.get(i));
+            } catch (IllegalArgumentException ex) {
+                continue;
+            }
+            if (parsed instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> fields = (Map<String, Object>) parsed;
+                inputs[i] = fields;
+                events[i] = new org.logstash.Event(fields);
+                batch.add(events[i]);
+            }
+        }
+        filter(batch, chunk);
+        for (int i = 0; i < inputs.length; i++) {
+            chunk.records++;
+            if (events[i] == null) {
+                chunk.invalid++;
+                chunk.text.append(records.get(i)).append('\n');
+                continue;
+            }
+            Map<String, Object> output = events[i].toMap();
+            // added by the event itself, which a backfill shouldn't do to its records
+            if (!inputs[i].containsKey(org.logstash.Event.TIMESTAMP)) {
+                output.remove(org.logstash.Event.TIMESTAMP);
+            }
+            if (!inputs[i].containsKey(org.logstash.Event.VERSION)) {
+                output.remove(org.logstash.Event.VERSION);
+            }
+            Json.write(output, chunk.text);
+            chunk.text.append('\n');
+        }
+        return chunk;
+    }
+
+    private Chunk enrichCsv(List<String> records) {
+        Chunk chunk = new Chunk();
+        List<List<String>> rows = new ArrayList<>(records.size());
+        org.logstash.Event[] events = new org.logstash.Event[records.size()];
+        List<Event> batch = new ArrayList<>(records.size());
+        for (int i = 0; i < events.length; i++) {
+            List<String> row = Csv.parse(records.get(i));
+            rows.add(row);
+            if (row.size() != header.size()) {
+                continue;
+            }
+            Map<String, Object> fields = new HashMap<>();
+            for (int column = 0; column < row.size(); column++) {
+                if (!row.get(column).isEmpty()) {
+                    fields.put(header.get(column), row.get(column));
+                }
+            }
+            events[i] = new org.logstash.Event(fields);
+            batch.add(events[i]);
+        }
+        filter(batch, chunk);
+        int columns = header.size();
+        for (int column : targetColumns) {
+            columns = Math.max(columns, column + 1);
+        }
+        for (int i = 0; i < events.length; i++) {
+            chunk.records++;
+            if (events[i] == null) {
+                chunk.invalid++;
+                chunk.text.append(records.get(i));
+                for (int column = header.size(); column < columns; column++) {
+                    chunk.text.append(',');
+                }
+                chunk.text.append('\n');
+                continue;
+            }
+            List<String> row = rows.get(i);
+            while (row.size() < columns) {
+                row.add("");
+            }
+            for (int t = 0; t < targetColumns.length; t++) {
+                Object value = events[i].getField("[" + targets.get(t) + "]");
+                if (value instanceof Map || value instanceof Collection) {
+                    row.set(targetColumns[t], Json.toString(value));
+                } else if (value != null) {
+                    row.set(targetColumns[t], value.toString());
+                }
+            }
+            Csv.write(row, chunk.text);
+            chunk.text.append('\n');
+        }
+        return chunk;
+    }
+
+    private void filter(List<Event> batch, Chunk chunk) {
+        if (!batch.isEmpty()) {
+            filter.filter(batch, e -> chunk.matched++);
+        }
+    }
+
+    /**
+     * Stops the workers and closes the filter, saving its warm-up snapshot if it has one.
+     */
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        filter.close();
+    }
+}
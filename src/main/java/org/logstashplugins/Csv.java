@@ -0,0 +1,97 @@
+package org.logstashplugins;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Comma separated records as {@link BulkEnricher} reads and writes them: fields
+ * may be quoted with double quotes, a quote inside a quoted field is doubled, and
+ * a quoted field may span lines.
+ */
+final class Csv {
+
+    private Csv() {
+    }
+
+    /**
+     * Reads the next record as it stands in the input, without its line ending.
+     *
+     * @return null at the end of the input
+     */
+    static String readRecord(BufferedReader in) throws IOException {
+        StringBuilder record = new StringBuilder();
+        boolean quoted = false;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (c == '\n' || c == '\r')) {
+                if (c == '\r') {
+                    in.mark(1);
+                    if (in.read() != '\n') {
+                        in.reset();
+                    }
+                }
+                return record.toString();
+            }
+            record.append((char) c);
+        }
+        return record.length() == 0 ? null : record.toString();
+    }
+
+    /**
+     * Splits a record read by {@link #readRecord(BufferedReader)} into its fields.
+     */
+    static List<String> parse(String record) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    static void write(List<String> fields, StringBuilder out) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            String field = fields.get(i);
+            if (field.indexOf(',') < 0 && field.indexOf('"') < 0
+                && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+                out.append(field);
+                continue;
+            }
+            out.append('"');
+            for (int j = 0; j < field.length(); j++) {
+                char c = field.charAt(j);
+                if (c == '"') {
+                    out.append('"');
+                }
+                out.append(c);
+            }
+            out.append('"');
+        }
+    }
+}
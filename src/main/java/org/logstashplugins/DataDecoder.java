@@ -0,0 +1,357 @@
+package org.logstashplugins;
+
+import com.maxmind.db.InvalidDatabaseException;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the MMDB data section. Values come out as the same Java types
+ * maxmind's {@code Reader.get(address, Map.class)} produces, or, for a decoder
+ * made for events, as types a Logstash event holds as they are: 16 and 32 bit
+ * integers as {@code Long} and byte strings Base64-encoded. Doubles, floats,
+ * 64 and 128 bit integers ({@code BigInteger}), strings, booleans, maps and
+ * arrays are the same either way.
+ * <p>
+ * Only absolute reads are made against the shared buffer, but the decoder keeps
+ * its own cursor, so an instance must not be shared between threads.
+ */
+final class DataDecoder {
+
+    static final int EXTENDED = 0;
+    static final int POINTER = 1;
+    static final int UTF8_STRING = 2;
+    static final int DOUBLE = 3;
+    static final int BYTES = 4;
+    static final int UINT16 = 5;
+    static final int UINT32 = 6;
+    static final int MAP = 7;
+    static final int INT32 = 8;
+    static final int UINT64 = 9;
+    static final int UINT128 = 10;
+    static final int ARRAY = 11;
+    static final int BOOLEAN = 14;
+    static final int FLOAT = 15;
+
+    private final DatabaseBuffer buffer;
+    private final long pointerBase;
+    private final boolean eventValues;
+    private long position;
+    private int type;
+    // where the last pointer read points
+    private long pointer;
+    private long keyStart;
+    private int keyLength;
+    private byte[] scratch = new byte[64];
+
+    DataDecoder(DatabaseBuffer buffer, long pointerBase) {
+        this(buffer, pointerBase, false);
+    }
+
+    /**
+     * @param eventValues decode into types that can be set on an event without conversion
+     */
+    DataDecoder(DatabaseBuffer buffer, long pointerBase, boolean eventValues) {
+        this.buffer = buffer;
+        this.pointerBase = pointerBase;
+        this.eventValues = eventValues;
+    }
+
+    Object decode(long offset) throws IOException {
+        position = offset;
+        return decodeValue();
+    }
+
+    /**
+     * Decodes only the parts of the record at {@code offset} that the projection asks for,
+     * skipping every other key and subtree without materializing it. {@code values} is filled
+     * the same way as {@link FieldProjection#project(Map, Object[])} would.
+     */
+    void decodeProjected(long offset, FieldProjection projection, Object[] values) throws IOException {
+        Arrays.fill(values, 0, projection.size(), null);
+        position = offset;
+        projectChildren(projection, -1, values, false);
+    }
+
+    private void projectChildren(FieldProjection projection, int node, Object[] values,
+                                 boolean consumeAll) throws IOException {
+        int size = readControl();
+        if (type == POINTER) {
+            long next = position;
+            position = pointer;
+            projectChildren(projection, node, values, false);
+            position = next;
+            return;
+        }
+        if (type != MAP) {
+            skipPayload(size);
+            return;
+        }
+        int[] children = projection.children(node);
+        int remaining = children.length;
+        for (int i = 0; i < size; i++) {
+            if (remaining == 0 && !consumeAll) {
+                return;
+            }
+            readKey();
+            int child = matchKey(projection, children);
+            if (child < 0) {
+                skipValue();
+                continue;
+            }
+            remaining--;
+            if (projection.target(child) != null) {
+                values[child] = decodeValue();
+                projection.projectSubtree(child, values);
+            } else {
+                projectChildren(projection, child, values, true);
+            }
+        }
+    }
+
+    private int matchKey(FieldProjection projection, int[] children) {
+        for (int child : children) {
+            byte[] name = projection.nameBytes(child);
+            if (name.length != keyLength) {
+                continue;
+            }
+            int i = 0;
+            while (i < keyLength && buffer.get(keyStart + i) == name[i]) {
+                i++;
+            }
+            if (i == keyLength) {
+                return child;
+            }
+        }
+        return -1;
+    }
+
+    private Object decodeValue() throws IOException {
+        int size = readControl();
+        if (type == POINTER) {
+            long next = position;
+            position = pointer;
+            Object value = decodeValue();
+            position = next;
+            return value;
+        }
+        switch (type) {
+            case UTF8_STRING:
+                String string = readString(position, size);
+                position += size;
+                return string;
+            case DOUBLE:
+                checkSize(size, 8);
+                double d = buffer.getDouble(position);
+                position += 8;
+                return d;
+            case BYTES:
+                byte[] bytes = new byte[size];
+                for (int i = 0; i < size; i++) {
+                    bytes[i] = buffer.get(position + i);
+                }
+                position += size;
+                return eventValues ? Base64.getEncoder().encodeToString(bytes) : bytes;
+            case UINT16:
+                return eventValues ? (Object) readUnsigned(size) : (Object) (int) readUnsigned(size);
+            case UINT32:
+                return readUnsigned(size);
+            case MAP:
+                return decodeMap(size);
+            case INT32:
+                int int32 = (int) readUnsigned(size);
+                return eventValues ? (Object) (long) int32 : (Object) int32;
+            case UINT64:
+            case UINT128:
+                return readBigInteger(size);
+            case ARRAY:
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(decodeValue());
+                }
+                return list;
+            case BOOLEAN:
+                if (size > 1) {
+                    throw new InvalidDatabaseException("The MaxMind DB file's data section contains bad data: "
+                        + "invalid size of boolean.");
+                }
+                return size != 0;
+            case FLOAT:
+                checkSize(size, 4);
+                float f = buffer.getFloat(position);
+                position += 4;
+                return f;
+            default:
+                throw new InvalidDatabaseException("The MaxMind DB file's data section contains bad data: "
+                    + "unknown type " + type);
+        }
+    }
+
+    private Map<String, Object> decodeMap(int size) throws IOException {
+        Map<String, Object> map = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            readKey();
+            String key = readString(keyStart, keyLength);
+            map.put(key, decodeValue());
+        }
+        return map;
+    }
+
+    private void skipValue() throws IOException {
+        int size = readControl();
+        if (type != POINTER) {
+            skipPayload(size);
+        }
+    }
+
+    private void skipPayload(int size) throws IOException {
+        switch (type) {
+            case MAP:
+                // a map is skipped as key/value pairs
+                for (int i = 0; i < size * 2; i++) {
+                    skipValue();
+                }
+                break;
+            case ARRAY:
+                for (int i = 0; i < size; i++) {
+                    skipValue();
+                }
+                break;
+            case BOOLEAN:
+                break;
+            default:
+                position += size;
+        }
+    }
+
+    /**
+     * Leaves {@link #keyStart} and {@link #keyLength} pointing at the UTF-8 bytes of the map key.
+     */
+    private void readKey() throws IOException {
+        int size = readControl();
+        if (type == POINTER) {
+            long next = position;
+            position = pointer;
+            readKey();
+            position = next;
+            return;
+        }
+        if (type != UTF8_STRING) {
+            throw new InvalidDatabaseException("The MaxMind DB file's data section contains bad data: "
+                + "map key is not a string");
+        }
+        keyStart = position;
+        keyLength = size;
+        position += size;
+    }
+
+    /**
+     * Reads the control byte(s) at the cursor and sets {@link #type}, and for a pointer
+     * {@link #pointer}.
+     *
+     * @return the payload size, 0 for a pointer
+     */
+    private int readControl() throws IOException {
+        int ctrl = u8(position++);
+        int type = ctrl >>> 5;
+        if (type == POINTER) {
+            this.type = POINTER;
+            this.pointer = readPointer(ctrl);
+            return 0;
+        }
+        if (type == EXTENDED) {
+            type = 7 + u8(position++);
+            if (type < INT32 || type > FLOAT) {
+                throw new InvalidDatabaseException("The MaxMind DB file's data section contains bad data: "
+                    + "invalid extended type " + type);
+            }
+        }
+        this.type = type;
+        int size = ctrl & 0x1f;
+        if (size >= 29) {
+            if (size == 29) {
+                size = 29 + u8(position);
+                position += 1;
+            } else if (size == 30) {
+                size = 285 + ((u8(position) << 8) | u8(position + 1));
+                position += 2;
+            } else {
+                size = 65821 + ((u8(position) << 16) | (u8(position + 1) << 8) | u8(position + 2));
+                position += 3;
+            }
+        }
+        return size;
+    }
+
+    private long readPointer(int ctrl) throws IOException {
+        int pointerSize = (ctrl >>> 3) & 0x3;
+        int prefix = ctrl & 0x7;
+        long pointer;
+        switch (pointerSize) {
+            case 0:
+                pointer = (prefix << 8) | u8(position);
+                break;
+            case 1:
+                pointer = ((prefix << 16) | (u8(position) << 8) | u8(position + 1)) + 2048;
+                break;
+            case 2:
+                pointer = ((prefix << 24) | (u8(position) << 16) | (u8(position + 1) << 8) | u8(position + 2)) + 526336;
+                break;
+            default:
+                pointer = buffer.getInt(position) & 0xFFFFFFFFL;
+        }
+        position += pointerSize + 1;
+        long target = pointerBase + pointer;
+        if (target >= buffer.size()) {
+            throw new InvalidDatabaseException("The MaxMind DB file's data section contains bad data: "
+                + "pointer larger than the database.");
+        }
+        return target;
+    }
+
+    private long readUnsigned(int size) {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = (value << 8) | u8(position + i);
+        }
+        position += size;
+        return value;
+    }
+
+    private BigInteger readBigInteger(int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+        position += size;
+        return new BigInteger(1, bytes);
+    }
+
+    private String readString(long start, int size) {
+        if (scratch.length < size) {
+            scratch = new byte[Math.max(size, scratch.length * 2)];
+        }
+        for (int i = 0; i < size; i++) {
+            scratch[i] = buffer.get(start + i);
+        }
+        return new String(scratch, 0, size, StandardCharsets.UTF_8);
+    }
+
+    private static void checkSize(int size, int expected) throws InvalidDatabaseException {
+        if (size != expected) {
+            throw new InvalidDatabaseException("The MaxMind DB file's data section contains bad data: "
+                + "invalid size of numeric value.");
+        }
+    }
+
+    private int u8(long index) {
+        return buffer.get(index) & 0xFF;
+    }
+}
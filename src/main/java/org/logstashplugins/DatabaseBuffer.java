@@ -0,0 +1,133 @@
+package org.logstashplugins;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * The bytes of a database file, addressed by {@code long} so that a file can be
+ * larger than the 2GB one {@link ByteBuffer} holds. A file is held in one buffer
+ * where it fits, and otherwise mapped in chunks of {@code 2^chunkBits} bytes.
+ * Each chunk also maps the first few bytes of the next one, so a multi-byte
+ * read never straddles two chunks.
+ */
+final class DatabaseBuffer {
+
+    /** the largest chunks, which still leave room for the overlap below an int's range */
+    static final int MAX_CHUNK_BITS = 30;
+    // the widest single read, a double
+    private static final int OVERLAP = 8;
+
+    private final ByteBuffer[] chunks;
+    // the only chunk of a file held in one buffer, which reads skip the chunk arithmetic for
+    private final ByteBuffer single;
+    private final int shift;
+    private final long mask;
+    private final long size;
+
+    private DatabaseBuffer(ByteBuffer[] chunks, int chunkBits, long size) {
+        this.chunks = chunks;
+        this.single = chunks.length == 1 ? chunks[0] : null;
+        this.shift = chunkBits;
+        this.mask = (1L << chunkBits) - 1;
+        this.size = size;
+    }
+
+    static DatabaseBuffer wrap(ByteBuffer buffer) {
+        return new DatabaseBuffer(new ByteBuffer[]{buffer}, 31, buffer.capacity());
+    }
+
+    /**
+     * Maps the file read-only, in one buffer if it fits, in chunks of {@code 2^chunkBits}
+     * bytes otherwise.
+     */
+    static DatabaseBuffer map(FileChannel channel, int chunkBits, boolean preload) throws IOException {
+        long size = channel.size();
+        if (size <= Integer.MAX_VALUE && chunkBits > MAX_CHUNK_BITS) {
+            return wrap(map(channel, 0, size, preload));
+        }
+        if (chunkBits > MAX_CHUNK_BITS) {
+            chunkBits = MAX_CHUNK_BITS;
+        }
+        long chunkSize = 1L << chunkBits;
+        ByteBuffer[] chunks = new ByteBuffer[(int) ((size + chunkSize - 1) >>> chunkBits)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = i * chunkSize;
+            chunks[i] = map(channel, start, Math.min(size - start, chunkSize + OVERLAP), preload);
+        }
+        return new DatabaseBuffer(chunks, chunkBits, size);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long start, long length, boolean preload) throws IOException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        if (preload) {
+            mapped.load();
+        }
+        return mapped;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * The buffer holding the first {@code length} bytes from offset 0, if one does.
+     */
+    ByteBuffer head(long length) {
+        return length <= chunks[0].capacity() ? chunks[0] : null;
+    }
+
+    byte get(long index) {
+        if (single != null) {
+            return single.get((int) index);
+        }
+        return chunks[(int) (index >>> shift)].get((int) (index & mask));
+    }
+
+    int getInt(long index) {
+        if (single != null) {
+            return single.getInt((int) index);
+        }
+        return chunks[(int) (index >>> shift)].getInt((int) (index & mask));
+    }
+
+    float getFloat(long index) {
+        if (single != null) {
+            return single.getFloat((int) index);
+        }
+        return chunks[(int) (index >>> shift)].getFloat((int) (index & mask));
+    }
+
+    double getDouble(long index) {
+        if (single != null) {
+            return single.getDouble((int) index);
+        }
+        return chunks[(int) (index >>> shift)].getDouble((int) (index & mask));
+    }
+
+    /**
+     * Adds every byte to {@code crc}, once.
+     */
+    void update(CRC32 crc) {
+        for (ByteBuffer chunk : chunks) {
+            ByteBuffer bytes = chunk.duplicate();
+            bytes.position(0);
+            bytes.limit((int) Math.min(chunk.capacity(), mask + 1));
+            crc.update(bytes);
+        }
+    }
+
+    /**
+     * Hands every direct or mapped chunk to {@code unmapper}.
+     */
+    void release(Consumer<ByteBuffer> unmapper) {
+        for (ByteBuffer chunk : chunks) {
+            if (chunk.isDirect()) {
+                unmapper.accept(chunk);
+            }
+        }
+    }
+}
@@ -0,0 +1,624 @@
+package org.logstashplugins;
+
+import com.maxmind.db.InvalidDatabaseException;
+import com.maxmind.db.Metadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One database of a filter together with what the filter asks of it: the field
+ * projection into its target and the caches of its lookups. A filter holds one
+ * of these per configured database and runs a batch through them in order.
+ * <p>
+ * An {@link OverlayDatabase} is looked at before the database. Its results are
+ * projected once per version of the overlay, and the caches only ever hold
+ * results of the database, so a changed overlay leaves them as they are.
+ */
+final class DatabaseLookup {
+
+    /** the fewest distinct addresses a task of a parallel lookup is given */
+    static final int MIN_CHUNK = 128;
+    /** addresses a warm-up looks up between two checks of its deadline */
+    private static final int WARM_CHUNK = 256;
+
+    private final FieldProjection projection;
+    private final int cacheSize;
+    private final ResultCache.Eviction cacheEviction;
+    private final int negativeCacheSize;
+    private final int rangeIndexMaxNodes;
+    private final AtomicReference<LookupCaches> lookupCaches = new AtomicReference<>();
+    private final AtomicReference<CompiledIndex> compiledIndex = new AtomicReference<>();
+    private final OverlayDatabase overlay;
+    private final AtomicReference<CompiledOverlay> compiledOverlay = new AtomicReference<>();
+    // caches pre-warmed for a reload candidate, installed once it is swapped in
+    private final AtomicReference<LookupCaches> preparedCaches = new AtomicReference<>();
+    private final SharedDatabase.ReloadListener reloadListener = new SharedDatabase.ReloadListener() {
+        @Override
+        public void prepare(DatabaseReader candidate) throws IOException {
+            prewarm(candidate);
+        }
+
+        @Override
+        public void commit(DatabaseReader candidate) {
+            installPreparedCaches(candidate);
+        }
+
+        @Override
+        public void abort(DatabaseReader candidate) {
+            LookupCaches prepared = preparedCaches.get();
+            if (prepared != null && prepared.generation == candidate.getGeneration()) {
+                preparedCaches.compareAndSet(prepared, null);
+            }
+        }
+    };
+    private SharedDatabase database;
+
+    /**
+     * @param rangeIndexMaxNodes databases of up to this many search tree nodes are looked up
+     *                           through a {@link RangeIndex} instead; 0 never does
+     * @param overlay            looked at before the database, or null; not closed with the lookup
+     */
+    DatabaseLookup(File databaseFile, FieldProjection projection, DatabaseReader.FileMode fileMode, boolean preload,
+                   int cacheSize, ResultCache.Eviction cacheEviction, int negativeCacheSize,
+                   int rangeIndexMaxNodes, OverlayDatabase overlay) throws IOException {
+        this.projection = projection;
+        this.overlay = overlay;
+        this.cacheSize = cacheSize;
+        this.cacheEviction = cacheEviction;
+        this.negativeCacheSize = negativeCacheSize;
+        this.rangeIndexMaxNodes = rangeIndexMaxNodes;
+        this.database = DatabaseRegistry.acquire(databaseFile, fileMode, preload);
+        DatabaseReader reader = this.database.pinReader();
+        try {
+            compile(reader);
+        } catch (IOException | RuntimeException ex) {
+            DatabaseRegistry.release(this.database);
+            throw ex;
+        } finally {
+            reader.unpin();
+        }
+        this.database.addReloadListener(this.reloadListener);
+    }
+
+    FieldProjection getProjection() {
+        return projection;
+    }
+
+    SharedDatabase getDatabase() {
+        return database;
+    }
+
+    Metadata getMetadata() {
+        return database == null ? null : database.getMetadata();
+    }
+
+    /**
+     * Caches hold data-section offsets and tree depths, so they are only valid for the
+     * reader they were filled from.
+     */
+    private static final class LookupCaches {
+        final long generation;
+        final ResultCache<LookupResult> results;
+        final NegativeCache misses;
+
+        LookupCaches(long generation, ResultCache<LookupResult> results, NegativeCache misses) {
+            this.generation = generation;
+            this.results = results;
+            this.misses = misses;
+        }
+    }
+
+    /**
+     * A {@link RangeIndex} of one reader, with the projected result of every range
+     * decoded up front. Ranges of the same record share one result, unless results
+     * carry their network. During a reload
+     * the index of the candidate keeps the one of the current reader, which stays in
+     * use until the swap, or for good if the reload fails.
+     */
+    private static final class CompiledIndex {
+        final long generation;
+        final RangeIndex index;
+        final LookupResult[] results;
+        final CompiledIndex current;
+
+        CompiledIndex(long generation, RangeIndex index, LookupResult[] results, CompiledIndex current) {
+            this.generation = generation;
+            this.index = index;
+            this.results = results;
+            this.current = current;
+        }
+
+        CompiledIndex forGeneration(long generation) {
+            if (this.generation == generation) {
+                return this;
+            }
+            return current != null && current.generation == generation ? current : null;
+        }
+    }
+
+    /**
+     * Builds the range index of {@code reader} if it is small enough.
+     *
+     * @throws IOException if a range can't be resolved or decoded; the index has no
+     *                     way back to the search tree, so it fails rather than miss
+     */
+    private void compile(DatabaseReader reader) throws IOException {
+        SharedDatabase database = this.database;
+        CompiledIndex existing = compiledIndex.get();
+        DatabaseReader currentReader = database == null ? null : database.getReader();
+        CompiledIndex current = existing == null || currentReader == null ? null
+            : existing.forGeneration(currentReader.getGeneration());
+        if (current != null) {
+            current = new CompiledIndex(current.generation, current.index, current.results, null);
+        }
+        if (rangeIndexMaxNodes == 0 || reader.getNodeCount() > rangeIndexMaxNodes) {
+            compiledIndex.set(current);
+            return;
+        }
+        RangeIndex index = RangeIndex.build(reader);
+        DataDecoder decoder = reader.newEventDecoder();
+        Object[] values = new Object[projection.size()];
+        byte[] address = new byte[16];
+        Map<Long, LookupResult> byOffset = new HashMap<>();
+        LookupResult[] results = new LookupResult[index.size()];
+        for (int position = 0; position < results.length; position++) {
+            long result;
+            try {
+                result = index.result(position);
+            } catch (InvalidDatabaseException ex) {
+                int length = index.start(position, address);
+                throw new InvalidDatabaseException("The range index of " + reader.getMetadata().getDatabaseType()
+                    + " can't be built, the range from "
+                    + InetAddress.getByAddress(Arrays.copyOf(address, length)).getHostAddress()
+                    + " is corrupt: " + ex.getMessage(), ex);
+            }
+            if (!DatabaseReader.isFound(result)) {
+                continue;
+            }
+            long offset = DatabaseReader.dataOffset(result);
+            LookupResult lookupResult = byOffset.get(offset);
+            if (lookupResult == null && !byOffset.containsKey(offset)) {
+                int length = index.start(position, address);
+                lookupResult = decode(decoder, result, values, address, length);
+                if (!projection.hasNetworkOutputs()) {
+                    byOffset.put(offset, lookupResult);
+                }
+            }
+            results[position] = lookupResult;
+        }
+        compiledIndex.set(new CompiledIndex(reader.getGeneration(), index, results, current));
+    }
+
+    /**
+     * The projected result of every entry of one version of the overlay, null for
+     * entries that hide the database.
+     */
+    private static final class CompiledOverlay {
+        final OverlayDatabase.Snapshot snapshot;
+        final LookupResult[] results;
+
+        CompiledOverlay(OverlayDatabase.Snapshot snapshot, LookupResult[] results) {
+            this.snapshot = snapshot;
+            this.results = results;
+        }
+    }
+
+    /**
+     * The compiled current version of the overlay, compiled by the first batch to see it.
+     *
+     * @return null without an overlay
+     */
+    private CompiledOverlay compiledOverlay() {
+        if (overlay == null) {
+            return null;
+        }
+        OverlayDatabase.Snapshot snapshot = overlay.getSnapshot();
+        CompiledOverlay compiled = compiledOverlay.get();
+        if (compiled != null && compiled.snapshot == snapshot) {
+            return compiled;
+        }
+        List<OverlayDatabase.Entry> entries = snapshot.entries();
+        LookupResult[] results = new LookupResult[entries.size()];
+        Object[] values = new Object[projection.size()];
+        for (OverlayDatabase.Entry entry : entries) {
+            if (entry.record == null) {
+                continue;
+            }
+            PrefixTrie.Network network = entry.network;
+            if (projection.isWildcard()) {
+                results[entry.index] = LookupResult.fromRecord(projection, entry.record,
+                    network.address, network.length, network.prefixLength);
+            } else {
+                projection.project(entry.record, values);
+                results[entry.index] = LookupResult.fromProjection(projection, values,
+                    network.address, network.length, network.prefixLength);
+            }
+        }
+        compiled = new CompiledOverlay(snapshot, results);
+        // a batch that compiled an older version must not put it back
+        CompiledOverlay current = compiledOverlay.get();
+        if (current == null || current.snapshot.generation < snapshot.generation) {
+            compiledOverlay.compareAndSet(current, compiled);
+        }
+        return compiled;
+    }
+
+    private LookupCaches newLookupCaches(long generation) {
+        return new LookupCaches(generation,
+            cacheSize > 0 ? new ResultCache<>(cacheSize, cacheEviction, generation) : null,
+            negativeCacheSize > 0 ? new NegativeCache(negativeCacheSize, cacheEviction, generation) : null);
+    }
+
+    /**
+     * The caches for lookups against {@code reader}, replacing those of an older reader.
+     * Returns null when caching is off, or when this batch is still running against a
+     * reader that has already been replaced.
+     */
+    private LookupCaches lookupCachesFor(DatabaseReader reader) {
+        if (cacheSize == 0 && negativeCacheSize == 0) {
+            return null;
+        }
+        while (true) {
+            LookupCaches caches = lookupCaches.get();
+            if (caches != null && caches.generation >= reader.getGeneration()) {
+                return caches.generation == reader.getGeneration() ? caches : null;
+            }
+            LookupCaches fresh = newLookupCaches(reader.getGeneration());
+            if (lookupCaches.compareAndSet(caches, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    /**
+     * Looks up the distinct addresses of a batch in the given order.
+     *
+     * @param pending which distinct addresses to look up; the others are left out
+     * @return the result for each distinct address, null where there is none
+     */
+    LookupResult[] lookup(LookupBatch batch, int[] order, boolean[] pending, byte[] addressBuffer,
+                          FilterMetrics.Batch stats) {
+        LookupResult[] results = new LookupResult[batch.distinct()];
+        DatabaseReader reader = database.pinReader();
+        if (reader == null) {
+            return results;
+        }
+        try {
+            lookup(reader, lookupCachesFor(reader), batch, order, 0, order.length, pending, addressBuffer, stats, results);
+        } finally {
+            reader.unpin();
+        }
+        return results;
+    }
+
+    /**
+     * As {@link #lookup(LookupBatch, int[], boolean[], byte[], FilterMetrics.Batch)}, with
+     * the lookup order split into consecutive chunks that run on the shared {@link LookupPool}.
+     * Every chunk runs against the same reader and caches, and writes only its own slots of
+     * the result array, so the results are the same as a serial lookup. Blocks until done.
+     */
+    LookupResult[] lookupParallel(LookupBatch batch, int[] order, boolean[] pending, FilterMetrics.Batch stats) {
+        LookupResult[] results = new LookupResult[batch.distinct()];
+        DatabaseReader reader = database.pinReader();
+        if (reader == null) {
+            return results;
+        }
+        try {
+            LookupCaches caches = lookupCachesFor(reader);
+            int chunk = Math.max(MIN_CHUNK, order.length / (LookupPool.parallelism() * 4) + 1);
+            LookupPool.get().invoke(new LookupTask(reader, caches, batch, order, 0, order.length, chunk,
+                pending, stats, results));
+        } finally {
+            reader.unpin();
+        }
+        return results;
+    }
+
+    private final class LookupTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final DatabaseReader reader;
+        private final LookupCaches caches;
+        private final LookupBatch batch;
+        private final int[] order;
+        private final int from;
+        private final int to;
+        private final int chunk;
+        private final boolean[] pending;
+        private final FilterMetrics.Batch stats;
+        private final LookupResult[] results;
+
+        LookupTask(DatabaseReader reader, LookupCaches caches, LookupBatch batch, int[] order, int from, int to,
+                   int chunk, boolean[] pending, FilterMetrics.Batch stats, LookupResult[] results) {
+            this.reader = reader;
+            this.caches = caches;
+            this.batch = batch;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.pending = pending;
+            this.stats = stats;
+            this.results = results;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                FilterMetrics.Batch chunkStats = new FilterMetrics.Batch(stats.sampled);
+                lookup(reader, caches, batch, order, from, to, pending, new byte[16], chunkStats, results);
+                synchronized (stats) {
+                    stats.add(chunkStats);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(
+                new LookupTask(reader, caches, batch, order, from, middle, chunk, pending, stats, results),
+                new LookupTask(reader, caches, batch, order, middle, to, chunk, pending, stats, results));
+        }
+    }
+
+    private void lookup(DatabaseReader reader, LookupCaches caches, LookupBatch batch, int[] order,
+                        int from, int to, boolean[] pending, byte[] addressBuffer,
+                        FilterMetrics.Batch stats, LookupResult[] results) {
+        CompiledOverlay overlay = compiledOverlay();
+        CompiledIndex compiled = compiledIndex.get();
+        compiled = compiled == null ? null : compiled.forGeneration(reader.getGeneration());
+        if (compiled != null) {
+            for (int i = from; i < to; i++) {
+                int index = order[i];
+                if (pending[index]) {
+                    int length = batch.address(index, addressBuffer);
+                    if (overlay != null && lookupOverlay(overlay, addressBuffer, length, index, results)) {
+                        continue;
+                    }
+                    long start = stats.start();
+                    int position = compiled.index.find(addressBuffer, length);
+                    stats.stop(FilterMetrics.Stage.LOOKUP, start);
+                    results[index] = position < 0 ? null : compiled.results[position];
+                }
+            }
+            return;
+        }
+        DataDecoder decoder = reader.newEventDecoder();
+        ResultCache<LookupResult> cache = caches == null ? null : caches.results;
+        NegativeCache misses = caches == null ? null : caches.misses;
+        Object[] values = new Object[projection.size()];
+        for (int i = from; i < to; i++) {
+            int index = order[i];
+            if (!pending[index]) {
+                continue;
+            }
+            int length = batch.address(index, addressBuffer);
+            if (overlay != null && lookupOverlay(overlay, addressBuffer, length, index, results)) {
+                continue;
+            }
+            try {
+                if (misses != null && misses.contains(addressBuffer, length)) {
+                    stats.cacheHits++;
+                    continue;
+                }
+
+                long start = stats.start();
+                long result = reader.lookup(addressBuffer, length);
+                stats.stop(FilterMetrics.Stage.LOOKUP, start);
+                if (!DatabaseReader.isFound(result)) {
+                    if (misses != null) {
+                        stats.cacheMisses++;
+                        misses.add(addressBuffer, length, DatabaseReader.prefixLength(result));
+                    }
+                    continue;
+                }
+
+                long key = cacheKey(result, addressBuffer, length);
+                LookupResult lookupResult = cache == null ? null : cache.get(key);
+                if (lookupResult != null && projection.hasNetworkOutputs()
+                    && !lookupResult.covers(addressBuffer, length)) {
+                    lookupResult = null;
+                }
+                if (lookupResult != null) {
+                    stats.cacheHits++;
+                } else {
+                    if (cache != null) {
+                        stats.cacheMisses++;
+                    }
+                    start = stats.start();
+                    lookupResult = decode(decoder, result, values, addressBuffer, length);
+                    stats.stop(FilterMetrics.Stage.DECODE, start);
+                    if (lookupResult != null && cache != null) {
+                        cache.put(key, lookupResult);
+                    }
+                }
+                results[index] = lookupResult;
+            } catch (IOException ex) {
+                // left null, the events are tagged
+            }
+        }
+    }
+
+    /**
+     * @return whether the address is in a network of the overlay, which then has the
+     *         (possibly null) result instead of the database
+     */
+    private static boolean lookupOverlay(CompiledOverlay overlay, byte[] address, int length, int index,
+                                         LookupResult[] results) {
+        OverlayDatabase.Entry entry = overlay.snapshot.get(address, length);
+        if (entry == null) {
+            return false;
+        }
+        results[index] = overlay.results[entry.index];
+        return true;
+    }
+
+    /**
+     * Results are cached by record and prefix length, or, when they carry their network,
+     * by the network itself. Networks are hashed into the key, so a cached result must
+     * also {@link LookupResult#covers cover} the address.
+     */
+    private long cacheKey(long result, byte[] address, int length) {
+        if (!projection.hasNetworkOutputs()) {
+            return result;
+        }
+        int prefixLength = DatabaseReader.prefixLength(result);
+        long high = 0;
+        long low = 0;
+        for (int bit = 0; bit < prefixLength; bit += 8) {
+            int b = address[bit >> 3] & (0xFF00 >>> Math.min(8, prefixLength - bit)) & 0xFF;
+            if (bit < 64) {
+                high = high << 8 | b;
+            } else {
+                low = low << 8 | b;
+            }
+        }
+        return (high * 0x9E3779B97F4A7C15L) ^ (low * 0xC2B2AE3D27D4EB4FL) ^ ((long) prefixLength << 8 | length);
+    }
+
+    private LookupResult decode(DataDecoder decoder, long result, Object[] values,
+                                byte[] address, int length) throws IOException {
+        long offset = DatabaseReader.dataOffset(result);
+        int prefixLength = DatabaseReader.prefixLength(result);
+        if (projection.isWildcard()) {
+            Object recordData = decoder.decode(offset);
+            if (!(recordData instanceof Map)) {
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> fields = (Map<String, Object>) recordData;
+            return LookupResult.fromRecord(projection, fields, address, length, prefixLength);
+        }
+        decoder.decodeProjected(offset, projection, values);
+        return LookupResult.fromProjection(projection, values, address, length, prefixLength);
+    }
+
+    /**
+     * Adds the addresses behind the current caches to {@code batch}, one per cached
+     * network, until it holds {@code limit} distinct addresses.
+     */
+    void collectHotAddresses(LookupBatch batch, int limit) {
+        LookupCaches caches = lookupCaches.get();
+        if (caches == null) {
+            return;
+        }
+        if (caches.results != null) {
+            for (LookupResult cached : caches.results.values()) {
+                if (batch.distinct() >= limit) {
+                    return;
+                }
+                batch.add(cached.address, cached.address.length);
+            }
+        }
+        if (caches.misses != null) {
+            for (byte[] network : caches.misses.networks()) {
+                if (batch.distinct() >= limit) {
+                    return;
+                }
+                batch.add(network, network.length);
+            }
+        }
+    }
+
+    /**
+     * Looks up the addresses of {@code batch} to fill the caches and fault in the pages
+     * they touch, giving up on the rest at {@code deadline} (a {@link System#nanoTime()}).
+     *
+     * @return how many of the addresses were looked up
+     */
+    int warm(LookupBatch batch, long deadline) {
+        SharedDatabase database = this.database;
+        DatabaseReader reader = database == null ? null : database.pinReader();
+        if (reader == null) {
+            return 0;
+        }
+        try {
+            LookupCaches caches = lookupCachesFor(reader);
+            int[] order = batch.lookupOrder();
+            boolean[] pending = new boolean[batch.distinct()];
+            Arrays.fill(pending, true);
+            LookupResult[] results = new LookupResult[batch.distinct()];
+            FilterMetrics.Batch stats = new FilterMetrics.Batch(false);
+            byte[] addressBuffer = new byte[16];
+            int done = 0;
+            while (done < order.length && System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                int to = Math.min(order.length, done + WARM_CHUNK);
+                lookup(reader, caches, batch, order, done, to, pending, addressBuffer, stats, results);
+                done = to;
+            }
+            return done;
+        } finally {
+            reader.unpin();
+        }
+    }
+
+    /**
+     * Fills caches for a reader that is about to be swapped in by looking up again the
+     * addresses cached for the current one, so a reload doesn't start from cold caches,
+     * and builds its range index. Runs on the reload thread; an exception here aborts
+     * the reload. The caches are only installed once the candidate is swapped in, as
+     * the reload can still be abandoned after this.
+     */
+    private void prewarm(DatabaseReader candidate) throws IOException {
+        compile(candidate);
+        LookupCaches caches = lookupCaches.get();
+        if (caches == null) {
+            return;
+        }
+        LookupCaches fresh = newLookupCaches(candidate.getGeneration());
+        DataDecoder decoder = candidate.newEventDecoder();
+        Object[] values = new Object[projection.size()];
+        if (caches.results != null) {
+            for (LookupResult cached : caches.results.values()) {
+                long result = candidate.lookup(cached.address, cached.address.length);
+                if (DatabaseReader.isFound(result)) {
+                    LookupResult lookupResult = decode(decoder, result, values, cached.address, cached.address.length);
+                    if (lookupResult != null) {
+                        fresh.results.put(cacheKey(result, cached.address, cached.address.length), lookupResult);
+                    }
+                }
+            }
+        }
+        if (caches.misses != null) {
+            for (byte[] network : caches.misses.networks()) {
+                long result = candidate.lookup(network, network.length);
+                if (!DatabaseReader.isFound(result)) {
+                    fresh.misses.add(network, network.length, DatabaseReader.prefixLength(result));
+                }
+            }
+        }
+        preparedCaches.set(fresh);
+    }
+
+    private void installPreparedCaches(DatabaseReader reader) {
+        LookupCaches prepared = preparedCaches.getAndSet(null);
+        if (prepared == null || prepared.generation != reader.getGeneration()) {
+            return;
+        }
+        while (true) {
+            LookupCaches caches = lookupCaches.get();
+            // batches on the new reader may have started empty caches of its own since the swap
+            if (caches != null && caches.generation > prepared.generation) {
+                return;
+            }
+            if (lookupCaches.compareAndSet(caches, prepared)) {
+                return;
+            }
+        }
+    }
+
+    void close() {
+        SharedDatabase database = this.database;
+        if (database != null) {
+            this.database = null;
+            database.removeReloadListener(reloadListener);
+            DatabaseRegistry.release(database);
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package org.logstashplugins;
+
+import com.maxmind.db.InvalidDatabaseException;
+import com.maxmind.db.Metadata;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Reads an MMDB file directly: walks the search tree for an address held in a
+ * byte array and hands back the data-section offset of the matching record
+ * together with the prefix length of the network it matched, so callers can
+ * decode as much or as little of the record as they need.
+ * <p>
+ * A mapped or direct buffer is freed as soon as the reader is closed, rather
+ * than whenever the garbage collector gets to it, so a reader must not be
+ * closed while lookups are still running on it: {@link #retire()} defers that
+ * until the last {@link #pin() pinned} lookup is done. Pins are counted in
+ * per-thread slots, each on its own cache line, so threads pinning the same
+ * reader for every batch don't contend on one counter; only retiring a reader
+ * and unpinning a retired one add the slots up.
+ */
+final class DatabaseReader implements Closeable {
+
+    /**
+     * Where the database bytes live while the reader is open.
+     */
+    enum FileMode {
+        /** mapped read-only; pages are faulted in from the page cache on demand */
+        MMAP,
+        /** copied into a heap byte array */
+        HEAP,
+        /** copied into an off-heap direct buffer */
+        DIRECT;
+
+        static FileMode parse(String value) {
+            for (FileMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value)) {
+                    return mode;
+                }
+            }
+            throw new IllegalStateException("File mode must be one of mmap, heap or direct");
+        }
+    }
+
+    private static final int DATA_SECTION_SEPARATOR_SIZE = 16;
+    private static final byte[] METADATA_START_MARKER = {(byte) 0xAB, (byte) 0xCD, (byte) 0xEF,
+        'M', 'a', 'x', 'M', 'i', 'n', 'd', '.', 'c', 'o', 'm'};
+    static final long NOT_FOUND = 0xFFFFFFFFL;
+    private static final AtomicLong generations = new AtomicLong();
+    private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+    // pin slots, a power of two; threads beyond that share slots
+    private static final int PIN_SLOTS = Math.min(64,
+        Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1);
+    // longs between two slots, so that each slot has a cache line of its own
+    private static final int PIN_STRIDE = 8;
+
+    // the whole file, for the data section and metadata
+    private final DatabaseBuffer data;
+    // the search tree, which always fits in one buffer
+    private final ByteBuffer buffer;
+    private final Metadata metadata;
+    private final int ipVersion;
+    private final int nodeCount;
+    private final int recordSize;
+    private final int nodeByteSize;
+    private final int searchTreeSize;
+    private final int ipv4Start;
+    private final long generation = generations.incrementAndGet();
+    private final AtomicLongArray pins = new AtomicLongArray(PIN_SLOTS * PIN_STRIDE);
+    private volatile boolean retired = false;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    DatabaseReader(File file) throws IOException {
+        this(file, FileMode.MMAP, false);
+    }
+
+    /**
+     * @param preload with {@link FileMode#MMAP}, touch every page of the mapping up front so
+     *                that the first lookups don't stall on page faults; the copying modes
+     *                read the whole file anyway
+     */
+    DatabaseReader(File file, FileMode mode, boolean preload) throws IOException {
+        this(file, mode, preload, 0);
+    }
+
+    /**
+     * @param chunkBits with {@link FileMode#MMAP}, map the file in chunks of {@code 2^chunkBits}
+     *                  bytes; 0 maps a file of up to 2GB whole and a larger one in chunks of 1GB
+     */
+    DatabaseReader(File file, FileMode mode, boolean preload, int chunkBits) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            // data offsets are held in 32 bits, next to the prefix length
+            if (channel.size() > NOT_FOUND) {
+                throw new IOException("Database " + file + " is larger than 4GB");
+            }
+            if (mode != FileMode.MMAP && channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Database " + file + " is larger than 2GB, which only file_mode mmap supports");
+            }
+            this.data = load(channel, mode, preload, chunkBits);
+            long metadataStart = findMetadataStart(data, file.getName());
+            @SuppressWarnings("unchecked")
+            Map<String, Object> fields = (Map<String, Object>) new DataDecoder(data, metadataStart).decode(metadataStart);
+            this.metadata = toMetadata(fields);
+            this.ipVersion = metadata.getIpVersion();
+            this.nodeCount = intValue(fields, "node_count");
+            this.recordSize = intValue(fields, "record_size");
+            if (recordSize != 24 && recordSize != 28 && recordSize != 32) {
+                throw new InvalidDatabaseException("Unknown record size: " + recordSize);
+            }
+            this.nodeByteSize = recordSize / 4;
+            long treeSize = (long) nodeCount * nodeByteSize;
+            if (nodeCount <= 0 || treeSize + DATA_SECTION_SEPARATOR_SIZE > metadataStart) {
+                throw new InvalidDatabaseException("The MaxMind DB file's search tree is corrupt");
+            }
+            if (treeSize > Integer.MAX_VALUE) {
+                throw new IOException("The search tree of database " + file + " is larger than 2GB");
+            }
+            this.searchTreeSize = (int) treeSize;
+            ByteBuffer head = data.head(treeSize);
+            this.buffer = head != null ? head : map(channel, treeSize, preload);
+        }
+        this.ipv4Start = findIpv4Start();
+    }
+
+    private static DatabaseBuffer load(FileChannel channel, FileMode mode, boolean preload,
+                                       int chunkBits) throws IOException {
+        if (mode == FileMode.MMAP) {
+            if (chunkBits > 0) {
+                return DatabaseBuffer.map(channel, chunkBits, preload);
+            }
+            return channel.size() <= Integer.MAX_VALUE
+                ? DatabaseBuffer.wrap(map(channel, channel.size(), preload))
+                : DatabaseBuffer.map(channel, DatabaseBuffer.MAX_CHUNK_BITS, preload);
+        }
+        int size = (int) channel.size();
+        ByteBuffer copy = mode == FileMode.DIRECT ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        while (copy.hasRemaining()) {
+            if (channel.read(copy, copy.position()) < 0) {
+                throw new IOException("Unexpected end of database file");
+            }
+        }
+        copy.flip();
+        return DatabaseBuffer.wrap(copy);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long length, boolean preload) throws IOException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        if (preload) {
+            mapped.load();
+        }
+        return mapped;
+    }
+
+    private static long findMetadataStart(DatabaseBuffer buffer, String databaseName) throws InvalidDatabaseException {
+        long fileSize = buffer.size();
+        FILE:
+        for (long i = 0; i < fileSize - METADATA_START_MARKER.length + 1; i++) {
+            for (int j = 0; j < METADATA_START_MARKER.length; j++) {
+                byte b = buffer.get(fileSize - i - j - 1);
+                if (b != METADATA_START_MARKER[METADATA_START_MARKER.length - j - 1]) {
+                    continue FILE;
+                }
+            }
+            return fileSize - i;
+        }
+        throw new InvalidDatabaseException("Could not find a MaxMind DB metadata marker in this file ("
+            + databaseName + "). Is this a valid MaxMind DB file?");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Metadata toMetadata(Map<String, Object> fields) throws InvalidDatabaseException {
+        Object buildEpoch = fields.get("build_epoch");
+        Object languages = fields.get("languages");
+        Object description = fields.get("description");
+        return new Metadata(
+            intValue(fields, "binary_format_major_version"),
+            intValue(fields, "binary_format_minor_version"),
+            buildEpoch instanceof BigInteger ? (BigInteger) buildEpoch : BigInteger.valueOf(intValue(fields, "build_epoch")),
+            (String) fields.get("database_type"),
+            languages instanceof List ? (List<String>) languages : Collections.emptyList(),
+            description instanceof Map ? (Map<String, String>) description : Collections.emptyMap(),
+            intValue(fields, "ip_version"),
+            intValue(fields, "node_count"),
+            intValue(fields, "record_size"));
+    }
+
+    private static int intValue(Map<String, Object> fields, String key) throws InvalidDatabaseException {
+        Object value = fields.get(key);
+        if (!(value instanceof Number)) {
+            throw new InvalidDatabaseException("The MaxMind DB file's metadata is missing " + key);
+        }
+        return ((Number) value).intValue();
+    }
+
+    private int findIpv4Start() throws InvalidDatabaseException {
+        if (ipVersion == 4) {
+            return 0;
+        }
+        int node = 0;
+        for (int i = 0; i < 96 && node < nodeCount; i++) {
+            node = readNode(node, 0);
+        }
+        return node;
+    }
+
+    /**
+     * @param index 0 for the left record (next bit 0), 1 for the right one
+     */
+    int readNode(int node, int index) throws InvalidDatabaseException {
+        int base = node * nodeByteSize;
+        switch (recordSize) {
+            case 24:
+                base += index * 3;
+                return (u8(base) << 16) | (u8(base + 1) << 8) | u8(base + 2);
+            case 28:
+                if (index == 0) {
+                    return ((u8(base + 3) & 0xF0) << 20) | (u8(base) << 16) | (u8(base + 1) << 8) | u8(base + 2);
+                }
+                return ((u8(base + 3) & 0x0F) << 24) | (u8(base + 4) << 16) | (u8(base + 5) << 8) | u8(base + 6);
+            case 32:
+                return buffer.getInt(base + index * 4);
+            default:
+                throw new InvalidDatabaseException("Unknown record size: " + recordSize);
+        }
+    }
+
+    private int u8(int index) {
+        return buffer.get(index) & 0xFF;
+    }
+
+    Metadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Increases with every reader opened in this process, so anything derived from
+     * a reader (such as cached lookups) can tell which of two readers is newer.
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Walks the search tree for an address of {@code length} (4 or 16) bytes.
+     *
+     * @return the lookup result; see {@link #isFound(long)}, {@link #dataOffset(long)}
+     * and {@link #prefixLength(long)}
+     */
+    long lookup(byte[] address, int length) throws IOException {
+        int bitCount = length * 8;
+        if (bitCount == 128 && ipVersion == 4) {
+            return NOT_FOUND;
+        }
+        if (bitCount == 32) {
+            return lookupIPv4((address[0] & 0xFF) << 24 | (address[1] & 0xFF) << 16
+                | (address[2] & 0xFF) << 8 | (address[3] & 0xFF));
+        }
+        int record = 0;
+        int prefixLength = 0;
+        for (; prefixLength < bitCount && record < nodeCount; prefixLength++) {
+            int bit = 1 & ((address[prefixLength >> 3] & 0xFF) >> (7 - (prefixLength & 7)));
+            record = readNode(record, bit);
+        }
+        return leaf(record, prefixLength);
+    }
+
+    /**
+     * Walks the search tree for an IPv4 address held in an int, from the
+     * {@link #getIpv4Start() IPv4 start node}. The loop is repeated per record
+     * size so the walk doesn't go through {@link #readNode(int, int)} for every bit.
+     */
+    long lookupIPv4(int address) throws IOException {
+        int record = ipv4Start;
+        int prefixLength = 0;
+        switch (recordSize) {
+            case 24:
+                for (; prefixLength < 32 && record < nodeCount; prefixLength++) {
+                    int base = record * 6 + ((address >>> (31 - prefixLength)) & 1) * 3;
+                    record = (u8(base) << 16) | (u8(base + 1) << 8) | u8(base + 2);
+                }
+                break;
+            case 28:
+                for (; prefixLength < 32 && record < nodeCount; prefixLength++) {
+                    int base = record * 7;
+                    if (((address >>> (31 - prefixLength)) & 1) == 0) {
+                        record = ((u8(base + 3) & 0xF0) << 20) | (u8(base) << 16) | (u8(base + 1) << 8) | u8(base + 2);
+                    } else {
+                        record = ((u8(base + 3) & 0x0F) << 24) | (u8(base + 4) << 16) | (u8(base + 5) << 8) | u8(base + 6);
+                    }
+                }
+                break;
+            case 32:
+                for (; prefixLength < 32 && record < nodeCount; prefixLength++) {
+                    record = buffer.getInt(record * 8 + ((address >>> (31 - prefixLength)) & 1) * 4);
+                }
+                break;
+            default:
+                throw new InvalidDatabaseException("Unknown record size: " + recordSize);
+        }
+        return leaf(record, prefixLength);
+    }
+
+    /**
+     * The lookup result for reaching {@code record} after {@code prefixLength} bits.
+     */
+    long leaf(int record, int prefixLength) throws InvalidDatabaseException {
+        if (record == nodeCount) {
+            return ((long) prefixLength << 32) | NOT_FOUND;
+        }
+        if (record > nodeCount) {
+            long offset = (long) record - nodeCount + searchTreeSize;
+            if (offset >= data.size()) {
+                throw new InvalidDatabaseException("The MaxMind DB file's search tree is corrupt: "
+                    + "contains pointer larger than the database.");
+            }
+            return ((long) prefixLength << 32) | offset;
+        }
+        throw new InvalidDatabaseException("Something bad happened");
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    int getIpVersion() {
+        return ipVersion;
+    }
+
+    /**
+     * The node that lookups of 4 byte addresses start from.
+     */
+    int getIpv4Start() {
+        return ipv4Start;
+    }
+
+    static boolean isFound(long result) {
+        return (result & NOT_FOUND) != NOT_FOUND;
+    }
+
+    static long dataOffset(long result) {
+        return result & NOT_FOUND;
+    }
+
+    static int prefixLength(long result) {
+        return (int) (result >>> 32);
+    }
+
+    /**
+     * CRC-32 of the whole file, to tell whether a rewritten file actually changed.
+     * Reads every byte, so this is not for the lookup path.
+     */
+    long checksum() {
+        CRC32 crc = new CRC32();
+        data.update(crc);
+        return crc.getValue();
+    }
+
+    /**
+     * Each caller (thread) needs its own decoder.
+     */
+    DataDecoder newDecoder() {
+        return new DataDecoder(data, searchTreeSize + DATA_SECTION_SEPARATOR_SIZE);
+    }
+
+    /**
+     * A decoder whose values can be set on events as they are.
+     * Each caller (thread) needs its own decoder.
+     */
+    DataDecoder newEventDecoder() {
+        return new DataDecoder(data, searchTreeSize + DATA_SECTION_SEPARATOR_SIZE, true);
+    }
+
+    /**
+     * Keeps the reader open until {@link #unpin()}, even once it has been retired.
+     */
+    void pin() {
+        pins.incrementAndGet(pinSlot());
+    }
+
+    /**
+     * Must be called on the thread that pinned the reader.
+     */
+    void unpin() {
+        pins.decrementAndGet(pinSlot());
+        if (retired && pinCount() == 0) {
+            release();
+        }
+    }
+
+    /**
+     * Closes the reader as soon as nothing has it pinned any more, which may be right away.
+     * Whoever hands out the reader must stop doing so first.
+     */
+    void retire() {
+        retired = true;
+        if (pinCount() == 0) {
+            release();
+        }
+    }
+
+    private static int pinSlot() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ id >>> 16) & (PIN_SLOTS - 1)) * PIN_STRIDE;
+    }
+
+    /**
+     * Once the reader is retired nothing new stays pinned to it, so the sum can only reach zero
+     * when the last pinned lookup is done; whoever sees it there first releases the reader.
+     */
+    private long pinCount() {
+        long count = 0;
+        for (int slot = 0; slot < PIN_SLOTS * PIN_STRIDE; slot += PIN_STRIDE) {
+            count += pins.get(slot);
+        }
+        return count;
+    }
+
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    private void release() {
+        if (closed.compareAndSet(false, true) && UNMAPPER != null) {
+            data.release(UNMAPPER);
+            if (buffer.isDirect() && data.head(searchTreeSize) != buffer) {
+                UNMAPPER.accept(buffer);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #retire()}.
+     */
+    @Override
+    public void close() {
+        retire();
+    }
+
+    /**
+     * Frees a mapped or direct buffer right away, through {@code Unsafe.invokeCleaner} on
+     * Java 9 and later or the buffer's cleaner on Java 8.
+     *
+     * @return null where neither is available, leaving the buffer to the garbage collector
+     */
+    private static Consumer<ByteBuffer> unmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeQuietly(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // Java 8
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                Object bufferCleaner = invokeQuietly(cleaner, buffer);
+                if (bufferCleaner != null) {
+                    invokeQuietly(clean, bufferCleaner);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private static Object invokeQuietly(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+}
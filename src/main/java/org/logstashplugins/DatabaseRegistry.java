@@ -0,0 +1,54 @@
+package org.logstashplugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide registry of opened databases, keyed by canonical path and the
+ * way the file is loaded. Filters pointing at the same file with the same file
+ * mode share one Reader; when the last filter releases it the file is no longer
+ * watched and the Reader is closed once its in-flight lookups are done.
+ */
+final class DatabaseRegistry {
+
+    private static final Map<String, SharedDatabase> databases = new HashMap<>();
+
+    private DatabaseRegistry() {
+    }
+
+    static synchronized SharedDatabase acquire(File databaseFile) throws IOException {
+        return acquire(databaseFile, DatabaseReader.FileMode.MMAP, false);
+    }
+
+    static synchronized SharedDatabase acquire(File databaseFile, DatabaseReader.FileMode fileMode,
+                                               boolean preload) throws IOException {
+        File canonicalFile = databaseFile.getCanonicalFile();
+        String key = key(canonicalFile, fileMode, preload);
+        SharedDatabase database = databases.get(key);
+        if (database == null) {
+            database = new SharedDatabase(canonicalFile, fileMode, preload);
+            try {
+                database.startWatching();
+            } catch (IOException ex) {
+                database.close();
+                throw ex;
+            }
+            databases.put(key, database);
+        }
+        database.retain();
+        return database;
+    }
+
+    static synchronized void release(SharedDatabase database) {
+        if (database.release() == 0) {
+            databases.remove(key(database.getFile(), database.getFileMode(), database.isPreload()));
+            database.close();
+        }
+    }
+
+    private static String key(File canonicalFile, DatabaseReader.FileMode fileMode, boolean preload) {
+        return canonicalFile.getPath() + "|" + fileMode + (preload ? "|preload" : "");
+    }
+}
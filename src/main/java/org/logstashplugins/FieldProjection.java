@@ -0,0 +1,249 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.Event;
+import org.logstash.FieldReference;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@code fields} config compiled into a flat plan. Nodes are stored in
+ * pre-order so that a node's parent always has a lower index, which lets a
+ * record be projected with one pass over an array instead of walking the
+ * {@link FieldNode} maps. Target references are built once, here, rather than
+ * for every field of every event.
+ * <p>
+ * A projection can write to several roots, one per source field, so the same
+ * decoded record can be rendered under the target of each source it came from.
+ */
+final class FieldProjection {
+
+    private static final int MAX_WILDCARD_TARGETS = 1024;
+
+    private final String[] roots;
+    private final int[] parents;
+    private final String[] names;
+    private final byte[][] nameBytes;
+    private final Target[] targets;
+    private final int[] subtreeEnds;
+    private final int[][] children;
+    private final int[] rootChildren;
+    private final Map<String, Target> wildcardTargets = new ConcurrentHashMap<>();
+    private final Target networkTarget;
+    private final Target prefixLengthTarget;
+
+    FieldProjection(String targetField, Map<String, FieldNode> fieldNodeMap) {
+        this(new String[]{"[" + targetField + "]"}, fieldNodeMap);
+    }
+
+    FieldProjection(String[] roots, Map<String, FieldNode> fieldNodeMap) {
+        this(roots, fieldNodeMap, null, null);
+    }
+
+    /**
+     * @param roots             the field references (such as {@code [info]} or {@code [source][info]})
+     *                          that targets are placed under, one per source
+     * @param networkField      where to put the matched network, or null for nowhere
+     * @param prefixLengthField where to put its prefix length, or null for nowhere
+     */
+    FieldProjection(String[] roots, Map<String, FieldNode> fieldNodeMap,
+                    String networkField, String prefixLengthField) {
+        this.roots = roots;
+        this.networkTarget = networkField == null ? null : new Target(roots, networkField);
+        this.prefixLengthTarget = prefixLengthField == null ? null : new Target(roots, prefixLengthField);
+        List<FieldNode> nodes = new ArrayList<>();
+        List<Integer> parentList = new ArrayList<>();
+        if (fieldNodeMap != null) {
+            flatten(fieldNodeMap, -1, nodes, parentList);
+        }
+        int size = nodes.size();
+        this.parents = new int[size];
+        this.names = new String[size];
+        this.nameBytes = new byte[size][];
+        this.targets = new Target[size];
+        this.subtreeEnds = new int[size];
+        for (int i = 0; i < size; i++) {
+            FieldNode node = nodes.get(i);
+            this.parents[i] = parentList.get(i);
+            this.names[i] = node.getName();
+            this.nameBytes[i] = node.getName().getBytes(StandardCharsets.UTF_8);
+            this.targets[i] = node.getTarget() == null ? null : new Target(roots, node.getTarget());
+        }
+        for (int i = size - 1; i >= 0; i--) {
+            int end = i + 1;
+            while (end < size && parents[end] >= i) {
+                end = subtreeEnds[end];
+            }
+            this.subtreeEnds[i] = end;
+        }
+        this.children = new int[size][];
+        for (int i = 0; i < size; i++) {
+            this.children[i] = childrenOf(i);
+        }
+        this.rootChildren = childrenOf(-1);
+    }
+
+    private int[] childrenOf(int node) {
+        int count = 0;
+        for (int parent : parents) {
+            if (parent == node) {
+                count++;
+            }
+        }
+        int[] result = new int[count];
+        for (int i = 0, j = 0; i < parents.length; i++) {
+            if (parents[i] == node) {
+                result[j++] = i;
+            }
+        }
+        return result;
+    }
+
+    private static void flatten(Map<String, FieldNode> fieldNodeMap, int parent,
+                                List<FieldNode> nodes, List<Integer> parentList) {
+        for (FieldNode node : fieldNodeMap.values()) {
+            int index = nodes.size();
+            nodes.add(node);
+            parentList.add(parent);
+            if (node.getChildMap() != null && !node.getChildMap().isEmpty()) {
+                flatten(node.getChildMap(), index, nodes, parentList);
+            }
+        }
+    }
+
+    /**
+     * With no {@code fields} configured every top-level attribute of the record is exported.
+     */
+    boolean isWildcard() {
+        return names.length == 0;
+    }
+
+    int rootCount() {
+        return roots.length;
+    }
+
+    String root(int index) {
+        return roots[index];
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    int parent(int index) {
+        return parents[index];
+    }
+
+    String name(int index) {
+        return names[index];
+    }
+
+    byte[] nameBytes(int index) {
+        return nameBytes[index];
+    }
+
+    Target target(int index) {
+        return targets[index];
+    }
+
+    /**
+     * Whether results carry the matched network, so that they differ between addresses
+     * of the same record.
+     */
+    boolean hasNetworkOutputs() {
+        return networkTarget != null || prefixLengthTarget != null;
+    }
+
+    Target networkTarget() {
+        return networkTarget;
+    }
+
+    Target prefixLengthTarget() {
+        return prefixLengthTarget;
+    }
+
+    /**
+     * @param index a node, or -1 for the record itself
+     */
+    int[] children(int index) {
+        return index < 0 ? rootChildren : children[index];
+    }
+
+    /**
+     * Fills {@code values} (of at least {@link #size()} elements) with the value
+     * found for each node, or null where the record has nothing there.
+     */
+    void project(Map<String, Object> data, Object[] values) {
+        for (int i = 0; i < names.length; i++) {
+            int parent = parents[i];
+            values[i] = get(parent < 0 ? data : values[parent], names[i]);
+        }
+    }
+
+    /**
+     * Fills the descendants of {@code index} from the value already held in {@code values[index]}.
+     */
+    void projectSubtree(int index, Object[] values) {
+        for (int i = index + 1; i < subtreeEnds[index]; i++) {
+            values[i] = get(values[parents[i]], names[i]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object get(Object container, String name) {
+        return container instanceof Map ? ((Map<String, Object>) container).get(name) : null;
+    }
+
+    Target wildcardTarget(String key) {
+        Target target = wildcardTargets.get(key);
+        if (target == null) {
+            target = new Target(roots, key);
+            if (wildcardTargets.size() < MAX_WILDCARD_TARGETS) {
+                wildcardTargets.put(key, target);
+            }
+        }
+        return target;
+    }
+
+    static final class Target {
+        private final String key;
+        private final String[] references;
+        private final FieldReference[] fieldReferences;
+
+        Target(String[] roots, String key) {
+            this.key = key;
+            this.references = new String[roots.length];
+            this.fieldReferences = new FieldReference[roots.length];
+            for (int i = 0; i < roots.length; i++) {
+                this.references[i] = roots[i] + "[" + key + "]";
+                this.fieldReferences[i] = FieldReference.from(this.references[i]);
+            }
+        }
+
+        /**
+         * The name of the field within its root.
+         */
+        String getKey() {
+            return key;
+        }
+
+        String getReference() {
+            return references[0];
+        }
+
+        void set(Event e, Object value) {
+            set(e, 0, value);
+        }
+
+        void set(Event e, int root, Object value) {
+            if (e instanceof org.logstash.Event) {
+                ((org.logstash.Event) e).setField(fieldReferences[root], value);
+            } else {
+                e.setField(references[root], value);
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.CounterMetric;
+import co.elastic.logstash.api.NamespacedMetric;
+import com.maxmind.db.Metadata;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and sampled stage latencies of one filter. A batch accumulates into
+ * a {@link Batch} of plain fields and is added to the striped totals once, at
+ * the end, so the hot path never touches shared state. When Logstash provides
+ * a metric namespace the totals are published there as well, which puts them
+ * in the node stats API under the filter's id.
+ */
+final class FilterMetrics {
+
+    /** every this many batches is timed stage by stage */
+    static final int SAMPLE_EVERY = 16;
+
+    enum Stage {
+        PARSE, LOOKUP, DECODE, RENDER;
+
+        final String key = name().toLowerCase();
+    }
+
+    private final LongAdder events = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder parseFailures = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Stage.values().length];
+    private final AtomicLong batches = new AtomicLong();
+
+    private final NamespacedMetric metric;
+    private final CounterMetric[] counters;
+    // the reload count last published, shared by every worker thread
+    private final AtomicLong publishedReloads = new AtomicLong(-1);
+
+    /**
+     * @param metric the plugin's namespace, or null when running without Logstash metrics
+     */
+    FilterMetrics(NamespacedMetric metric) {
+        for (Stage stage : Stage.values()) {
+            latencies[stage.ordinal()] = new LatencyHistogram();
+        }
+        this.metric = metric;
+        if (metric == null) {
+            this.counters = null;
+        } else {
+            this.counters = new CounterMetric[]{
+                metric.counter("events"),
+                metric.counter("hits"),
+                metric.counter("misses"),
+                metric.counter("skipped"),
+                metric.counter("parse_failures"),
+                metric.counter("cache_hits"),
+                metric.counter("cache_misses")};
+        }
+    }
+
+    /**
+     * Counts for one call to {@code filter}. Not thread-safe, and not meant to be.
+     */
+    static final class Batch {
+        final boolean sampled;
+        int events;
+        int hits;
+        int misses;
+        int skipped;
+        int parseFailures;
+        int cacheHits;
+        int cacheMisses;
+        final long[] nanos = new long[Stage.values().length];
+        final int[] counts = new int[Stage.values().length];
+
+        Batch(boolean sampled) {
+            this.sampled = sampled;
+        }
+
+        /**
+         * @return a timestamp to pass to {@link #stop}, or 0 when this batch isn't sampled
+         */
+        long start() {
+            return sampled ? System.nanoTime() : 0L;
+        }
+
+        void stop(Stage stage, long start) {
+            if (sampled) {
+                nanos[stage.ordinal()] += System.nanoTime() - start;
+                counts[stage.ordinal()]++;
+            }
+        }
+
+        /**
+         * Adds the counts of a part of this batch that was run separately.
+         */
+        void add(Batch other) {
+            events += other.events;
+            hits += other.hits;
+            misses += other.misses;
+            skipped += other.skipped;
+            parseFailures += other.parseFailures;
+            cacheHits += other.cacheHits;
+            cacheMisses += other.cacheMisses;
+            for (int i = 0; i < nanos.length; i++) {
+                nanos[i] += other.nanos[i];
+                counts[i] += other.counts[i];
+            }
+        }
+    }
+
+    Batch newBatch() {
+        return new Batch(batches.getAndIncrement() % SAMPLE_EVERY == 0);
+    }
+
+    void record(Batch batch, SharedDatabase database) {
+        events.add(batch.events);
+        hits.add(batch.hits);
+        misses.add(batch.misses);
+        skipped.add(batch.skipped);
+        parseFailures.add(batch.parseFailures);
+        cacheHits.add(batch.cacheHits);
+        cacheMisses.add(batch.cacheMisses);
+        if (batch.sampled) {
+            for (Stage stage : Stage.values()) {
+                int count = batch.counts[stage.ordinal()];
+                if (count > 0) {
+                    latencies[stage.ordinal()].record(batch.nanos[stage.ordinal()] / count);
+                }
+            }
+        }
+        if (metric != null) {
+            publish(batch, database);
+        }
+    }
+
+    private void publish(Batch batch, SharedDatabase database) {
+        int[] deltas = {batch.events, batch.hits, batch.misses, batch.skipped,
+            batch.parseFailures, batch.cacheHits, batch.cacheMisses};
+        for (int i = 0; i < deltas.length; i++) {
+            if (deltas[i] != 0) {
+                counters[i].increment(deltas[i]);
+            }
+        }
+        if (batch.cacheHits + batch.cacheMisses > 0) {
+            metric.gauge("cache_hit_ratio", getCacheHitRatio());
+        }
+        if (batch.sampled) {
+            NamespacedMetric latency = metric.namespace("latency");
+            for (Stage stage : Stage.values()) {
+                LatencyHistogram histogram = latencies[stage.ordinal()];
+                NamespacedMetric stageMetric = latency.namespace(stage.key);
+                stageMetric.gauge("p50_nanos", histogram.percentile(0.50));
+                stageMetric.gauge("p99_nanos", histogram.percentile(0.99));
+                stageMetric.gauge("max_nanos", histogram.max());
+            }
+        }
+        long reloads = database.getReloadCount() + database.getReloadFailureCount();
+        long published = publishedReloads.get();
+        if (reloads != published && publishedReloads.compareAndSet(published, reloads)) {
+            NamespacedMetric databaseMetric = metric.namespace("database");
+            databaseMetric.gauge("reloads", database.getReloadCount());
+            databaseMetric.gauge("reload_failures", database.getReloadFailureCount());
+            databaseMetric.gauge("last_reload_duration_millis", database.getLastReloadDurationMillis());
+            // null once the database is closed under a batch still being recorded
+            Metadata metadata = database.getMetadata();
+            if (metadata != null) {
+                databaseMetric.gauge("build_epoch", metadata.getBuildDate().getTime() / 1000);
+            }
+        }
+    }
+
+    long getEvents() {
+        return events.sum();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getSkipped() {
+        return skipped.sum();
+    }
+
+    long getParseFailures() {
+        return parseFailures.sum();
+    }
+
+    long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    double getCacheHitRatio() {
+        long hits = cacheHits.sum();
+        long total = hits + cacheMisses.sum();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    LatencyHistogram getLatency(Stage stage) {
+        return latencies[stage.ordinal()];
+    }
+
+    /**
+     * Power-of-two buckets of nanoseconds. Percentiles are reported as the upper bound
+     * of the bucket they fall in, which is as precise as sampled timings deserve.
+     */
+    static final class LatencyHistogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            int bucket = nanos <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos - 1));
+            buckets.incrementAndGet(bucket);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        long percentile(double percentile) {
+            long count = count();
+            if (count == 0) {
+                return 0L;
+            }
+            long rank = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        long max() {
+            for (int i = BUCKETS - 1; i >= 0; i--) {
+                if (buckets.get(i) > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0L;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.logstashplugins;
+
+import java.util.Arrays;
+
+/**
+ * Parses IPv4 and IPv6 literals straight from a field value into a caller
+ * supplied buffer. Unlike {@link java.net.InetAddress#getByName(String)} this
+ * never falls back to the resolver: anything that is not a literal is rejected.
+ * Also formats networks back into CIDR notation.
+ */
+public final class IpLiteralParser {
+
+    public static final int INVALID = -1;
+
+    private IpLiteralParser() {
+    }
+
+    /**
+     * @param value the raw field value
+     * @param dst   a buffer of at least 16 bytes that receives the address
+     * @return 4 or 16 for an IPv4 or IPv6 literal, {@link #INVALID} otherwise
+     */
+    public static int parse(CharSequence value, byte[] dst) {
+        int end = value.length();
+        for (int i = 0; i < end; i++) {
+            char c = value.charAt(i);
+            if (c == ':') {
+                return parseIPv6(value, end, dst) ? 16 : INVALID;
+            }
+        }
+        return parseIPv4(value, 0, end, dst, 0) ? 4 : INVALID;
+    }
+
+    /**
+     * Rewrites an IPv4-mapped ({@code ::ffff:10.0.0.1}) or IPv4-compatible
+     * ({@code ::10.0.0.1}) IPv6 address as the IPv4 address it carries, so it is
+     * looked up, deduplicated and matched against networks the same way as the
+     * plain IPv4 literal. {@code ::} and {@code ::1} are left as they are.
+     *
+     * @return the length of the address now in {@code address}
+     */
+    static int normalize(byte[] address, int length) {
+        if (length != 16 || ipv4Network(address, 128, address) < 0) {
+            return length;
+        }
+        return 4;
+    }
+
+    /**
+     * The IPv4 network that {@link #normalize} turns the addresses of an IPv6 network
+     * into, by the same rule: a network inside {@code ::ffff:0:0/96} or {@code ::/96}
+     * carries the IPv4 network of its last 32 bits, and a shorter network containing
+     * either of them carries every IPv4 address. {@code ::} and {@code ::1} stay IPv6,
+     * so a network of only those two carries none; a larger compatible network that
+     * contains them still carries {@code 0.0.0.0/31}, which only their mapped forms reach.
+     *
+     * @param ipv4 receives the 4 bytes of the IPv4 network; may be {@code address}
+     * @return the IPv4 prefix length, or -1 when no address of the network is looked up as IPv4
+     */
+    static int ipv4Network(byte[] address, int prefixLength, byte[] ipv4) {
+        // the first 96 bits are 80 zeros and 16 ones when mapped, 96 zeros when compatible
+        int fixed = Math.min(prefixLength, 96);
+        boolean mapped = true;
+        boolean compatible = true;
+        for (int i = 0; i * 8 < fixed; i++) {
+            int mask = fixed - i * 8 >= 8 ? 0xFF : (0xFF << (8 - (fixed - i * 8))) & 0xFF;
+            int bits = address[i] & mask;
+            compatible &= bits == 0;
+            mapped &= bits == (i < 10 ? 0 : mask);
+            if (!mapped && !compatible) {
+                return -1;
+            }
+        }
+        if (prefixLength < 96) {
+            Arrays.fill(ipv4, 0, 4, (byte) 0);
+            return 0;
+        }
+        if (!mapped && prefixLength >= 127
+            && address[12] == 0 && address[13] == 0 && address[14] == 0 && (address[15] & 0xFE) == 0) {
+            return -1;
+        }
+        System.arraycopy(address, 12, ipv4, 0, 4);
+        return prefixLength - 96;
+    }
+
+    private static boolean parseIPv4(CharSequence s, int from, int to, byte[] dst, int offset) {
+        int octets = 0;
+        int i = from;
+        while (true) {
+            int start = i;
+            int value = 0;
+            while (i < to) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                if (++i - start > 3) {
+                    return false;
+                }
+            }
+            if (i == start || value > 255) {
+                return false;
+            }
+            dst[offset + octets++] = (byte) value;
+            if (i == to) {
+                return octets == 4;
+            }
+            if (octets == 4 || s.charAt(i) != '.') {
+                return false;
+            }
+            i++;
+        }
+    }
+
+    private static boolean parseIPv6(CharSequence s, int end, byte[] dst) {
+        // a zone id ("fe80::1%eth0") does not take part in the lookup
+        for (int i = 0; i < end; i++) {
+            if (s.charAt(i) == '%') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 2) {
+            return false;
+        }
+        int groups = 0;
+        int compressAt = -1;
+        int i = 0;
+        if (s.charAt(0) == ':') {
+            if (s.charAt(1) != ':') {
+                return false;
+            }
+            compressAt = 0;
+            i = 2;
+        }
+        while (i < end) {
+            if (groups == 8) {
+                return false;
+            }
+            int start = i;
+            int value = 0;
+            int digit;
+            while (i < end && (digit = hexDigit(s.charAt(i))) >= 0) {
+                value = (value << 4) | digit;
+                if (++i - start > 4) {
+                    return false;
+                }
+            }
+            if (i < end && s.charAt(i) == '.') {
+                // trailing dotted quad, as in "::ffff:10.0.0.1"
+                if (groups > 6 || !parseIPv4(s, start, end, dst, groups * 2)) {
+                    return false;
+                }
+                groups += 2;
+                break;
+            }
+            if (i == start) {
+                return false;
+            }
+            dst[groups * 2] = (byte) (value >>> 8);
+            dst[groups * 2 + 1] = (byte) value;
+            groups++;
+            if (i == end) {
+                break;
+            }
+            if (s.charAt(i++) != ':' || i == end) {
+                return false;
+            }
+            if (s.charAt(i) == ':') {
+                if (compressAt >= 0) {
+                    return false;
+                }
+                compressAt = groups;
+                i++;
+            }
+        }
+        if (compressAt < 0) {
+            return groups == 8;
+        }
+        if (groups == 8) {
+            return false;
+        }
+        int tail = (groups - compressAt) * 2;
+        System.arraycopy(dst, compressAt * 2, dst, 16 - tail, tail);
+        Arrays.fill(dst, compressAt * 2, 16 - tail, (byte) 0);
+        return true;
+    }
+
+    /**
+     * Formats the network of {@code prefixLength} bits around an address, such as
+     * {@code 10.10.0.0/20}. IPv6 networks are written in the canonical form of RFC 5952.
+     */
+    static String formatNetwork(byte[] address, int length, int prefixLength) {
+        byte[] network = Arrays.copyOf(address, length);
+        for (int bit = prefixLength; bit < length * 8; bit++) {
+            network[bit >> 3] &= (byte) ~(0x80 >>> (bit & 7));
+        }
+        StringBuilder out = new StringBuilder(length == 4 ? 18 : 43);
+        if (length == 4) {
+            appendIPv4(network, 0, out);
+        } else {
+            appendIPv6(network, out);
+        }
+        return out.append('/').append(prefixLength).toString();
+    }
+
+    /**
+     * The value of an ASCII hex digit, or -1; unlike {@link Character#digit(char, int)}
+     * this takes no other script's digits.
+     */
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static void appendIPv4(byte[] address, int offset, StringBuilder out) {
+        for (int i = 0; i < 4; i++) {
+            if (i > 0) {
+                out.append('.');
+            }
+            out.append(address[offset + i] & 0xFF);
+        }
+    }
+
+    private static void appendIPv6(byte[] address, StringBuilder out) {
+        int[] groups = new int[8];
+        for (int i = 0; i < 8; i++) {
+            groups[i] = (address[i * 2] & 0xFF) << 8 | (address[i * 2 + 1] & 0xFF);
+        }
+        if (groups[0] == 0 && groups[1] == 0 && groups[2] == 0 && groups[3] == 0 && groups[4] == 0
+            && groups[5] == 0xFFFF) {
+            out.append("::ffff:");
+            appendIPv4(address, 12, out);
+            return;
+        }
+        // the longest run of two or more zero groups is compressed, the first of equal ones
+        int bestStart = -1;
+        int bestLength = 1;
+        for (int i = 0; i < 8; ) {
+            int end = i;
+            while (end < 8 && groups[end] == 0) {
+                end++;
+            }
+            if (end - i > bestLength) {
+                bestStart = i;
+                bestLength = end - i;
+            }
+            i = end == i ? i + 1 : end;
+        }
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                out.append("::");
+                i += bestLength - 1;
+                continue;
+            }
+            if (i > 0 && i != bestStart + bestLength) {
+                out.append(':');
+            }
+            out.append(Integer.toHexString(groups[i]));
+        }
+    }
+}
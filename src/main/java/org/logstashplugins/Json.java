@@ -0,0 +1,357 @@
+package org.logstashplugins;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for {@link BulkEnricher}: one value parsed from a string into
+ * maps, lists, strings, longs (BigIntegers when too large), doubles, booleans and
+ * nulls, and those written back out. Anything else is written as the JSON string
+ * of its {@code toString()}, which is how event timestamps come out.
+ */
+final class Json {
+
+    private final String text;
+    private int position = 0;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code text} isn't exactly one JSON value
+     */
+    static Object parse(String text) {
+        Json json = new Json(text);
+        Object value = json.value();
+        json.whitespace();
+        if (json.position != text.length()) {
+            throw json.error("Unexpected trailing characters");
+        }
+        return value;
+    }
+
+    private Object value() {
+        whitespace();
+        if (position == text.length()) {
+            throw error("Unexpected end of input");
+        }
+        char c = text.charAt(position);
+        switch (c) {
+            case '{':
+                return object();
+            case '[':
+                return array();
+            case '"':
+                return string();
+            case 't':
+                return literal("true", Boolean.TRUE);
+            case 'f':
+                return literal("false", Boolean.FALSE);
+            case 'n':
+                return literal("null", null);
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return number();
+                }
+                throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        position++;
+        whitespace();
+        if (peek() == '}') {
+            position++;
+            return map;
+        }
+        while (true) {
+            whitespace();
+            if (peek() != '"') {
+                throw error("Expected a field name");
+            }
+            String key = string();
+            whitespace();
+            expect(':');
+            map.put(key, value());
+            whitespace();
+            if (peek() == ',') {
+                position++;
+                continue;
+            }
+            expect('}');
+            return map;
+        }
+    }
+
+    private List<Object> array() {
+        List<Object> list = new ArrayList<>();
+        position++;
+        whitespace();
+        if (peek() == ']') {
+            position++;
+            return list;
+        }
+        while (true) {
+            list.add(value());
+            whitespace();
+            if (peek() == ',') {
+                position++;
+                continue;
+            }
+            expect(']');
+            return list;
+        }
+    }
+
+    private String string() {
+        position++;
+        int start = position;
+        while (position < text.length()) {
+            char c = text.charAt(position);
+            if (c == '"') {
+                return text.substring(start, position++);
+            }
+            if (c == '\\' || c < 0x20) {
+                break;
+            }
+            position++;
+        }
+        StringBuilder builder = new StringBuilder(text.substring(start, position));
+        while (position < text.length()) {
+            char c = text.charAt(position++);
+            if (c == '"') {
+                return builder.toString();
+            }
+            if (c < 0x20) {
+                position--;
+                throw error("Unescaped control character in string");
+            }
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (position == text.length()) {
+                break;
+            }
+            char escaped = text.charAt(position++);
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    builder.append(escaped);
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (position + 4 > text.length()) {
+                        throw error("Truncated unicode escape");
+                    }
+                    int unit = 0;
+                    for (int end = position + 4; position < end; position++) {
+                        int digit = hexDigit(text.charAt(position));
+                        if (digit < 0) {
+                            throw error("Invalid unicode escape");
+                        }
+                        unit = unit << 4 | digit;
+                    }
+                    builder.append((char) unit);
+                    break;
+                default:
+                    throw error("Invalid escape '\\" + escaped + "'");
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private Object number() {
+        int start = position;
+        boolean integral = true;
+        if (peek() == '-') {
+            position++;
+        }
+        if (peek() == '0') {
+            position++;
+        } else if (digits() == 0) {
+            throw error("Invalid number '" + text.substring(start, position) + "'");
+        }
+        if (peek() == '.') {
+            integral = false;
+            position++;
+            if (digits() == 0) {
+                throw error("Invalid number '" + text.substring(start, position) + "'");
+            }
+        }
+        if (peek() == 'e' || peek() == 'E') {
+            integral = false;
+            position++;
+            if (peek() == '+' || peek() == '-') {
+                position++;
+            }
+            if (digits() == 0) {
+                throw error("Invalid number '" + text.substring(start, position) + "'");
+            }
+        }
+        String number = text.substring(start, position);
+        try {
+            if (!integral) {
+                return Double.valueOf(number);
+            }
+            BigInteger value = new BigInteger(number);
+            return value.bitLength() < 64 ? (Object) value.longValue() : value;
+        } catch (NumberFormatException ex) {
+            throw error("Invalid number '" + number + "'");
+        }
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private int digits() {
+        int start = position;
+        while (position < text.length() && text.charAt(position) >= '0' && text.charAt(position) <= '9') {
+            position++;
+        }
+        return position - start;
+    }
+
+    private Object literal(String literal, Object value) {
+        if (!text.startsWith(literal, position)) {
+            throw error("Unexpected character '" + text.charAt(position) + "'");
+        }
+        position += literal.length();
+        return value;
+    }
+
+    private void whitespace() {
+        while (position < text.length()) {
+            char c = text.charAt(position);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private char peek() {
+        return position < text.length() ? text.charAt(position) : 0;
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        position++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + position);
+    }
+
+    static void write(Object value, StringBuilder out) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeString(String.valueOf(entry.getKey()), out);
+                out.append(':');
+                write(entry.getValue(), out);
+            }
+            out.append('}');
+        } else if (value instanceof List) {
+            out.append('[');
+            boolean first = true;
+            for (Object element : (List<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                write(element, out);
+            }
+            out.append(']');
+        } else if (value instanceof Boolean || value instanceof Long || value instanceof Integer
+            || value instanceof BigInteger || value instanceof BigDecimal) {
+            out.append(value);
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                out.append("null");
+            } else {
+                out.append(value);
+            }
+        } else {
+            writeString(value.toString(), out);
+        }
+    }
+
+    static String toString(Object value) {
+        StringBuilder out = new StringBuilder();
+        write(value, out);
+        return out.toString();
+    }
+
+    private static void writeString(String value, StringBuilder out) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,195 @@
+package org.logstashplugins;
+
+import java.util.Arrays;
+
+/**
+ * The source addresses of one batch of events, grouped so that each distinct
+ * address is looked up once. Addresses are held as two longs each, and the
+ * lookup order sorts them so that neighbouring lookups walk neighbouring parts
+ * of the search tree.
+ * <p>
+ * Every address added is an item: usually one per event, but an event with
+ * several source fields, or an array-valued one, adds one item per address.
+ */
+final class LookupBatch {
+
+    private final boolean deduplicate;
+    private int[] slots;
+    private int size = 0;
+    private long[] highs;
+    private long[] lows;
+    private byte[] lengths;
+    private int distinct = 0;
+    // open addressing over distinct indexes + 1, 0 meaning empty
+    private int[] table;
+
+    /**
+     * @param capacity    the expected number of items, usually the number of events in the batch
+     * @param deduplicate when false every item gets a slot of its own, in the order added
+     */
+    LookupBatch(int capacity, boolean deduplicate) {
+        this.deduplicate = deduplicate;
+        this.slots = new int[Math.max(capacity, 1)];
+        int initial = Math.max(4, Math.min(capacity, 64));
+        this.highs = new long[initial];
+        this.lows = new long[initial];
+        this.lengths = new byte[initial];
+        this.table = deduplicate ? new int[Integer.highestOneBit(Math.max(capacity, 1)) << 2] : null;
+    }
+
+    /**
+     * Adds the next item's address, or marks the item as having none when
+     * {@code length} is {@link IpLiteralParser#INVALID}.
+     */
+    void add(byte[] address, int length) {
+        if (size == slots.length) {
+            slots = Arrays.copyOf(slots, slots.length * 2);
+        }
+        if (length == IpLiteralParser.INVALID) {
+            slots[size++] = -1;
+            return;
+        }
+        long high = toLong(address, 0, Math.min(length, 8));
+        long low = length == 16 ? toLong(address, 8, 8) : 0L;
+        if (!deduplicate) {
+            slots[size++] = append(high, low, length);
+            return;
+        }
+        if (distinct * 2 >= table.length) {
+            rehash();
+        }
+        int mask = table.length - 1;
+        int bucket = hash(high, low, length) & mask;
+        while (true) {
+            int entry = table[bucket];
+            if (entry == 0) {
+                int index = append(high, low, length);
+                table[bucket] = index + 1;
+                slots[size++] = index;
+                return;
+            }
+            int index = entry - 1;
+            if (highs[index] == high && lows[index] == low && lengths[index] == length) {
+                slots[size++] = index;
+                return;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int index = 0; index < distinct; index++) {
+            int bucket = hash(highs[index], lows[index], lengths[index]) & mask;
+            while (table[bucket] != 0) {
+                bucket = (bucket + 1) & mask;
+            }
+            table[bucket] = index + 1;
+        }
+    }
+
+    private int append(long high, long low, int length) {
+        if (distinct == highs.length) {
+            int grown = highs.length * 2;
+            highs = Arrays.copyOf(highs, grown);
+            lows = Arrays.copyOf(lows, grown);
+            lengths = Arrays.copyOf(lengths, grown);
+        }
+        highs[distinct] = high;
+        lows[distinct] = low;
+        lengths[distinct] = (byte) length;
+        return distinct++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the distinct address of an item, or -1 if it had none
+     */
+    int slot(int item) {
+        return slots[item];
+    }
+
+    int distinct() {
+        return distinct;
+    }
+
+    /**
+     * Copies a distinct address into {@code dst}.
+     *
+     * @return its length, 4 or 16
+     */
+    int address(int index, byte[] dst) {
+        int length = lengths[index];
+        fromLong(highs[index], dst, 0, Math.min(length, 8));
+        if (length == 16) {
+            fromLong(lows[index], dst, 8, 8);
+        }
+        return length;
+    }
+
+    /**
+     * The distinct addresses, IPv4 before IPv6 and each in ascending order.
+     */
+    int[] lookupOrder() {
+        int[] order = new int[distinct];
+        for (int i = 0; i < distinct; i++) {
+            order[i] = i;
+        }
+        if (deduplicate && distinct > 1) {
+            sort(order, new int[distinct], 0, distinct);
+        }
+        return order;
+    }
+
+    private void sort(int[] order, int[] scratch, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(order, scratch, from, middle);
+        sort(order, scratch, middle, to);
+        if (compare(order[middle - 1], order[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, scratch, from, to - from);
+        for (int i = from, left = from, right = middle; i < to; i++) {
+            if (right >= to || (left < middle && compare(scratch[left], scratch[right]) <= 0)) {
+                order[i] = scratch[left++];
+            } else {
+                order[i] = scratch[right++];
+            }
+        }
+    }
+
+    private int compare(int a, int b) {
+        if (lengths[a] != lengths[b]) {
+            return lengths[a] - lengths[b];
+        }
+        int high = Long.compareUnsigned(highs[a], highs[b]);
+        return high != 0 ? high : Long.compareUnsigned(lows[a], lows[b]);
+    }
+
+    private static int hash(long high, long low, int length) {
+        long h = (high * 0x9E3779B97F4A7C15L) ^ (low * 0xC2B2AE3D27D4EB4FL) ^ length;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long toLong(byte[] bytes, int from, int count) {
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            value = (value << 8) | (bytes[from + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void fromLong(long value, byte[] dst, int from, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            dst[from + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.logstashplugins;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The fork-join pool that large batches are looked up on, shared by every
+ * filter in the JVM so that the number of lookup threads stays bounded by the
+ * number of processors no matter how many filters and pipeline workers there
+ * are. Created on first use; its threads are daemons and idle ones exit on
+ * their own, so it never needs closing.
+ */
+final class LookupPool {
+
+    private static final AtomicInteger threads = new AtomicInteger();
+
+    private LookupPool() {
+    }
+
+    private static final class Holder {
+        static final ForkJoinPool POOL = new ForkJoinPool(
+            Runtime.getRuntime().availableProcessors(),
+            pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("mmdb-lookup-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            null, false);
+    }
+
+    static ForkJoinPool get() {
+        return Holder.POOL;
+    }
+
+    static int parallelism() {
+        return get().getParallelism();
+    }
+}
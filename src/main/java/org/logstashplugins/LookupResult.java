@@ -0,0 +1,124 @@
+package org.logstashplugins;
+
+import org.logstash.Cloner;
+import org.logstash.Valuefier;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The projected fields of one record, ready to be written to events: the
+ * target of every field paired with its value. Also keeps one address that
+ * led to the record, so a cached result can be looked up again in a reloaded
+ * database.
+ * <p>
+ * Values are converted into event values once, when the result is made, so that
+ * writing a nested map into an event that shares the result with thousands of
+ * others is a copy of its structure rather than a conversion of every string in
+ * it. {@link #valueFor(int)} hands out that copy; the values held here must never
+ * reach an event themselves.
+ */
+final class LookupResult {
+
+    final FieldProjection.Target[] targets;
+    final Object[] values;
+    final byte[] address;
+    final int prefixLength;
+
+    private LookupResult(FieldProjection.Target[] targets, Object[] values, byte[] address, int prefixLength) {
+        this.targets = targets;
+        this.values = values;
+        this.address = address;
+        this.prefixLength = prefixLength;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Valuefier.convert(values[i]);
+        }
+    }
+
+    /**
+     * The value of field {@code index} for one event. Maps and lists are copied,
+     * strings share their bytes until either copy is modified, and everything else
+     * is immutable and shared as it is.
+     */
+    Object valueFor(int index) {
+        return Cloner.deep(values[index]);
+    }
+
+    /**
+     * Whether {@code address} lies in the network of this result. With network outputs a
+     * result only belongs to that network, rather than to every address of its record.
+     */
+    boolean covers(byte[] address, int length) {
+        if (length != this.address.length) {
+            return false;
+        }
+        int bytes = prefixLength >> 3;
+        for (int i = 0; i < bytes; i++) {
+            if (address[i] != this.address[i]) {
+                return false;
+            }
+        }
+        int bits = prefixLength & 7;
+        return bits == 0 || ((address[bytes] ^ this.address[bytes]) & (0xFF00 >>> bits)) == 0;
+    }
+
+    /**
+     * @param address      the 4 or 16 byte address that was looked up, copied
+     * @param prefixLength the prefix length of the network it was found in
+     */
+    static LookupResult fromProjection(FieldProjection projection, Object[] projected, byte[] address, int length,
+                                       int prefixLength) {
+        int count = networkOutputs(projection);
+        for (int i = 0; i < projection.size(); i++) {
+            if (projection.target(i) != null && projected[i] != null) {
+                count++;
+            }
+        }
+        FieldProjection.Target[] targets = new FieldProjection.Target[count];
+        Object[] values = new Object[count];
+        int j = addNetwork(projection, targets, values, address, length, prefixLength);
+        for (int i = 0; j < count; i++) {
+            if (projection.target(i) != null && projected[i] != null) {
+                targets[j] = projection.target(i);
+                values[j++] = projected[i];
+            }
+        }
+        return new LookupResult(targets, values, Arrays.copyOf(address, length), prefixLength);
+    }
+
+    static LookupResult fromRecord(FieldProjection projection, Map<String, Object> record, byte[] address, int length,
+                                   int prefixLength) {
+        int count = networkOutputs(projection) + record.size();
+        FieldProjection.Target[] targets = new FieldProjection.Target[count];
+        Object[] values = new Object[count];
+        int i = addNetwork(projection, targets, values, address, length, prefixLength);
+        for (Map.Entry<String, Object> field : record.entrySet()) {
+            targets[i] = projection.wildcardTarget(field.getKey());
+            values[i++] = field.getValue();
+        }
+        return new LookupResult(targets, values, Arrays.copyOf(address, length), prefixLength);
+    }
+
+    private static int networkOutputs(FieldProjection projection) {
+        return (projection.networkTarget() == null ? 0 : 1) + (projection.prefixLengthTarget() == null ? 0 : 1);
+    }
+
+    /**
+     * Puts the network outputs first, so that a record field of the same name wins.
+     *
+     * @return the number of outputs added
+     */
+    private static int addNetwork(FieldProjection projection, FieldProjection.Target[] targets, Object[] values,
+                                  byte[] address, int length, int prefixLength) {
+        int count = 0;
+        if (projection.networkTarget() != null) {
+            targets[count] = projection.networkTarget();
+            values[count++] = IpLiteralParser.formatNetwork(address, length, prefixLength);
+        }
+        if (projection.prefixLengthTarget() != null) {
+            targets[count] = projection.prefixLengthTarget();
+            values[count++] = (long) prefixLength;
+        }
+        return count;
+    }
+}
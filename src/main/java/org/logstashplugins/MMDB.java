@@ -1,18 +1,12 @@
 package org.logstashplugins;
 
 import co.elastic.logstash.api.*;
-import com.maxmind.db.CHMCache;
 import com.maxmind.db.Metadata;
-import com.maxmind.db.NoCache;
-import com.maxmind.db.Reader;
+import org.apache.logging.log4j.Logger;
 
 import java.io.File;
-import java.io.IOException;
 import java.net.InetAddress;
-import java.nio.file.*;
 import java.util.*;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,28 +15,125 @@ import java.util.regex.Pattern;
 public class MMDB implements Filter {
 
     public static final PluginConfigSpec<String> SOURCE_CONFIG =
-        PluginConfigSpec.requiredStringSetting("source");
+        PluginConfigSpec.stringSetting("source");
     public static final PluginConfigSpec<String> TARGET_CONFIG =
-        PluginConfigSpec.requiredStringSetting("target");
+        PluginConfigSpec.stringSetting("target");
+    public static final PluginConfigSpec<Map<String, Object>> SOURCES_CONFIG =
+        PluginConfigSpec.hashSetting("sources");
     public static final PluginConfigSpec<String> DATABASE_FILENAME_CONFIG =
         PluginConfigSpec.requiredStringSetting("database");
     public static final PluginConfigSpec<Long> CACHE_SIZE_CONFIG =
         PluginConfigSpec.numSetting("cache_size", 0L);
     public static final PluginConfigSpec<List<Object>> FIELDS_CONFIG =
         PluginConfigSpec.arraySetting("fields");
+    public static final PluginConfigSpec<String> NETWORK_FIELD_CONFIG =
+        PluginConfigSpec.stringSetting("network_field");
+    public static final PluginConfigSpec<String> PREFIX_LENGTH_FIELD_CONFIG =
+        PluginConfigSpec.stringSetting("prefix_length_field");
+    public static final PluginConfigSpec<String> CACHE_EVICTION_CONFIG =
+        PluginConfigSpec.stringSetting("cache_eviction", "lru");
+    public static final PluginConfigSpec<Long> NEGATIVE_CACHE_SIZE_CONFIG =
+        PluginConfigSpec.numSetting("negative_cache_size", 0L);
+    public static final PluginConfigSpec<List<Object>> SKIP_NETWORKS_CONFIG =
+        PluginConfigSpec.arraySetting("skip_networks");
+    public static final PluginConfigSpec<String> FILE_MODE_CONFIG =
+        PluginConfigSpec.stringSetting("file_mode", "mmap");
+    public static final PluginConfigSpec<Boolean> PRELOAD_DATABASE_CONFIG =
+        PluginConfigSpec.booleanSetting("preload_database", false);
+    public static final PluginConfigSpec<Long> RANGE_INDEX_MAX_NODES_CONFIG =
+        PluginConfigSpec.numSetting("range_index_max_nodes", 65536L);
+    public static final PluginConfigSpec<Boolean> DEDUPLICATE_BATCHES_CONFIG =
+        PluginConfigSpec.booleanSetting("deduplicate_batches", true);
+    public static final PluginConfigSpec<Long> PARALLEL_LOOKUP_THRESHOLD_CONFIG =
+        PluginConfigSpec.numSetting("parallel_lookup_threshold", 0L);
+    public static final PluginConfigSpec<String> OVERLAY_CONFIG =
+        PluginConfigSpec.stringSetting("overlay");
+    public static final PluginConfigSpec<List<Object>> DATABASES_CONFIG =
+        PluginConfigSpec.arraySetting("databases");
+    public static final PluginConfigSpec<String> CHAIN_MODE_CONFIG =
+        PluginConfigSpec.stringSetting("chain_mode", "merge");
+    public static final PluginConfigSpec<String> WARMUP_SNAPSHOT_CONFIG =
+        PluginConfigSpec.stringSetting("warmup_snapshot");
+    public static final PluginConfigSpec<Long> WARMUP_SIZE_CONFIG =
+        PluginConfigSpec.numSetting("warmup_size", 10000L);
+    public static final PluginConfigSpec<Long> WARMUP_TIME_LIMIT_CONFIG =
+        PluginConfigSpec.numSetting("warmup_time_limit", 30L);
+    public static final PluginConfigSpec<Long> WARMUP_SNAPSHOT_INTERVAL_CONFIG =
+        PluginConfigSpec.numSetting("warmup_snapshot_interval", 300L);
+    public static final PluginConfigSpec<Boolean> RESOLVE_HOSTNAMES_CONFIG =
+        PluginConfigSpec.booleanSetting("resolve_hostnames", false);
 
+    /**
+     * The settings of this plugin, without the common filter ones.
+     */
+    static final List<PluginConfigSpec<?>> SETTINGS = Collections.unmodifiableList(
+        Arrays.<PluginConfigSpec<?>>asList(
+            SOURCE_CONFIG,
+            TARGET_CONFIG,
+            SOURCES_CONFIG,
+            DATABASE_FILENAME_CONFIG,
+            OVERLAY_CONFIG,
+            DATABASES_CONFIG,
+            CHAIN_MODE_CONFIG,
+            FILE_MODE_CONFIG,
+            PRELOAD_DATABASE_CONFIG,
+            CACHE_SIZE_CONFIG,
+            CACHE_EVICTION_CONFIG,
+            NEGATIVE_CACHE_SIZE_CONFIG,
+            SKIP_NETWORKS_CONFIG,
+            RANGE_INDEX_MAX_NODES_CONFIG,
+            DEDUPLICATE_BATCHES_CONFIG,
+            PARALLEL_LOOKUP_THRESHOLD_CONFIG,
+            FIELDS_CONFIG,
+            NETWORK_FIELD_CONFIG,
+            PREFIX_LENGTH_FIELD_CONFIG,
+            WARMUP_SNAPSHOT_CONFIG,
+            WARMUP_SIZE_CONFIG,
+            WARMUP_TIME_LIMIT_CONFIG,
+            WARMUP_SNAPSHOT_INTERVAL_CONFIG,
+            RESOLVE_HOSTNAMES_CONFIG));
 
-    private final static AtomicReference<Reader> readerRef = new AtomicReference<>();
-    private static WatchService watchService;
-    public static long lastModifiedTime = 0L;
+    /**
+     * When a database was last reloaded, by any filter in this JVM.
+     *
+     * @deprecated each filter now has its own database; use {@link #getLastModifiedTime()}
+     */
+    @Deprecated
+    public static volatile long lastModifiedTime = 0L;
+
+    /**
+     * Keeps the deprecated {@link #lastModifiedTime} up to date for callers that still read it.
+     */
+    @SuppressWarnings("deprecation")
+    static void recordReload(long modifiedTime) {
+        lastModifiedTime = modifiedTime;
+    }
 
     private String id;
     private String sourceField;
     private String targetField;
+    private String[] sourceFields;
+    private String[] targetFields;
+    private boolean multiSource = false;
     private String databaseFilename;
     private String failureTag = "_mmdb_lookup_failure";
     private Map<String, FieldNode> fieldNodeMap;
+    private String networkField;
+    private String prefixLengthField;
     private int cacheSize = 0;
+    private ResultCache.Eviction cacheEviction;
+    private int negativeCacheSize = 0;
+    private int rangeIndexMaxNodes = 0;
+    private PrefixTrie<Boolean> skipNetworks;
+    private boolean firstMatch = false;
+    private boolean deduplicateBatches = true;
+    private int parallelLookupThreshold = 0;
+    private boolean resolveHostnames = false;
+    private Logger logger;
+    private FilterMetrics metrics;
+    private WarmupSnapshot warmupSnapshot;
+    private OverlayDatabase overlay;
+    private final List<DatabaseLookup> lookups = new ArrayList<>();
 
     private static final Pattern FIELD_PATTERN = Pattern.compile("(?<before>\\w+(\\.\\w+)*)(\\s*:\\s*(?<after>\\w+))?");
 
@@ -58,179 +149,489 @@ public class MMDB implements Filter {
             throw new IllegalStateException("Must specify database filename");
         }
 
-        if (this.sourceField == null) {
-            throw new IllegalStateException("Must specify source field");
-        }
-
-        if (this.targetField == null) {
-            throw new IllegalStateException("Must specify target field");
-        }
-
-        List<Object> fieldsTmp = config.get(FIELDS_CONFIG);
-        if (fieldsTmp != null) {
-            this.fieldNodeMap = new HashMap<>();
-            for (Object o : fieldsTmp) {
-                if (o instanceof String) {
-                    Matcher matcher;
-                    if ((matcher = FIELD_PATTERN.matcher((String) o)).matches()) {
-                        String before = matcher.group("before");
-                        String after_tmp = matcher.group("after");
-                        String after = after_tmp == null || after_tmp.isEmpty() ? before : after_tmp;
-                        //split every nested filed like ["a","a.b.c:bb","e.f:dd"]
-                        String[] fs = before.split("\\.");
-                        Map<String, FieldNode> fieldNodeMap = this.fieldNodeMap;
-                        for (int i = 0; i < fs.length; i++) {
-                            FieldNode node = fieldNodeMap.get(fs[i]);
-                            if (node == null) {
-                                node = new FieldNode(fs[i], i == fs.length - 1 ? after : null);
-                                fieldNodeMap.put(fs[i], node);
-                            } else if (i == fs.length - 1) {
-                                node.setTarget(after);
-                            }
-                            fieldNodeMap = fieldNodeMap.get(fs[i]).getChildMap();
-                        }
-                        continue;
-                    }
+        Map<String, Object> sourcesTmp = config.get(SOURCES_CONFIG);
+        if (sourcesTmp != null && !sourcesTmp.isEmpty()) {
+            if (this.sourceField != null || this.targetField != null) {
+                throw new IllegalStateException("Use either source and target, or sources");
+            }
+            this.multiSource = true;
+            this.sourceFields = new String[sourcesTmp.size()];
+            this.targetFields = new String[sourcesTmp.size()];
+            int i = 0;
+            for (Map.Entry<String, Object> entry : sourcesTmp.entrySet()) {
+                if (!(entry.getValue() instanceof String)) {
+                    throw new IllegalStateException("Each source in sources must map to a target field");
                 }
-                throw new IllegalStateException("Fields config must only be a list of strings");
+                this.sourceFields[i] = entry.getKey();
+                this.targetFields[i] = (String) entry.getValue();
+                i++;
+            }
+        } else {
+            if (this.sourceField == null) {
+                throw new IllegalStateException("Must specify source field");
+            }
+
+            if (this.targetField == null) {
+                throw new IllegalStateException("Must specify target field");
             }
+            this.sourceFields = new String[]{this.sourceField};
+            this.targetFields = new String[]{this.targetField};
         }
 
+        this.fieldNodeMap = parseFields(config.get(FIELDS_CONFIG));
+        this.networkField = config.get(NETWORK_FIELD_CONFIG);
+        this.prefixLengthField = config.get(PREFIX_LENGTH_FIELD_CONFIG);
+
         this.cacheSize = config.get(CACHE_SIZE_CONFIG).intValue();
         if(this.cacheSize < 0) {
             throw new IllegalStateException("Cache size must be either >0 to use a cache, or =0 to use no cache");
         }
+        this.cacheEviction = ResultCache.Eviction.parse(config.get(CACHE_EVICTION_CONFIG));
+
+        this.negativeCacheSize = config.get(NEGATIVE_CACHE_SIZE_CONFIG).intValue();
+        if (this.negativeCacheSize < 0) {
+            throw new IllegalStateException("Negative cache size must be either >0 to use a cache, or =0 to use no cache");
+        }
 
-        File databaseFile = new File(this.databaseFilename);
+        this.rangeIndexMaxNodes = config.get(RANGE_INDEX_MAX_NODES_CONFIG).intValue();
+        if (this.rangeIndexMaxNodes < 0) {
+            throw new IllegalStateException("Range index max nodes must be either >0 to index small databases, or =0 to never index");
+        }
+
+        List<Object> skipNetworksTmp = config.get(SKIP_NETWORKS_CONFIG);
+        if (skipNetworksTmp != null && !skipNetworksTmp.isEmpty()) {
+            this.skipNetworks = new PrefixTrie<>();
+            for (Object o : skipNetworksTmp) {
+                try {
+                    this.skipNetworks.insert(String.valueOf(o), Boolean.TRUE);
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalStateException("Invalid network in skip_networks: " + o);
+                }
+            }
+        }
+
+        this.deduplicateBatches = config.get(DEDUPLICATE_BATCHES_CONFIG);
+        this.parallelLookupThreshold = config.get(PARALLEL_LOOKUP_THRESHOLD_CONFIG).intValue();
+        if (this.parallelLookupThreshold < 0) {
+            throw new IllegalStateException("Parallel lookup threshold must be either >0 to look up large batches in parallel, or =0 to always look up serially");
+        }
+        this.resolveHostnames = config.get(RESOLVE_HOSTNAMES_CONFIG);
+        this.logger = context.getLogger(this);
+        this.metrics = new FilterMetrics(pluginMetric(context));
+        if (this.rangeIndexMaxNodes > 0 && (this.cacheSize > 0 || this.negativeCacheSize > 0)) {
+            // the range index answers lookups without the caches, which would then never be used
+            this.logger.info("mmdb filter " + this.id + " has cache_size or negative_cache_size set, "
+                + "small databases are not range indexed");
+            this.rangeIndexMaxNodes = 0;
+        }
+
+        DatabaseReader.FileMode fileMode = DatabaseReader.FileMode.parse(config.get(FILE_MODE_CONFIG));
+        boolean preload = config.get(PRELOAD_DATABASE_CONFIG);
+
+        String chainMode = config.get(CHAIN_MODE_CONFIG);
+        if (!"merge".equalsIgnoreCase(chainMode) && !"first_match".equalsIgnoreCase(chainMode)) {
+            throw new IllegalStateException("Chain mode must be one of merge or first_match");
+        }
+        this.firstMatch = "first_match".equalsIgnoreCase(chainMode);
+
+        String overlayFilename = config.get(OVERLAY_CONFIG);
+        if (overlayFilename != null) {
+            try {
+                this.overlay = new OverlayDatabase(new File(overlayFilename));
+                this.overlay.startWatching();
+            } catch (java.io.IOException ex) {
+                close();
+                throw new IllegalStateException("Overlay does not appear to be a valid overlay: " + ex.getMessage(), ex);
+            }
+        }
+
+        List<Object> databasesTmp = config.get(DATABASES_CONFIG);
         try {
-            Reader databaseReader = new Reader(databaseFile, cacheSize > 0 ? new CHMCache(cacheSize) : NoCache.getInstance());
-            readerRef.set(databaseReader);
-            watchService = FileSystems.getDefault().newWatchService();
-            Path filePath = databaseFile.toPath();
-            filePath.getParent().register(watchService, StandardWatchEventKinds.ENTRY_MODIFY);
-            Executors.newSingleThreadExecutor().execute(() -> {
-                while (true) {
-                    try {
-                        WatchKey watchKey = watchService.take();
-                        if (watchKey != null) {
-                            List<WatchEvent<?>> events = watchKey.pollEvents();
-                            for (WatchEvent<?> event : events) {
-                                if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
-                                    ((WatchEvent<Path>) event).context().equals(filePath.getFileName())) {
-                                    try {
-                                        Reader old = readerRef.get();
-                                        Reader reader = new Reader(databaseFile, cacheSize > 0 ? new CHMCache(cacheSize) : NoCache.getInstance());
-                                        readerRef.set(reader);
-                                        old.close();
-                                        lastModifiedTime = System.currentTimeMillis();
-                                        context.getLogger(MMDB.this).info("mmdb reload:" + reader.getMetadata().toString());
-                                    } catch (Exception ex) {
-                                        context.getLogger(MMDB.this).error("mmdb reload failed", ex);
-                                    }
-                                }
-                            }
-                            boolean valid = watchKey.reset();
-                            if (!valid) {
-                                break;
-                            }
-                        }
-                    } catch (InterruptedException e) {
-                        return;
-                    } catch (Throwable e) {
-                        context.getLogger(MMDB.this).error("mmdb watch error", e);
+            addDatabase(this.databaseFilename, null, this.fieldNodeMap, fileMode, preload, this.overlay);
+            if (databasesTmp != null) {
+                for (Object o : databasesTmp) {
+                    if (!(o instanceof Map) || !(((Map<?, ?>) o).get("database") instanceof String)) {
+                        throw new IllegalStateException("Each entry of databases must be a hash with a database path");
+                    }
+                    Map<?, ?> entry = (Map<?, ?>) o;
+                    Object target = entry.get("target");
+                    Object fields = entry.get("fields");
+                    if (fields != null && !(fields instanceof List)) {
+                        throw new IllegalStateException("Fields config must only be a list of strings");
                     }
+                    @SuppressWarnings("unchecked")
+                    List<Object> fieldList = (List<Object>) fields;
+                    addDatabase((String) entry.get("database"), target == null ? null : String.valueOf(target),
+                        parseFields(fieldList), fileMode, preload, this.overlay);
                 }
-            });
+            }
+        } catch (RuntimeException ex) {
+            close();
+            throw ex;
+        }
+
+        String snapshotFilename = config.get(WARMUP_SNAPSHOT_CONFIG);
+        if (snapshotFilename != null) {
+            int warmupSize = config.get(WARMUP_SIZE_CONFIG).intValue();
+            long timeLimit = config.get(WARMUP_TIME_LIMIT_CONFIG);
+            long interval = config.get(WARMUP_SNAPSHOT_INTERVAL_CONFIG);
+            if (this.cacheSize == 0 && this.negativeCacheSize == 0) {
+                close();
+                throw new IllegalStateException("Warmup snapshot requires cache_size or negative_cache_size");
+            }
+            if (warmupSize <= 0 || timeLimit <= 0 || interval <= 0) {
+                close();
+                throw new IllegalStateException("Warmup size, time limit and snapshot interval must be >0");
+            }
+            this.warmupSnapshot = new WarmupSnapshot(new File(snapshotFilename), warmupSize,
+                timeLimit * 1000, interval, this.lookups, this.logger);
+            this.warmupSnapshot.start();
+        }
+    }
+
+    /**
+     * @param target  the database's own target, or null to write into the target of each source
+     * @param overlay looked at before the database, or null
+     */
+    private void addDatabase(String filename, String target, Map<String, FieldNode> fields,
+                             DatabaseReader.FileMode fileMode, boolean preload, OverlayDatabase overlay) {
+        String[] roots = new String[this.targetFields.length];
+        for (int s = 0; s < roots.length; s++) {
+            if (target == null) {
+                roots[s] = "[" + this.targetFields[s] + "]";
+            } else if (this.multiSource) {
+                // each source keeps its own target, so a database's target nests inside it
+                roots[s] = "[" + this.targetFields[s] + "][" + target + "]";
+            } else {
+                roots[s] = "[" + target + "]";
+            }
+        }
+        FieldProjection projection = new FieldProjection(roots, fields, this.networkField, this.prefixLengthField);
+        DatabaseLookup lookup;
+        try {
+            lookup = new DatabaseLookup(new File(filename), projection, fileMode, preload,
+                this.cacheSize, this.cacheEviction, this.negativeCacheSize, this.rangeIndexMaxNodes, overlay);
         } catch (java.io.IOException ex) {
             throw new IllegalStateException("Database does not appear to be a valid database", ex);
         }
-        context.getLogger(this).info(readerRef.get().getMetadata().toString());
+        this.lookups.add(lookup);
+        this.logger.info(lookup.getMetadata().toString());
     }
 
-    public Metadata getMetadata() {
-        if (null == readerRef.get()) {
+    /**
+     * @return null (all fields to be exported) when no fields are configured
+     */
+    private static Map<String, FieldNode> parseFields(List<Object> fieldsTmp) {
+        if (fieldsTmp == null) {
             return null;
         }
-        return readerRef.get().getMetadata();
-    }
-
-    // This assumes that the fields in the MMDB are a flat structure
-    private void renderMapIntoEvent(Map<String, FieldNode> fieldNodeMap,
-                                    Map<String, Object> data,
-                                    Event e) {
-        if (fieldNodeMap != null && !fieldNodeMap.isEmpty()) {
-            //support nested map
-            for (Map.Entry<String, FieldNode> entry : fieldNodeMap.entrySet()) {
-                FieldNode fieldNode = entry.getValue();
-                Object value = data.get(fieldNode.getName());
-                if (value != null) {
-                    if (fieldNode.getTarget() != null) {
-                        setField(e, fieldNode.getTarget(), value);
-                    }
-                    if (fieldNode.getChildMap() != null && !fieldNode.getChildMap().isEmpty()
-                        && value instanceof Map) {
-                        renderMapIntoEvent(fieldNode.getChildMap(), (Map<String, Object>) value, e);
+        Map<String, FieldNode> fieldNodeMap = new HashMap<>();
+        for (Object o : fieldsTmp) {
+            if (o instanceof String) {
+                Matcher matcher;
+                if ((matcher = FIELD_PATTERN.matcher((String) o)).matches()) {
+                    String before = matcher.group("before");
+                    String after_tmp = matcher.group("after");
+                    String after = after_tmp == null || after_tmp.isEmpty() ? before : after_tmp;
+                    //split every nested filed like ["a","a.b.c:bb","e.f:dd"]
+                    String[] fs = before.split("\\.");
+                    Map<String, FieldNode> nodes = fieldNodeMap;
+                    for (int i = 0; i < fs.length; i++) {
+                        FieldNode node = nodes.get(fs[i]);
+                        if (node == null) {
+                            node = new FieldNode(fs[i], i == fs.length - 1 ? after : null);
+                            nodes.put(fs[i], node);
+                        } else if (i == fs.length - 1) {
+                            node.setTarget(after);
+                        }
+                        nodes = nodes.get(fs[i]).getChildMap();
                     }
+                    continue;
                 }
             }
-        } else {
-            for (Map.Entry<String, Object> field : data.entrySet()) {
-                setField(e, field.getKey(), field.getValue());
+            throw new IllegalStateException("Fields config must only be a list of strings");
+        }
+        return fieldNodeMap;
+    }
+
+    /**
+     * Metadata of the first database.
+     */
+    public Metadata getMetadata() {
+        return this.lookups.isEmpty() ? null : this.lookups.get(0).getMetadata();
+    }
+
+    /**
+     * When the (first) database of this filter was last reloaded, or 0 if it never was.
+     */
+    public long getLastModifiedTime() {
+        SharedDatabase database = this.lookups.isEmpty() ? null : this.lookups.get(0).getDatabase();
+        return database == null ? 0L : database.getLastModifiedTime();
+    }
+
+    /**
+     * When a change of the (first) database file was last looked at, including
+     * changes that were skipped because the content was the same.
+     */
+    public long getLastCheckedTime() {
+        SharedDatabase database = this.lookups.isEmpty() ? null : this.lookups.get(0).getDatabase();
+        return database == null ? 0L : database.getLastCheckedTime();
+    }
+
+    /**
+     * The top-level fields this filter writes into, in configuration order.
+     */
+    Collection<String> getTopLevelTargets() {
+        Set<String> fields = new LinkedHashSet<>();
+        for (DatabaseLookup lookup : this.lookups) {
+            FieldProjection projection = lookup.getProjection();
+            for (int r = 0; r < projection.rootCount(); r++) {
+                String root = projection.root(r);
+                fields.add(root.substring(1, root.indexOf(']')));
             }
         }
+        return fields;
+    }
+
+    FilterMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    OverlayDatabase getOverlay() {
+        return this.overlay;
     }
 
-    private void setField(Event e, String key, Object value) {
-        key = "[" + this.targetField + "][" + key + "]";
-        if (value instanceof String) {
-            e.setField(key, value);
-        } else if (value instanceof Long) {
-            e.setField(key, value);
-        } else if (value instanceof Float) {
-            e.setField(key, value);
-        } else if (value instanceof Boolean) {
-            e.setField(key, value);
+    WarmupSnapshot getWarmupSnapshot() {
+        return this.warmupSnapshot;
+    }
+
+    /**
+     * Values come from a decoder made for events and are already converted, so every one of
+     * them can be set as it is.
+     */
+    private void renderResultIntoEvent(LookupResult result, Event e, int root) {
+        for (int i = 0; i < result.targets.length; i++) {
+            result.targets[i].set(e, root, result.valueFor(i));
         }
-        //support nested map or list
-        else if (value instanceof Map
-            || value instanceof List) {
-            e.setField(key, value);
+    }
+
+    /**
+     * The metric namespace of this filter, or null when the context has none to give,
+     * as when the filter is created outside a pipeline without a metric. logstash-core's
+     * context then fails with a NullPointerException, as it namespaces a null metric;
+     * any other failure is a real one and propagates.
+     */
+    private NamespacedMetric pluginMetric(Context context) {
+        try {
+            return context.getMetric(this);
+        } catch (NullPointerException ex) {
+            this.logger.debug("mmdb filter " + this.id + " has no metric namespace, metrics are kept locally only", ex);
+            return null;
         }
+    }
 
-        // FIXME: Should we support lists and objects?
-        else {
-            e.tag(this.failureTag);
+    private int parseAddress(Object value, byte[] buffer) throws java.net.UnknownHostException {
+        if (value == null) {
+            return IpLiteralParser.INVALID;
+        }
+        CharSequence chars = value instanceof CharSequence ? (CharSequence) value : value.toString();
+        int length = IpLiteralParser.parse(chars, buffer);
+        if (length == IpLiteralParser.INVALID && this.resolveHostnames) {
+            byte[] resolved = InetAddress.getByName(chars.toString()).getAddress();
+            System.arraycopy(resolved, 0, buffer, 0, resolved.length);
+            length = resolved.length;
         }
+        return IpLiteralParser.normalize(buffer, length);
     }
 
     @Override
     public Collection<Event> filter(Collection<Event> events, FilterMatchListener matchListener) {
+        FilterMetrics.Batch stats = this.metrics.newBatch();
+        byte[] addressBuffer = new byte[16];
+        int sources = this.sourceFields.length;
+        LookupBatch batch = new LookupBatch(events.size() * sources, this.deduplicateBatches);
+        // the items of source s of the n-th event are itemEnds[n * sources + s - 1] until itemEnds[n * sources + s]
+        int[] itemEnds = new int[events.size() * sources];
+        boolean[] arrays = new boolean[events.size() * sources];
+        int field = 0;
         for (Event e : events) {
-            try {
-                @SuppressWarnings("unchecked")
-                Map<String, Object> recordData = readerRef.get().get(
-                    InetAddress.getByName(
-                        e.getField(this.sourceField).toString()),
-                    Map.class);
+            long start = stats.start();
+            for (int s = 0; s < sources; s++, field++) {
+                Object value = e.getField(this.sourceFields[s]);
+                if (value instanceof List) {
+                    arrays[field] = true;
+                    for (Object element : (List<?>) value) {
+                        addAddress(batch, element, addressBuffer);
+                    }
+                } else if (value != null || !this.multiSource) {
+                    addAddress(batch, value, addressBuffer);
+                }
+                itemEnds[field] = batch.size();
+            }
+            stats.stop(FilterMetrics.Stage.PARSE, start);
+        }
 
-                if (null == recordData) {
-                    e.tag(this.failureTag);
+        int[] order = batch.lookupOrder();
+        boolean[] pending = new boolean[batch.distinct()];
+        boolean[] skipped = new boolean[batch.distinct()];
+        for (int index : order) {
+            int length = batch.address(index, addressBuffer);
+            skipped[index] = this.skipNetworks != null && this.skipNetworks.get(addressBuffer, length) != null;
+            pending[index] = !skipped[index];
+        }
+        LookupResult[][] results = new LookupResult[this.lookups.size()][];
+        boolean parallel = this.parallelLookupThreshold > 0 && batch.distinct() >= this.parallelLookupThreshold;
+        for (int d = 0; d < results.length; d++) {
+            results[d] = parallel
+                ? this.lookups.get(d).lookupParallel(batch, order, pending, stats)
+                : this.lookups.get(d).lookup(batch, order, pending, addressBuffer, stats);
+            if (this.firstMatch) {
+                for (int index = 0; index < pending.length; index++) {
+                    pending[index] &= results[d][index] == null;
+                }
+            }
+        }
+
+        field = 0;
+        int item = 0;
+        for (Event e : events) {
+            stats.events++;
+            boolean matched = false;
+            boolean failed = false;
+            for (int s = 0; s < sources; s++, field++) {
+                int from = item;
+                item = itemEnds[field];
+                if (arrays[field]) {
+                    long start = stats.start();
+                    int outcome = renderArray(e, s, batch, from, item, skipped, results, stats);
+                    stats.stop(FilterMetrics.Stage.RENDER, start);
+                    matched |= outcome > 0;
+                    failed |= outcome < 0;
+                    continue;
+                }
+                if (from == item) {
+                    continue;
+                }
+                int slot = batch.slot(from);
+                if (slot < 0) {
+                    stats.parseFailures++;
+                    failed = true;
                     continue;
                 }
+                if (skipped[slot]) {
+                    stats.skipped++;
+                    failed = true;
+                    continue;
+                }
+                long start = stats.start();
+                boolean found = false;
+                for (LookupResult[] databaseResults : results) {
+                    LookupResult lookupResult = databaseResults[slot];
+                    if (lookupResult != null) {
+                        found = true;
+                        renderResultIntoEvent(lookupResult, e, s);
+                    }
+                }
+                stats.stop(FilterMetrics.Stage.RENDER, start);
+                if (!found) {
+                    stats.misses++;
+                    failed = true;
+                    continue;
+                }
+                stats.hits++;
+                matched = true;
+            }
+            if (!matched) {
+                if (failed) {
+                    e.tag(this.failureTag);
+                }
+                continue;
+            }
 
-                renderMapIntoEvent(this.fieldNodeMap, recordData, e);
+            matchListener.filterMatched(e);
+        }
+        this.metrics.record(stats, this.lookups.get(0).getDatabase());
+        if (this.logger.isDebugEnabled() && batch.size() > 0) {
+            this.logger.debug("Batch of {} events had {} addresses, {} of them distinct (dedup ratio {}), {} served from cache (hit ratio {})",
+                events.size(), batch.size(), batch.distinct(), ratio(batch.size() - batch.distinct(), batch.size()),
+                stats.cacheHits, ratio(stats.cacheHits, stats.cacheHits + stats.cacheMisses));
+        }
+        return events;
+    }
 
-                matchListener.filterMatched(e);
+    private void addAddress(LookupBatch batch, Object value, byte[] addressBuffer) {
+        int length;
+        try {
+            length = parseAddress(value, addressBuffer);
+        } catch (java.net.UnknownHostException ex) {
+            length = IpLiteralParser.INVALID;
+        }
+        batch.add(addressBuffer, length);
+    }
 
-            } catch (java.net.UnknownHostException ex) {
-                e.tag(this.failureTag);
+    /**
+     * Writes the results for the elements of an array-valued source as an array of
+     * objects, one per element and in the same order, under each target root. Elements
+     * without a result get an empty object so positions still line up with the source.
+     *
+     * @return 1 if any element matched, 0 if the array was empty, -1 if nothing matched
+     */
+    private int renderArray(Event e, int source, LookupBatch batch, int from, int to, boolean[] skipped,
+                            LookupResult[][] results, FilterMetrics.Batch stats) {
+        Map<String, List<Map<String, Object>>> lists = new LinkedHashMap<>();
+        Set<String> matchedRoots = new HashSet<>();
+        for (int d = 0; d < results.length; d++) {
+            String root = this.lookups.get(d).getProjection().root(source);
+            if (!lists.containsKey(root)) {
+                List<Map<String, Object>> list = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    list.add(new HashMap<>());
+                }
+                lists.put(root, list);
+            }
+        }
+        int outcome = from == to ? 0 : -1;
+        for (int i = from; i < to; i++) {
+            int slot = batch.slot(i);
+            if (slot < 0) {
+                stats.parseFailures++;
                 continue;
-            } catch (IOException ex) {
-                e.tag(this.failureTag);
+            }
+            if (skipped[slot]) {
+                stats.skipped++;
                 continue;
             }
+            boolean found = false;
+            for (int d = 0; d < results.length; d++) {
+                LookupResult lookupResult = results[d][slot];
+                if (lookupResult == null) {
+                    continue;
+                }
+                found = true;
+                String root = this.lookups.get(d).getProjection().root(source);
+                Map<String, Object> element = lists.get(root).get(i - from);
+                for (int j = 0; j < lookupResult.targets.length; j++) {
+                    element.put(lookupResult.targets[j].getKey(), lookupResult.valueFor(j));
+                }
+                matchedRoots.add(root);
+            }
+            if (found) {
+                stats.hits++;
+                outcome = 1;
+            } else {
+                stats.misses++;
+            }
         }
-        return events;
+        for (Map.Entry<String, List<Map<String, Object>>> entry : lists.entrySet()) {
+            if (matchedRoots.contains(entry.getKey())) {
+                e.setField(entry.getKey(), entry.getValue());
+            }
+        }
+        return outcome;
+    }
+
+    private static String ratio(int part, int whole) {
+        return whole == 0 ? "0.00" : String.format("%.2f", (double) part / whole);
     }
 
     @Override
@@ -249,13 +650,21 @@ public class MMDB implements Filter {
         // code. You may therefore encounter this during
         // integration testing instead.
 
-        return PluginHelper.commonFilterSettings(
-            Arrays.asList(
-                SOURCE_CONFIG,
-                TARGET_CONFIG,
-                DATABASE_FILENAME_CONFIG,
-                CACHE_SIZE_CONFIG,
-                FIELDS_CONFIG));
+        return PluginHelper.commonFilterSettings(SETTINGS);
+    }
+
+    @Override
+    public void close() {
+        if (this.warmupSnapshot != null) {
+            this.warmupSnapshot.close();
+            this.warmupSnapshot = null;
+        }
+        for (DatabaseLookup lookup : this.lookups) {
+            lookup.close();
+        }
+        if (this.overlay != null) {
+            this.overlay.close();
+        }
     }
 
     @Override
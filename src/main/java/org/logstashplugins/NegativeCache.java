@@ -0,0 +1,98 @@
+package org.logstashplugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers networks the search tree has no record for. A miss that ended at
+ * depth N of the tree means every address sharing those first N bits misses
+ * too, so the whole network is cached rather than the single address. A query
+ * probes once per prefix length that has been seen so far, which in practice is
+ * a handful.
+ */
+final class NegativeCache {
+
+    private final ResultCache<long[]> networks;
+    // bit n set when a miss of prefix length n has been cached; IPv4 in word 0, IPv6 in words 1-3
+    private final AtomicLongArray prefixLengths = new AtomicLongArray(4);
+
+    NegativeCache(int capacity, ResultCache.Eviction eviction, long generation) {
+        this.networks = new ResultCache<>(capacity, eviction, generation);
+    }
+
+    void add(byte[] address, int length, int prefixLength) {
+        long high = masked(address, 0, Math.min(length, 8), prefixLength);
+        long low = length == 16 ? masked(address, 8, 8, prefixLength - 64) : 0L;
+        int word = length == 4 ? 0 : 1 + (prefixLength >> 6);
+        long bit = 1L << (prefixLength & 63);
+        long current;
+        while (((current = prefixLengths.get(word)) & bit) == 0
+            && !prefixLengths.compareAndSet(word, current, current | bit)) {
+            // retry
+        }
+        networks.put(key(high, low, prefixLength, length), new long[]{high, low, prefixLength, length});
+    }
+
+    boolean contains(byte[] address, int length) {
+        int firstWord = length == 4 ? 0 : 1;
+        int lastWord = length == 4 ? 0 : 3;
+        for (int word = firstWord; word <= lastWord; word++) {
+            long lengths = prefixLengths.get(word);
+            while (lengths != 0) {
+                int prefixLength = (length == 4 ? 0 : (word - 1) * 64) + Long.numberOfTrailingZeros(lengths);
+                lengths &= lengths - 1;
+                long high = masked(address, 0, Math.min(length, 8), prefixLength);
+                long low = length == 16 ? masked(address, 8, 8, prefixLength - 64) : 0L;
+                long[] network = networks.get(key(high, low, prefixLength, length));
+                if (network != null && network[0] == high && network[1] == low
+                    && network[2] == prefixLength && network[3] == length) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The cached networks as 4 or 16 byte base addresses, in no particular order.
+     */
+    List<byte[]> networks() {
+        List<byte[]> addresses = new ArrayList<>();
+        for (long[] network : networks.values()) {
+            byte[] address = new byte[(int) network[3]];
+            long high = network[0];
+            for (int i = Math.min(address.length, 8) - 1; i >= 0; i--, high >>>= 8) {
+                address[i] = (byte) high;
+            }
+            long low = network[1];
+            for (int i = address.length - 1; i >= 8; i--, low >>>= 8) {
+                address[i] = (byte) low;
+            }
+            addresses.add(address);
+        }
+        return addresses;
+    }
+
+    /**
+     * The first {@code bits} bits of {@code count} bytes starting at {@code from}, as a big-endian long.
+     */
+    private static long masked(byte[] address, int from, int count, int bits) {
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+            value = (value << 8) | (address[from + i] & 0xFF);
+        }
+        int width = count * 8;
+        if (bits <= 0) {
+            return 0L;
+        }
+        if (bits >= width) {
+            return value;
+        }
+        return value & (-1L << (width - bits));
+    }
+
+    private static long key(long high, long low, int prefixLength, int length) {
+        return high * 31 + Long.rotateLeft(low, 17) + ((long) prefixLength << 8 | length);
+    }
+}
@@ -0,0 +1,81 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.CounterMetric;
+import co.elastic.logstash.api.Metric;
+import co.elastic.logstash.api.NamespacedMetric;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A metric namespace that records nothing, for running the filter outside a
+ * Logstash pipeline, where there is no metric to hand to its context.
+ */
+final class NoopMetric implements NamespacedMetric {
+
+    static final NoopMetric INSTANCE = new NoopMetric();
+
+    private static final CounterMetric COUNTER = new CounterMetric() {
+        @Override
+        public void increment() {
+        }
+
+        @Override
+        public void increment(long delta) {
+        }
+
+        @Override
+        public long getValue() {
+            return 0L;
+        }
+
+        @Override
+        public void reset() {
+        }
+    };
+
+    private NoopMetric() {
+    }
+
+    @Override
+    public NamespacedMetric namespace(String... key) {
+        return this;
+    }
+
+    @Override
+    public void gauge(String key, Object value) {
+    }
+
+    @Override
+    public CounterMetric counter(String metric) {
+        return COUNTER;
+    }
+
+    @Override
+    public void increment(String key) {
+    }
+
+    @Override
+    public void increment(String key, int amount) {
+    }
+
+    @Override
+    public <T> T time(String key, Supplier<T> callable) {
+        return callable.get();
+    }
+
+    @Override
+    public void reportTime(String key, long duration) {
+    }
+
+    @Override
+    public List<String> namespaceName() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Metric root() {
+        return this;
+    }
+}
@@ -0,0 +1,199 @@
+package org.logstashplugins;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A small JSON file of networks and their records that is consulted before the
+ * database, for changes that can't wait for the next database build:
+ * <pre>
+ * {
+ *   "10.20.0.0/16": {"name": "Lab", "vlan_id": 40},
+ *   "10.20.5.0/24": {"name": "Lab printers", "vlan_id": 41},
+ *   "10.9.0.0/16": null
+ * }
+ * </pre>
+ * The most specific network containing an address wins, and a null record
+ * hides whatever the database has for the network. The file is held in a
+ * {@link PrefixTrie} and reloaded on its own, without touching the database
+ * or its caches; a file that can't be read leaves the current overlay in place.
+ */
+final class OverlayDatabase implements ReloadScheduler.Watched {
+
+    private static final Logger logger = LogManager.getLogger(OverlayDatabase.class);
+
+    /** overlay files are small and a half-written one fails to parse, so there is little to wait for */
+    static final long RELOAD_DEBOUNCE_MILLIS = 50;
+    private static final AtomicLong generations = new AtomicLong();
+
+    /**
+     * One network of the file.
+     */
+    static final class Entry {
+        /** position in {@link Snapshot#entries()} */
+        final int index;
+        final PrefixTrie.Network network;
+        /** null where the network hides the database */
+        final Map<String, Object> record;
+
+        Entry(int index, PrefixTrie.Network network, Map<String, Object> record) {
+            this.index = index;
+            this.network = network;
+            this.record = record;
+        }
+    }
+
+    /**
+     * The overlay as loaded from one version of the file. Never changes once loaded.
+     */
+    static final class Snapshot {
+        final long generation = generations.incrementAndGet();
+        private final PrefixTrie<Entry> networks;
+        private final List<Entry> entries;
+
+        private Snapshot(PrefixTrie<Entry> networks, List<Entry> entries) {
+            this.networks = networks;
+            this.entries = entries;
+        }
+
+        /**
+         * @return the entry of the most specific network containing the address, or null
+         */
+        Entry get(byte[] address, int length) {
+            return networks.get(address, length);
+        }
+
+        List<Entry> entries() {
+            return entries;
+        }
+    }
+
+    private final File file;
+    private volatile Snapshot snapshot;
+    private long checksum;
+    private volatile long reloadCount = 0L;
+    private volatile long reloadFailureCount = 0L;
+    private boolean watching = false;
+
+    /**
+     * @throws IOException if the file can't be read or isn't a valid overlay
+     */
+    OverlayDatabase(File file) throws IOException {
+        this.file = file;
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        this.snapshot = parse(bytes);
+        this.checksum = checksum(bytes);
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public long getReloadDebounceMillis() {
+        return RELOAD_DEBOUNCE_MILLIS;
+    }
+
+    Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    long getReloadCount() {
+        return reloadCount;
+    }
+
+    long getReloadFailureCount() {
+        return reloadFailureCount;
+    }
+
+    private static long checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private static Snapshot parse(byte[] bytes) throws IOException {
+        Object json;
+        try {
+            json = Json.parse(new String(bytes, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Overlay is not valid JSON: " + ex.getMessage());
+        }
+        if (!(json instanceof Map)) {
+            throw new IOException("Overlay must be a JSON object of networks");
+        }
+        PrefixTrie<Entry> networks = new PrefixTrie<>();
+        List<Entry> entries = new ArrayList<>();
+        for (Map.Entry<?, ?> field : ((Map<?, ?>) json).entrySet()) {
+            PrefixTrie.Network network;
+            try {
+                network = PrefixTrie.Network.parse(String.valueOf(field.getKey()));
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Invalid network in overlay: " + field.getKey());
+            }
+            Object value = field.getValue();
+            if (value != null && !(value instanceof Map)) {
+                throw new IOException("The record of " + field.getKey() + " in overlay must be an object or null");
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> record = (Map<String, Object>) value;
+            Entry entry = new Entry(entries.size(), network, record);
+            entries.add(entry);
+            networks.insert(network, entry);
+        }
+        return new Snapshot(networks, Collections.unmodifiableList(entries));
+    }
+
+    void startWatching() throws IOException {
+        ReloadScheduler.watch(this);
+        watching = true;
+    }
+
+    /**
+     * Also called directly, so reloads are serialized here rather than by the scheduler.
+     */
+    @Override
+    public synchronized void reload() {
+        long start = System.nanoTime();
+        Snapshot candidate;
+        long candidateChecksum;
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            candidateChecksum = checksum(bytes);
+            if (candidateChecksum == checksum) {
+                logger.debug("mmdb overlay " + file + " changed on disk but its content is the same, not reloading");
+                return;
+            }
+            candidate = parse(bytes);
+        } catch (IOException ex) {
+            reloadFailureCount++;
+            logger.error("mmdb reload of overlay " + file + " failed, keeping the current overlay", ex);
+            return;
+        }
+        snapshot = candidate;
+        checksum = candidateChecksum;
+        reloadCount++;
+        logger.info("mmdb reload overlay " + file + ": " + candidate.entries().size() + " networks in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    void close() {
+        if (watching) {
+            ReloadScheduler.unwatch(this);
+            watching = false;
+        }
+    }
+}
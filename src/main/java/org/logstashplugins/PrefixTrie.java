@@ -0,0 +1,171 @@
+package org.logstashplugins;
+
+import java.util.Arrays;
+
+/**
+ * A binary trie of IPv4 and IPv6 networks answering longest-prefix-match
+ * queries. Nodes live in a flat int array; IPv4 and IPv6 networks are kept
+ * under separate roots. Not thread-safe while it is being built, safe to share
+ * once it has been published.
+ */
+final class PrefixTrie<V> {
+
+    private static final int IPV4_ROOT = 0;
+    private static final int IPV6_ROOT = 1;
+
+    private int[] children = new int[32];
+    private Object[] values = new Object[16];
+    // the prefix length of each value's network as IPv6, IPv4 networks counting from 96
+    private int[] prefixLengths = new int[16];
+    private int nodes = 2;
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * A network as written in settings and overlay files.
+     */
+    static final class Network {
+        final byte[] address;
+        final int length;
+        final int prefixLength;
+        // the IPv4 network that lookups see some of an IPv6 network's addresses as, or null
+        final byte[] ipv4;
+        final int ipv4PrefixLength;
+
+        private Network(byte[] address, int length, int prefixLength, byte[] ipv4, int ipv4PrefixLength) {
+            this.address = address;
+            this.length = length;
+            this.prefixLength = prefixLength;
+            this.ipv4 = ipv4;
+            this.ipv4PrefixLength = ipv4PrefixLength;
+        }
+
+        /**
+         * @param network "10.0.0.0/8", "2001:db8::/32", or a bare address for a single host
+         * @throws IllegalArgumentException if the network cannot be parsed
+         */
+        static Network parse(String network) {
+            int slash = network.indexOf('/');
+            byte[] address = new byte[16];
+            int length = IpLiteralParser.parse(slash < 0 ? network : network.substring(0, slash), address);
+            if (length == IpLiteralParser.INVALID) {
+                throw new IllegalArgumentException("Invalid network: " + network);
+            }
+            int prefixLength = length * 8;
+            if (slash >= 0) {
+                try {
+                    prefixLength = Integer.parseInt(network.substring(slash + 1));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Invalid network: " + network);
+                }
+                if (prefixLength < 0 || prefixLength > length * 8) {
+                    throw new IllegalArgumentException("Invalid network: " + network);
+                }
+            }
+            byte[] ipv4 = new byte[4];
+            int ipv4PrefixLength = length == 16 ? IpLiteralParser.ipv4Network(address, prefixLength, ipv4) : -1;
+            if (ipv4PrefixLength < 0) {
+                return new Network(Arrays.copyOf(address, length), length, prefixLength, null, -1);
+            }
+            // "::ffff:10.0.0.0/104" is 10.0.0.0/8, as lookups see mapped addresses as IPv4
+            if (prefixLength >= 96 && !containsIPv6(address, ipv4, ipv4PrefixLength)) {
+                return new Network(ipv4, 4, ipv4PrefixLength, null, -1);
+            }
+            // "::/95" also holds addresses that are looked up as IPv4, so it is matched as both
+            return new Network(Arrays.copyOf(address, length), length, prefixLength, ipv4, ipv4PrefixLength);
+        }
+
+        /**
+         * Whether a network of mapped or compatible addresses also holds {@code ::} or
+         * {@code ::1}, which lookups keep as IPv6.
+         */
+        private static boolean containsIPv6(byte[] address, byte[] ipv4, int ipv4PrefixLength) {
+            if (address[10] != 0) {
+                return false;
+            }
+            int bits = Math.min(ipv4PrefixLength, 31);
+            int value = (ipv4[0] & 0xFF) << 24 | (ipv4[1] & 0xFF) << 16 | (ipv4[2] & 0xFF) << 8 | (ipv4[3] & 0xFF);
+            return bits == 0 || value >>> (32 - bits) == 0;
+        }
+    }
+
+    /**
+     * @param network "10.0.0.0/8", "2001:db8::/32", or a bare address for a single host
+     * @throws IllegalArgumentException if the network cannot be parsed
+     */
+    void insert(String network, V value) {
+        insert(Network.parse(network), value);
+    }
+
+    void insert(Network network, V value) {
+        insert(network.address, network.length, network.prefixLength, value);
+        if (network.ipv4 != null) {
+            insert(network.ipv4, 4, network.ipv4PrefixLength, value, network.prefixLength);
+        }
+    }
+
+    void insert(byte[] address, int length, int prefixLength, V value) {
+        insert(address, length, prefixLength, value, length == 4 ? 96 + prefixLength : prefixLength);
+    }
+
+    /**
+     * @param ipv6PrefixLength how specific the network is as IPv6; a value is only replaced
+     *                         by one of a network at least as specific
+     */
+    private void insert(byte[] address, int length, int prefixLength, V value, int ipv6PrefixLength) {
+        int node = length == 4 ? IPV4_ROOT : IPV6_ROOT;
+        for (int i = 0; i < prefixLength; i++) {
+            int slot = node * 2 + bit(address, i);
+            if (children[slot] == 0) {
+                // grow first: children[slot] = newNode() would store into the old array
+                int child = newNode();
+                children[slot] = child;
+            }
+            node = children[slot];
+        }
+        if (values[node] == null) {
+            size++;
+        } else if (prefixLengths[node] > ipv6PrefixLength) {
+            return;
+        }
+        values[node] = value;
+        prefixLengths[node] = ipv6PrefixLength;
+    }
+
+    private int newNode() {
+        if (nodes * 2 >= children.length) {
+            children = Arrays.copyOf(children, children.length * 2);
+        }
+        if (nodes >= values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+            prefixLengths = Arrays.copyOf(prefixLengths, prefixLengths.length * 2);
+        }
+        return nodes++;
+    }
+
+    /**
+     * @return the value of the most specific network containing the address, or null
+     */
+    @SuppressWarnings("unchecked")
+    V get(byte[] address, int length) {
+        int node = length == 4 ? IPV4_ROOT : IPV6_ROOT;
+        Object match = values[node];
+        for (int i = 0, bits = length * 8; i < bits; i++) {
+            node = children[node * 2 + bit(address, i)];
+            if (node == 0) {
+                break;
+            }
+            if (values[node] != null) {
+                match = values[node];
+            }
+        }
+        return (V) match;
+    }
+
+    private static int bit(byte[] address, int index) {
+        return 1 & ((address[index >> 3] & 0xFF) >> (7 - (index & 7)));
+    }
+}
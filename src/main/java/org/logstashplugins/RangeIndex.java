@@ -0,0 +1,196 @@
+package org.logstashplugins;
+
+import com.maxmind.db.InvalidDatabaseException;
+
+import java.util.Arrays;
+
+/**
+ * The search tree of a small database flattened into sorted arrays of range
+ * starts, one entry per leaf of the tree, so that a lookup is a binary search
+ * over primitive arrays instead of a walk of up to 128 nodes. The leaves of the
+ * tree partition the address space, so the range an address falls in is the
+ * last one starting at or below it, and its result is exactly what
+ * {@link DatabaseReader#lookup} returns for that address.
+ * <p>
+ * IPv4 ranges are held as ints and IPv6 ranges as pairs of longs, all with the
+ * sign bit flipped so that signed comparison orders them as unsigned numbers.
+ */
+final class RangeIndex {
+
+    /** a leaf that {@link DatabaseReader#lookup} would fail on */
+    private static final long CORRUPT = -1L;
+
+    private final int[] ipv4Starts;
+    private final long[] ipv4Results;
+    private final long[] ipv6Highs;
+    private final long[] ipv6Lows;
+    private final long[] ipv6Results;
+
+    private RangeIndex(Ranges ipv4, Ranges ipv6) {
+        this.ipv4Starts = new int[ipv4.count];
+        for (int i = 0; i < ipv4.count; i++) {
+            this.ipv4Starts[i] = (int) (ipv4.highs[i] >>> 32) ^ Integer.MIN_VALUE;
+        }
+        this.ipv4Results = Arrays.copyOf(ipv4.results, ipv4.count);
+        this.ipv6Highs = new long[ipv6.count];
+        this.ipv6Lows = new long[ipv6.count];
+        for (int i = 0; i < ipv6.count; i++) {
+            this.ipv6Highs[i] = ipv6.highs[i] ^ Long.MIN_VALUE;
+            this.ipv6Lows[i] = ipv6.lows[i] ^ Long.MIN_VALUE;
+        }
+        this.ipv6Results = Arrays.copyOf(ipv6.results, ipv6.count);
+    }
+
+    /**
+     * Walks the whole search tree of {@code reader}. Only meant for small databases:
+     * an IPv6 database holds one range per leaf, plus one per leaf of the IPv4 subtree
+     * for every place it is aliased into the IPv6 space.
+     */
+    static RangeIndex build(DatabaseReader reader) throws InvalidDatabaseException {
+        Ranges ipv4 = new Ranges(reader.getNodeCount() + 1);
+        walk(reader, reader.getIpv4Start(), 0, 32, 0L, 0L, ipv4);
+        Ranges ipv6 = new Ranges(reader.getIpVersion() == 6 ? reader.getNodeCount() + 1 : 0);
+        if (reader.getIpVersion() == 6) {
+            walk(reader, 0, 0, 128, 0L, 0L, ipv6);
+        }
+        return new RangeIndex(ipv4, ipv6);
+    }
+
+    private static void walk(DatabaseReader reader, int record, int depth, int bits,
+                             long high, long low, Ranges ranges) throws InvalidDatabaseException {
+        if (record >= reader.getNodeCount() || depth == bits) {
+            long result;
+            try {
+                result = reader.leaf(record, depth);
+            } catch (InvalidDatabaseException ex) {
+                result = CORRUPT;
+            }
+            ranges.add(high, low, result);
+            return;
+        }
+        walk(reader, reader.readNode(record, 0), depth + 1, bits, high, low, ranges);
+        if (depth < 64) {
+            high |= 1L << (63 - depth);
+        } else {
+            low |= 1L << (127 - depth);
+        }
+        walk(reader, reader.readNode(record, 1), depth + 1, bits, high, low, ranges);
+    }
+
+    private static final class Ranges {
+        long[] highs;
+        long[] lows;
+        long[] results;
+        int count = 0;
+
+        Ranges(int capacity) {
+            this.highs = new long[Math.max(capacity, 1)];
+            this.lows = new long[highs.length];
+            this.results = new long[highs.length];
+        }
+
+        void add(long high, long low, long result) {
+            if (count == highs.length) {
+                highs = Arrays.copyOf(highs, count * 2);
+                lows = Arrays.copyOf(lows, count * 2);
+                results = Arrays.copyOf(results, count * 2);
+            }
+            highs[count] = high;
+            lows[count] = low;
+            results[count++] = result;
+        }
+    }
+
+    /**
+     * The number of ranges; positions run from 0 to this, IPv4 ranges first.
+     */
+    int size() {
+        return ipv4Starts.length + ipv6Highs.length;
+    }
+
+    /**
+     * @return the position of the range holding the address, or -1 for an IPv6
+     * address in an IPv4 database
+     */
+    int find(byte[] address, int length) {
+        if (length == 4) {
+            int key = ((address[0] & 0xFF) << 24 | (address[1] & 0xFF) << 16
+                | (address[2] & 0xFF) << 8 | (address[3] & 0xFF)) ^ Integer.MIN_VALUE;
+            int lo = 0;
+            int hi = ipv4Starts.length - 1;
+            while (lo < hi) {
+                int middle = (lo + hi + 1) >>> 1;
+                if (ipv4Starts[middle] <= key) {
+                    lo = middle;
+                } else {
+                    hi = middle - 1;
+                }
+            }
+            return lo;
+        }
+        if (ipv6Highs.length == 0) {
+            return -1;
+        }
+        long high = toLong(address, 0) ^ Long.MIN_VALUE;
+        long low = toLong(address, 8) ^ Long.MIN_VALUE;
+        int lo = 0;
+        int hi = ipv6Highs.length - 1;
+        while (lo < hi) {
+            int middle = (lo + hi + 1) >>> 1;
+            if (ipv6Highs[middle] < high || (ipv6Highs[middle] == high && ipv6Lows[middle] <= low)) {
+                lo = middle;
+            } else {
+                hi = middle - 1;
+            }
+        }
+        return ipv4Starts.length + lo;
+    }
+
+    /**
+     * The lookup result of a range, as {@link DatabaseReader#lookup} returns it.
+     */
+    long result(int position) throws InvalidDatabaseException {
+        long result = position < 0 ? DatabaseReader.NOT_FOUND
+            : position < ipv4Results.length ? ipv4Results[position]
+            : ipv6Results[position - ipv4Results.length];
+        if (result == CORRUPT) {
+            throw new InvalidDatabaseException("The MaxMind DB file's search tree is corrupt");
+        }
+        return result;
+    }
+
+    /**
+     * Copies the first address of a range into {@code dst}.
+     *
+     * @return its length, 4 or 16
+     */
+    int start(int position, byte[] dst) {
+        if (position < ipv4Starts.length) {
+            int start = ipv4Starts[position] ^ Integer.MIN_VALUE;
+            dst[0] = (byte) (start >>> 24);
+            dst[1] = (byte) (start >>> 16);
+            dst[2] = (byte) (start >>> 8);
+            dst[3] = (byte) start;
+            return 4;
+        }
+        position -= ipv4Starts.length;
+        fromLong(ipv6Highs[position] ^ Long.MIN_VALUE, dst, 0);
+        fromLong(ipv6Lows[position] ^ Long.MIN_VALUE, dst, 8);
+        return 16;
+    }
+
+    private static long toLong(byte[] bytes, int from) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[from + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void fromLong(long value, byte[] dst, int from) {
+        for (int i = 7; i >= 0; i--) {
+            dst[from + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
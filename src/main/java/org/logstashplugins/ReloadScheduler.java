@@ -0,0 +1,179 @@
+package org.logstashplugins;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches every {@link SharedDatabase} and {@link OverlayDatabase} in the JVM
+ * for changes and reloads them, all on one daemon thread with one WatchService.
+ * The thread polls for changes every {@link #POLL_MILLIS} and reloads a file
+ * once it has been quiet for its {@link Watched#getReloadDebounceMillis()
+ * debounce}, so a file written in several steps is only reloaded once. Reloads
+ * of different files run one after the other.
+ * <p>
+ * The thread and the WatchService only exist while something is watched, so
+ * pipeline reloads that close and recreate filters leave nothing behind.
+ */
+final class ReloadScheduler {
+
+    private static final Logger logger = LogManager.getLogger(ReloadScheduler.class);
+
+    static final long POLL_MILLIS = 100;
+
+    private static ScheduledExecutorService scheduler;
+    private static WatchService watchService;
+    private static final Map<Path, WatchKey> keys = new HashMap<>();
+    private static final Map<WatchKey, List<Watched>> watched = new HashMap<>();
+    // databases with unhandled changes, and when their file last changed
+    private static final Map<Watched, Long> pending = new LinkedHashMap<>();
+
+    /**
+     * A file that is reloaded when it changes.
+     */
+    interface Watched {
+        File getFile();
+
+        /**
+         * How long the file must have stopped changing before it is reloaded.
+         */
+        long getReloadDebounceMillis();
+
+        void reload();
+    }
+
+    private ReloadScheduler() {
+    }
+
+    static synchronized void watch(Watched database) throws IOException {
+        if (watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "mmdb-reload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(ReloadScheduler::poll, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        Path directory = database.getFile().toPath().getParent();
+        WatchKey key = keys.get(directory);
+        if (key == null) {
+            try {
+                key = directory.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_CREATE);
+            } catch (IOException ex) {
+                stopIfIdle();
+                throw ex;
+            }
+            keys.put(directory, key);
+            watched.put(key, new ArrayList<>());
+        }
+        watched.get(key).add(database);
+    }
+
+    /**
+     * Stops watching a database. A reload of it that is already running still finishes.
+     */
+    static synchronized void unwatch(Watched database) {
+        pending.remove(database);
+        Iterator<Map.Entry<WatchKey, List<Watched>>> entries = watched.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<WatchKey, List<Watched>> entry = entries.next();
+            if (entry.getValue().remove(database) && entry.getValue().isEmpty()) {
+                entry.getKey().cancel();
+                keys.values().remove(entry.getKey());
+                entries.remove();
+            }
+        }
+        stopIfIdle();
+    }
+
+    static synchronized boolean isWatching(Watched database) {
+        for (List<Watched> databases : watched.values()) {
+            if (databases.contains(database)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void stopIfIdle() {
+        if (!watched.isEmpty() || watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            logger.warn("mmdb watch service could not be closed", ex);
+        }
+        watchService = null;
+        // lets a running reload finish, then the thread exits
+        scheduler.shutdown();
+        scheduler = null;
+    }
+
+    private static void poll() {
+        List<Watched> due = new ArrayList<>();
+        synchronized (ReloadScheduler.class) {
+            if (watchService == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            WatchKey key;
+            while ((key = watchService.poll()) != null) {
+                List<Watched> databases = watched.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (databases == null) {
+                        continue;
+                    }
+                    for (Watched database : databases) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || database.getFile().toPath().getFileName().equals(event.context())) {
+                            pending.put(database, now);
+                        }
+                    }
+                }
+                if (!key.reset() && databases != null) {
+                    for (Watched database : databases) {
+                        logger.warn("mmdb stopped watching " + database.getFile() + ", its directory is gone");
+                    }
+                    watched.remove(key);
+                    keys.values().remove(key);
+                }
+            }
+            Iterator<Map.Entry<Watched, Long>> entries = pending.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Watched, Long> entry = entries.next();
+                long debounce = TimeUnit.MILLISECONDS.toNanos(entry.getKey().getReloadDebounceMillis());
+                if (now - entry.getValue() >= debounce) {
+                    due.add(entry.getKey());
+                    entries.remove();
+                }
+            }
+        }
+        for (Watched database : due) {
+            try {
+                database.reload();
+            } catch (Throwable ex) {
+                logger.error("mmdb reload error", ex);
+            }
+        }
+    }
+}
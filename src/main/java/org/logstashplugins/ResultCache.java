@@ -0,0 +1,134 @@
+package org.logstashplugins;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded, set-associative cache keyed by a primitive long. Each key maps to
+ * a set of {@link #WAYS} slots and eviction only ever happens within that set,
+ * so there is no global bookkeeping and no locking: slots hold immutable
+ * entries and a racing writer can at worst replace an entry that was about to
+ * be useful.
+ * <p>
+ * A cache belongs to one {@link DatabaseReader} generation, since the keys are
+ * offsets into that reader's file.
+ */
+final class ResultCache<V> {
+
+    enum Eviction {
+        LRU, FIFO, RANDOM;
+
+        static Eviction parse(String value) {
+            for (Eviction eviction : values()) {
+                if (eviction.name().equalsIgnoreCase(value)) {
+                    return eviction;
+                }
+            }
+            throw new IllegalStateException("Cache eviction must be one of lru, fifo or random");
+        }
+    }
+
+    static final int WAYS = 4;
+
+    private final Entry<V>[] table;
+    private final int setMask;
+    private final Eviction eviction;
+    private final long generation;
+    // the eviction clock; a long, so it can't wrap at filter rates
+    long tick = 0;
+
+    @SuppressWarnings("unchecked")
+    ResultCache(int capacity, Eviction eviction, long generation) {
+        int sets = Integer.highestOneBit(Math.max(1, (capacity + WAYS - 1) / WAYS));
+        if (sets * WAYS < capacity) {
+            sets <<= 1;
+        }
+        this.table = (Entry<V>[]) new Entry<?>[sets * WAYS];
+        this.setMask = sets - 1;
+        this.eviction = eviction;
+        this.generation = generation;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    int capacity() {
+        return table.length;
+    }
+
+    V get(long key) {
+        int base = setOf(key);
+        for (int way = 0; way < WAYS; way++) {
+            Entry<V> entry = table[base + way];
+            if (entry != null && entry.key == key) {
+                if (eviction == Eviction.LRU) {
+                    entry.used = ++tick;
+                }
+                return entry.value;
+            }
+        }
+        return null;
+    }
+
+    void put(long key, V value) {
+        int base = setOf(key);
+        int victim = 0;
+        long oldest = Long.MAX_VALUE;
+        for (int way = 0; way < WAYS; way++) {
+            Entry<V> entry = table[base + way];
+            if (entry == null || entry.key == key) {
+                table[base + way] = new Entry<>(key, value, ++tick);
+                return;
+            }
+            long age = eviction == Eviction.FIFO ? entry.inserted : entry.used;
+            if (age < oldest) {
+                oldest = age;
+                victim = way;
+            }
+        }
+        if (eviction == Eviction.RANDOM) {
+            victim = (int) (mix(key ^ tick) >>> 32) & (WAYS - 1);
+        }
+        table[base + victim] = new Entry<>(key, value, ++tick);
+    }
+
+    /**
+     * A snapshot of the cached values, in no particular order.
+     */
+    List<V> values() {
+        List<V> values = new ArrayList<>();
+        for (Entry<V> entry : table) {
+            if (entry != null) {
+                values.add(entry.value);
+            }
+        }
+        return values;
+    }
+
+    private int setOf(long key) {
+        return ((int) mix(key) & setMask) * WAYS;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    private static final class Entry<V> {
+        final long key;
+        final V value;
+        final long inserted;
+        long used;
+
+        Entry(long key, V value, long tick) {
+            this.key = key;
+            this.value = value;
+            this.inserted = tick;
+            this.used = tick;
+        }
+    }
+}
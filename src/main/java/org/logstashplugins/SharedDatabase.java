@@ -0,0 +1,296 @@
+package org.logstashplugins;
+
+import com.maxmind.db.Metadata;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One opened database file, shared by every filter that points at it.
+ * Instances are handed out and reference counted by {@link DatabaseRegistry}.
+ * <p>
+ * Reloads are debounced until the file has been quiet for a moment, skipped
+ * when the content is unchanged, and only swapped in once the new file has
+ * opened, answered a set of sample lookups and let every {@link ReloadListener}
+ * prepare for it. Anything failing along the way leaves the current reader in
+ * place. Watching and reloading happen on the {@link ReloadScheduler}.
+ * <p>
+ * Lookups {@link #pinReader() pin} the reader they use, and a reader that has
+ * been replaced is closed once the last lookup pinned to it has finished.
+ */
+final class SharedDatabase implements ReloadScheduler.Watched {
+
+    private static final Logger logger = LogManager.getLogger(SharedDatabase.class);
+
+    static final long RELOAD_DEBOUNCE_MILLIS = 300;
+    private static final int SAMPLE_LOOKUPS = 256;
+
+    /**
+     * Called on the reload thread with a validated reader that is about to replace
+     * the current one. Throwing aborts the reload.
+     */
+    interface ReloadListener {
+        void prepare(DatabaseReader candidate) throws IOException;
+
+        /**
+         * Called once the candidate has replaced the current reader.
+         */
+        default void commit(DatabaseReader candidate) {
+        }
+
+        /**
+         * Called when a reload is abandoned after {@link #prepare(DatabaseReader)} may
+         * have been called, by this listener or another one failing, or by a close.
+         */
+        default void abort(DatabaseReader candidate) {
+        }
+    }
+
+    private final File file;
+    private final DatabaseReader.FileMode fileMode;
+    private final boolean preload;
+    private final AtomicReference<DatabaseReader> readerRef = new AtomicReference<>();
+    private volatile long lastModifiedTime = 0L;
+    private volatile long lastCheckedTime = 0L;
+    private long checksum = -1L;
+    private volatile long reloadCount = 0L;
+    private volatile long reloadFailureCount = 0L;
+    private volatile long lastReloadDurationMillis = 0L;
+    private final List<ReloadListener> listeners = new CopyOnWriteArrayList<>();
+    private boolean watching = false;
+    private boolean closed = false;
+    private int references = 0;
+
+    SharedDatabase(File file, DatabaseReader.FileMode fileMode, boolean preload) throws IOException {
+        this.file = file;
+        this.fileMode = fileMode;
+        this.preload = preload;
+        this.readerRef.set(openReader());
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public long getReloadDebounceMillis() {
+        return RELOAD_DEBOUNCE_MILLIS;
+    }
+
+    DatabaseReader.FileMode getFileMode() {
+        return fileMode;
+    }
+
+    boolean isPreload() {
+        return preload;
+    }
+
+    /**
+     * The current reader, for what it knows without touching the file, such as its
+     * generation. Lookups {@link #pinReader()} it instead.
+     */
+    DatabaseReader getReader() {
+        return readerRef.get();
+    }
+
+    /**
+     * The current reader, kept open until {@link DatabaseReader#unpin()} even if a reload
+     * replaces it in the meantime.
+     *
+     * @return null once the database has been closed
+     */
+    DatabaseReader pinReader() {
+        while (true) {
+            DatabaseReader reader = readerRef.get();
+            if (reader == null) {
+                return null;
+            }
+            reader.pin();
+            // a reload may have retired it between the two reads, pinning a reader that is closing
+            if (readerRef.get() == reader) {
+                return reader;
+            }
+            reader.unpin();
+        }
+    }
+
+    Metadata getMetadata() {
+        DatabaseReader reader = readerRef.get();
+        return reader == null ? null : reader.getMetadata();
+    }
+
+    /**
+     * When a reload last swapped in a new reader, or 0 if none has.
+     */
+    long getLastModifiedTime() {
+        return lastModifiedTime;
+    }
+
+    /**
+     * When a change of the file was last handled, whether or not it led to a swap.
+     */
+    long getLastCheckedTime() {
+        return lastCheckedTime;
+    }
+
+    long getReloadCount() {
+        return reloadCount;
+    }
+
+    long getReloadFailureCount() {
+        return reloadFailureCount;
+    }
+
+    /**
+     * How long the last successful reload took, from opening the file to the swap.
+     */
+    long getLastReloadDurationMillis() {
+        return lastReloadDurationMillis;
+    }
+
+    void addReloadListener(ReloadListener listener) {
+        listeners.add(listener);
+    }
+
+    void removeReloadListener(ReloadListener listener) {
+        listeners.remove(listener);
+    }
+
+    int retain() {
+        return ++references;
+    }
+
+    int release() {
+        return --references;
+    }
+
+    private DatabaseReader openReader() throws IOException {
+        return new DatabaseReader(file, fileMode, preload);
+    }
+
+    void startWatching() throws IOException {
+        ReloadScheduler.watch(this);
+        watching = true;
+    }
+
+    @Override
+    public void reload() {
+        long start = System.nanoTime();
+        DatabaseReader candidate = null;
+        long candidateChecksum;
+        try {
+            candidate = openReader();
+            candidateChecksum = candidate.checksum();
+            if (checksum == -1L) {
+                DatabaseReader current = pinReader();
+                if (current == null) {
+                    candidate.close();
+                    return;
+                }
+                try {
+                    checksum = current.checksum();
+                } finally {
+                    current.unpin();
+                }
+            }
+            if (candidateChecksum == checksum) {
+                candidate.close();
+                lastCheckedTime = System.currentTimeMillis();
+                logger.debug("mmdb " + file + " changed on disk but its content is the same, not reloading");
+                return;
+            }
+            validate(candidate);
+            for (ReloadListener listener : listeners) {
+                listener.prepare(candidate);
+            }
+        } catch (Exception ex) {
+            if (candidate != null) {
+                abort(candidate);
+                candidate.close();
+            }
+            reloadFailureCount++;
+            logger.error("mmdb reload of " + file + " failed, keeping the current database", ex);
+            return;
+        }
+        DatabaseReader old;
+        synchronized (this) {
+            if (closed) {
+                abort(candidate);
+                candidate.close();
+                return;
+            }
+            old = readerRef.getAndSet(candidate);
+        }
+        for (ReloadListener listener : listeners) {
+            try {
+                listener.commit(candidate);
+            } catch (RuntimeException ex) {
+                logger.error("mmdb reload listener failed after the swap of " + file, ex);
+            }
+        }
+        checksum = candidateChecksum;
+        if (old != null) {
+            old.retire();
+        }
+        lastModifiedTime = System.currentTimeMillis();
+        lastCheckedTime = lastModifiedTime;
+        MMDB.recordReload(lastModifiedTime);
+        lastReloadDurationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        reloadCount++;
+        logger.info("mmdb reload " + file + ":" + candidate.getMetadata().toString());
+    }
+
+    private void abort(DatabaseReader candidate) {
+        for (ReloadListener listener : listeners) {
+            try {
+                listener.abort(candidate);
+            } catch (RuntimeException ex) {
+                logger.error("mmdb reload listener failed to abort the reload of " + file, ex);
+            }
+        }
+    }
+
+    /**
+     * Smoke test: look up and fully decode a fixed sample of addresses, which walks a
+     * good part of the search tree and touches records across the data section.
+     */
+    private static void validate(DatabaseReader candidate) throws IOException {
+        Random random = new Random(SAMPLE_LOOKUPS);
+        DataDecoder decoder = candidate.newDecoder();
+        byte[] address = new byte[16];
+        for (int i = 0; i < SAMPLE_LOOKUPS; i++) {
+            int length = candidate.getMetadata().getIpVersion() == 6 && (i & 1) == 1 ? 16 : 4;
+            random.nextBytes(address);
+            long result = candidate.lookup(address, length);
+            if (DatabaseReader.isFound(result)) {
+                decoder.decode(DatabaseReader.dataOffset(result));
+            }
+        }
+    }
+
+    /**
+     * Stops watching the file and closes the reader once the lookups pinned to it are done.
+     */
+    void close() {
+        if (watching) {
+            ReloadScheduler.unwatch(this);
+            watching = false;
+        }
+        DatabaseReader reader;
+        synchronized (this) {
+            closed = true;
+            reader = readerRef.getAndSet(null);
+        }
+        if (reader != null) {
+            reader.retire();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.logstashplugins;
+
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The addresses behind a filter's caches, saved to a file now and then and
+ * replayed when the filter starts, so that a restart doesn't begin with cold
+ * caches and cold pages. The file holds one address per cached network: an
+ * 8 byte header, a count, then a length byte and the address bytes for each.
+ * <p>
+ * Saving and replaying run on one daemon thread shared by all filters.
+ */
+final class WarmupSnapshot {
+
+    private static final byte[] MAGIC = {'M', 'M', 'D', 'B', 'H', 'O', 'T', '1'};
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mmdb-warmup");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+    private final int size;
+    private final long timeLimitMillis;
+    private final long intervalSeconds;
+    private final List<DatabaseLookup> lookups;
+    private final Logger logger;
+    private Future<?> warming;
+    private Future<?> saving;
+
+    /**
+     * @param size            the most addresses saved and replayed
+     * @param timeLimitMillis how long a replay may take before it gives up on the rest
+     * @param intervalSeconds how often the snapshot is saved
+     */
+    WarmupSnapshot(File file, int size, long timeLimitMillis, long intervalSeconds,
+                   List<DatabaseLookup> lookups, Logger logger) {
+        this.file = file;
+        this.size = size;
+        this.timeLimitMillis = timeLimitMillis;
+        this.intervalSeconds = intervalSeconds;
+        this.lookups = lookups;
+        this.logger = logger;
+    }
+
+    /**
+     * Replays the snapshot in the background, while events already flow, and starts
+     * saving it periodically.
+     */
+    synchronized void start() {
+        warming = scheduler.submit(this::warm);
+        saving = scheduler.scheduleWithFixedDelay(this::saveQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits for the replay started by {@link #start()} to finish.
+     */
+    void awaitWarmup(long timeout, TimeUnit unit) throws Exception {
+        Future<?> warming;
+        synchronized (this) {
+            warming = this.warming;
+        }
+        if (warming != null) {
+            warming.get(timeout, unit);
+        }
+    }
+
+    void warm() {
+        if (!file.isFile()) {
+            return;
+        }
+        long start = System.nanoTime();
+        LookupBatch batch;
+        try {
+            batch = read(file, size);
+        } catch (IOException ex) {
+            logger.warn("mmdb warmup snapshot " + file + " could not be read, starting cold", ex);
+            return;
+        }
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeLimitMillis);
+        int warmed = batch.distinct();
+        for (DatabaseLookup lookup : lookups) {
+            warmed = Math.min(warmed, lookup.warm(batch, deadline));
+        }
+        logger.info("mmdb warmed up with {} of {} addresses from {} in {} ms", warmed, batch.distinct(), file,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    void save() throws IOException {
+        LookupBatch batch = new LookupBatch(size, true);
+        for (DatabaseLookup lookup : lookups) {
+            lookup.collectHotAddresses(batch, size);
+        }
+        write(file, batch);
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("mmdb warmup snapshot " + file + " could not be saved", ex);
+        }
+    }
+
+    /**
+     * Stops the background work and saves the snapshot one last time.
+     */
+    synchronized void close() {
+        if (warming != null) {
+            warming.cancel(true);
+            saving.cancel(false);
+            warming = null;
+            saveQuietly();
+        }
+    }
+
+    static LookupBatch read(File file, int limit) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a warmup snapshot");
+            }
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Invalid address count " + count + " in warmup snapshot");
+            }
+            count = Math.min(count, limit);
+            LookupBatch batch = new LookupBatch(count, true);
+            byte[] address = new byte[16];
+            for (int i = 0; i < count; i++) {
+                int length = in.readUnsignedByte();
+                if (length != 4 && length != 16) {
+                    throw new IOException("Invalid address length " + length + " in warmup snapshot");
+                }
+                in.readFully(address, 0, length);
+                batch.add(address, length);
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * Writes the distinct addresses of {@code batch} to a temporary file and moves it into
+     * place, so a crash mid-write never leaves a truncated snapshot behind.
+     */
+    static void write(File file, LookupBatch batch) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary.toPath())))) {
+            out.write(MAGIC);
+            out.writeInt(batch.distinct());
+            byte[] address = new byte[16];
+            for (int index = 0; index < batch.distinct(); index++) {
+                int length = batch.address(index, address);
+                out.writeByte(length);
+                out.write(address, 0, length);
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
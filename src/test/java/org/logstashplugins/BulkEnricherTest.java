@@ -0,0 +1,142 @@
+package org.logstashplugins;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public class BulkEnricherTest {
+
+    private static Map<String, Object> settings() {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("database", "samples/demo.mmdb");
+        settings.put("source", "ip");
+        settings.put("target", "info");
+        settings.put("fields", Arrays.<Object>asList("name", "vlan_id"));
+        return settings;
+    }
+
+    @Test
+    public void testNdjsonKeepsOrderAcrossBatches() throws Exception {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            input.append("{\"n\":").append(i).append(",\"ip\":\"")
+                .append(i % 2 == 0 ? "172.16.0.1" : "10.0.0.1").append("\"}\n");
+        }
+        input.append("not json\n\n{\"n\":1000,\"ip\":\"8.8.8.8\"}\n");
+
+        StringWriter output = new StringWriter();
+        BulkEnricher.Result result;
+        try (BulkEnricher enricher = new BulkEnricher(settings(), BulkEnricher.Format.NDJSON, 64, 4)) {
+            result = enricher.enrich(new StringReader(input.toString()), output);
+        }
+
+        assertThat(result.getRecords(), is(1002L));
+        assertThat(result.getInvalid(), is(1L));
+        String[] lines = output.toString().split("\n");
+        assertThat(lines.length, is(1002));
+        for (int i = 0; i < 1000; i++) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> record = (Map<String, Object>) Json.parse(lines[i]);
+            assertThat(record.get("n"), is((Object) (long) i));
+            assertFalse(record.containsKey("@timestamp"));
+            if (i % 2 == 0) {
+                assertThat(record.get("info"), is((Object) new HashMap<String, Object>() {{
+                    put("name", "DMZ");
+                    put("vlan_id", 234L);
+                }}));
+            }
+        }
+        assertThat(lines[1000], is("not json"));
+        assertThat(result.getMatched(), is((long) countMatches(lines)));
+        assertTrue(result.getMatched() >= 500);
+    }
+
+    private static int countMatches(String[] lines) {
+        int matches = 0;
+        for (String line : lines) {
+            matches += line.contains("\"info\"") ? 1 : 0;
+        }
+        return matches;
+    }
+
+    @Test
+    public void testCsvAppendsTargetColumn() throws Exception {
+        String input = "id,ip,note\r\n"
+            + "1,172.16.0.1,\"a, quoted\nnote\"\r\n"
+            + "2,,empty\r\n"
+            + "3,172.16.0.1\r\n";
+
+        StringWriter output = new StringWriter();
+        BulkEnricher.Result result;
+        try (BulkEnricher enricher = new BulkEnricher(settings(), BulkEnricher.Format.CSV, 2, 2)) {
+            result = enricher.enrich(new StringReader(input), output);
+            // a second input with the same header adds rows, not another header
+            result.add(enricher.enrich(new StringReader("id,ip,note\n4,172.16.0.1,x\n"), output));
+        }
+
+        assertThat(result.getRecords(), is(4L));
+        assertThat(result.getMatched(), is(2L));
+        assertThat(result.getInvalid(), is(1L));
+        String[] lines = output.toString().split("\n(?=\\d|id)");
+        assertThat(lines[0], is("id,ip,note,info"));
+        List<String> first = Csv.parse(lines[1]);
+        assertThat(first.subList(0, 3), is(Arrays.asList("1", "172.16.0.1", "a, quoted\nnote")));
+        assertThat(Json.parse(first.get(3)), is((Object) new HashMap<String, Object>() {{
+            put("name", "DMZ");
+            put("vlan_id", 234L);
+        }}));
+        assertThat(lines[2], is("2,,empty,"));
+        assertThat(lines[3], is("3,172.16.0.1,"));
+        assertThat(Csv.parse(lines[4]).get(0), is("4"));
+        assertThat(lines.length, is(5));
+    }
+
+    @Test
+    public void testCsvHeaderMustMatchAcrossInputs() throws Exception {
+        try (BulkEnricher enricher = new BulkEnricher(settings(), BulkEnricher.Format.CSV, 10, 1)) {
+            enricher.enrich(new StringReader("ip\n172.16.0.1\n"), new StringWriter());
+            try {
+                enricher.enrich(new StringReader("addr\n172.16.0.1\n"), new StringWriter());
+                fail("Expected an exception to be thrown");
+            } catch (java.io.IOException e) {
+                assertThat(e.getMessage(), containsString("differs"));
+            }
+        }
+    }
+
+    @Test
+    public void testJsonRoundTrip() {
+        String json = "{\"s\":\"a\\\"b\\\\c\\n\\u00e9\",\"n\":-12,\"big\":123456789012345678901,"
+            + "\"d\":1.5e3,\"b\":true,\"z\":null,\"a\":[1,{\"x\":[]}]}";
+        Object parsed = Json.parse(json);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = (Map<String, Object>) parsed;
+        assertThat(map.get("s"), is((Object) "a\"b\\c\né"));
+        assertThat(map.get("n"), is((Object) (-12L)));
+        assertThat(map.get("big"), is((Object) new java.math.BigInteger("123456789012345678901")));
+        assertThat(map.get("d"), is((Object) 1500.0));
+        assertThat(Json.parse(Json.toString(parsed)), is(parsed));
+
+        assertThat(Json.parse("\"\\u00E9\\u0041\""), is((Object) "éA"));
+        assertThat(Json.parse("[0,-0.5,1E+2,2e-1]"), is((Object) Arrays.<Object>asList(0L, -0.5, 100.0, 0.2)));
+
+        for (String invalid : Arrays.asList("", "{", "{\"a\" 1}", "[1,]", "\"open", "1 2", "tru",
+            "\"\\u+041\"", "\"\\u-001\"", "\"\\u00g1\"", "\"\\u12\"", "\"a\tb\"",
+            "01", "-", "1.", ".5", "1e", "1e+", "--1", "+1")) {
+            try {
+                Json.parse(invalid);
+                fail("Expected " + invalid + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
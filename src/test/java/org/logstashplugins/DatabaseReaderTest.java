@@ -0,0 +1,241 @@
+package org.logstashplugins;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import com.maxmind.db.DatabaseRecord;
+import com.maxmind.db.Reader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class DatabaseReaderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static Map<String, Object> map(Object... keyValues) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            map.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return map;
+    }
+
+    static Map<String, Object> record(int i) {
+        return map(
+            "name", "network " + i,
+            "vlan_id", (long) i,
+            "campus", i % 2 == 0 ? "Head Office" : "Branch",
+            "country", map("iso_code", "NZ", "names", map("en", "New Zealand", "de", "Neuseeland")),
+            "tags", Arrays.asList("a", i, true),
+            "port", i % 65536,
+            "offset", -i,
+            "weight", 0.5 + i,
+            "ratio", 1.5f,
+            "big", BigInteger.ONE.shiftLeft(70).add(BigInteger.valueOf(i)),
+            "raw", new byte[]{1, 2, 3});
+    }
+
+    private File write(MMDBWriter writer) throws Exception {
+        File file = temporaryFolder.newFile();
+        writer.write(file);
+        return file;
+    }
+
+    private void assertSameAsMaxmind(File file, int addressLength, long seed) throws Exception {
+        assertSameAsMaxmind(new DatabaseReader(file), file, addressLength, seed);
+    }
+
+    private void assertSameAsMaxmind(DatabaseReader reader, File file, int addressLength, long seed) throws Exception {
+        Random random = new Random(seed);
+        byte[] address = new byte[addressLength];
+        try (Reader maxmind = new Reader(file)) {
+            DataDecoder decoder = reader.newDecoder();
+            for (int i = 0; i < 2000; i++) {
+                random.nextBytes(address);
+                if (i % 2 == 0) {
+                    address[0] = 10;
+                }
+                DatabaseRecord<Object> expected = maxmind.getRecord(InetAddress.getByAddress(address), Object.class);
+                long result = reader.lookup(address, addressLength);
+                assertThat(DatabaseReader.prefixLength(result), is(expected.getNetwork().getPrefixLength()));
+                if (expected.getData() == null) {
+                    assertFalse(DatabaseReader.isFound(result));
+                } else {
+                    assertTrue(DatabaseReader.isFound(result));
+                    assertDeepEquals(expected.getData(), decoder.decode(DatabaseReader.dataOffset(result)));
+                }
+            }
+            assertThat(reader.getMetadata().getDatabaseType(), is(maxmind.getMetadata().getDatabaseType()));
+            assertThat(reader.getMetadata().getIpVersion(), is(maxmind.getMetadata().getIpVersion()));
+        }
+    }
+
+    private static void assertDeepEquals(Object expected, Object actual) {
+        if (expected instanceof byte[]) {
+            assertArrayEquals((byte[]) expected, (byte[]) actual);
+        } else if (expected instanceof Map) {
+            Map<?, ?> expectedMap = (Map<?, ?>) expected;
+            Map<?, ?> actualMap = (Map<?, ?>) actual;
+            assertThat(actualMap.keySet(), is((Object) expectedMap.keySet()));
+            for (Object key : expectedMap.keySet()) {
+                assertDeepEquals(expectedMap.get(key), actualMap.get(key));
+            }
+        } else if (expected instanceof List) {
+            List<?> expectedList = (List<?>) expected;
+            List<?> actualList = (List<?>) actual;
+            assertThat(actualList.size(), is(expectedList.size()));
+            for (int i = 0; i < expectedList.size(); i++) {
+                assertDeepEquals(expectedList.get(i), actualList.get(i));
+            }
+        } else {
+            assertEquals(expected, actual);
+            assertEquals(expected.getClass(), actual.getClass());
+        }
+    }
+
+    private static MMDBWriter populate(MMDBWriter writer, boolean ipv6) {
+        writer.insert("10.0.0.0/8", record(0));
+        for (int i = 1; i < 200; i++) {
+            writer.insert("10." + i + ".0.0/16", record(i));
+            writer.insert("10." + i + "." + i + ".0/24", record(i % 7));
+        }
+        if (ipv6) {
+            writer.insert("2001:db8::/32", record(1000));
+            writer.insert("2001:db8:1::/48", record(1001));
+        }
+        return writer;
+    }
+
+    @Test
+    public void testDemoDatabase() throws Exception {
+        assertSameAsMaxmind(new File("samples/demo.mmdb"), 4, 1);
+    }
+
+    @Test
+    public void testRecordSizes() throws Exception {
+        for (int recordSize : new int[]{24, 28, 32}) {
+            File ipv4 = write(populate(new MMDBWriter(4, recordSize, "test-ipv4"), false));
+            assertSameAsMaxmind(ipv4, 4, recordSize);
+
+            File ipv6 = write(populate(new MMDBWriter(6, recordSize, "test-ipv6"), true));
+            assertSameAsMaxmind(ipv6, 4, recordSize);
+            assertSameAsMaxmind(ipv6, 16, recordSize);
+        }
+    }
+
+    @Test
+    public void testFileModes() throws Exception {
+        File file = write(populate(new MMDBWriter(6, 28, "test-ipv6"), true));
+        for (DatabaseReader.FileMode mode : DatabaseReader.FileMode.values()) {
+            assertSameAsMaxmind(new DatabaseReader(file, mode, true), file, 16, 1);
+            assertSameAsMaxmind(new DatabaseReader(file, mode, false), file, 4, 2);
+        }
+        assertThat(DatabaseReader.FileMode.parse("Heap"), is(DatabaseReader.FileMode.HEAP));
+    }
+
+    @Test
+    public void testChunkedMapping() throws Exception {
+        File file = write(populate(new MMDBWriter(6, 28, "test-ipv6"), true));
+        DatabaseReader whole = new DatabaseReader(file);
+        // chunks far smaller than the search tree and most records, so values straddle them
+        for (int chunkBits : new int[]{6, 12}) {
+            DatabaseReader chunked = new DatabaseReader(file, DatabaseReader.FileMode.MMAP, chunkBits == 6, chunkBits);
+            assertSameAsMaxmind(chunked, file, 4, chunkBits);
+            assertSameAsMaxmind(chunked, file, 16, chunkBits);
+            assertThat(chunked.checksum(), is(whole.checksum()));
+            chunked.close();
+        }
+    }
+
+    @Test
+    public void testIPv4FastPathMatchesFullWalk() throws Exception {
+        for (int recordSize : new int[]{24, 28, 32}) {
+            DatabaseReader reader = new DatabaseReader(write(populate(new MMDBWriter(6, recordSize, "test-ipv6"), true)));
+            Random random = new Random(recordSize);
+            byte[] address = new byte[16];
+            for (int i = 0; i < 2000; i++) {
+                int ipv4 = i % 2 == 0 ? 10 << 24 | random.nextInt(1 << 24) : random.nextInt();
+                for (int b = 0; b < 4; b++) {
+                    address[12 + b] = (byte) (ipv4 >>> (24 - b * 8));
+                }
+                // the IPv4 subtree of an IPv6 database is ::/96
+                long expected = reader.lookup(address, 16);
+                long result = reader.lookupIPv4(ipv4);
+                assertThat(DatabaseReader.isFound(result), is(DatabaseReader.isFound(expected)));
+                assertThat(DatabaseReader.dataOffset(result), is(DatabaseReader.dataOffset(expected)));
+                assertThat(DatabaseReader.prefixLength(result), is(DatabaseReader.prefixLength(expected) - 96));
+            }
+        }
+    }
+
+    @Test
+    public void testIPv6AgainstIPv4DatabaseIsNotFound() throws Exception {
+        DatabaseReader reader = new DatabaseReader(new File("samples/demo.mmdb"));
+        assertFalse(DatabaseReader.isFound(reader.lookup(new byte[16], 16)));
+    }
+
+    @Test
+    public void testProjectedDecodingMatchesFullDecoding() throws Exception {
+        File file = write(populate(new MMDBWriter(6, 28, "test-ipv6"), true));
+        DatabaseReader reader = new DatabaseReader(file);
+        DataDecoder decoder = reader.newDecoder();
+
+        FieldNode country = new FieldNode("country", "country");
+        country.getChildMap().put("iso_code", new FieldNode("iso_code", "iso_code"));
+        FieldNode names = new FieldNode("names", null);
+        names.getChildMap().put("de", new FieldNode("de", "country_de"));
+        FieldNode missing = new FieldNode("missing", null);
+        missing.getChildMap().put("x", new FieldNode("x", "x"));
+        Map<String, FieldNode> fieldNodeMap = new HashMap<>();
+        fieldNodeMap.put("name", new FieldNode("name", "name"));
+        fieldNodeMap.put("big", new FieldNode("big", "big"));
+        fieldNodeMap.put("missing", missing);
+        fieldNodeMap.put("names", names);
+        fieldNodeMap.put("country", country);
+        FieldNode nameOnly = new FieldNode("names", null);
+        nameOnly.getChildMap().put("en", new FieldNode("en", "country_en"));
+        Map<String, FieldNode> nested = new HashMap<>();
+        nested.put("country", new FieldNode("country", null));
+        nested.get("country").getChildMap().put("names", nameOnly);
+
+        for (Map<String, FieldNode> fields : Arrays.asList(fieldNodeMap, nested)) {
+            FieldProjection projection = new FieldProjection("info", fields);
+            Object[] expected = new Object[projection.size()];
+            Object[] actual = new Object[projection.size()];
+            for (String ip : new String[]{"10.1.1.1", "10.5.5.5", "10.5.6.1", "10.250.0.1"}) {
+                byte[] address = InetAddress.getByName(ip).getAddress();
+                long result = reader.lookup(address, 4);
+                assertTrue(DatabaseReader.isFound(result));
+                @SuppressWarnings("unchecked")
+                Map<String, Object> data = (Map<String, Object>) decoder.decode(DatabaseReader.dataOffset(result));
+                projection.project(data, expected);
+                decoder.decodeProjected(DatabaseReader.dataOffset(result), projection, actual);
+                for (int i = 0; i < expected.length; i++) {
+                    // intermediate nodes are walked through, never materialized
+                    if (projection.target(i) != null) {
+                        assertEquals(expected[i], actual[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(expected = com.maxmind.db.InvalidDatabaseException.class)
+    public void testRejectsFilesWithoutMetadata() throws Exception {
+        File file = temporaryFolder.newFile();
+        java.nio.file.Files.write(file.toPath(), new byte[1024]);
+        new DatabaseReader(file);
+    }
+}
@@ -0,0 +1,71 @@
+package org.logstashplugins;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class FieldProjectionTest {
+
+    private static Map<String, Object> map(Object... keyValues) {
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            map.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return map;
+    }
+
+    @Test
+    public void testNestedProjection() {
+        // fields => ["name", "country.iso_code", "country.names.en:country"]
+        FieldNode country = new FieldNode("country", null);
+        country.getChildMap().put("iso_code", new FieldNode("iso_code", "iso_code"));
+        FieldNode names = new FieldNode("names", null);
+        names.getChildMap().put("en", new FieldNode("en", "country"));
+        country.getChildMap().put("names", names);
+        Map<String, FieldNode> fieldNodeMap = new HashMap<>();
+        fieldNodeMap.put("name", new FieldNode("name", "name"));
+        fieldNodeMap.put("country", country);
+
+        FieldProjection projection = new FieldProjection("info", fieldNodeMap);
+        assertFalse(projection.isWildcard());
+        assertThat(projection.size(), is(5));
+        for (int i = 0; i < projection.size(); i++) {
+            assertTrue(projection.parent(i) < i);
+        }
+
+        Map<String, Object> data = map(
+            "name", "DMZ",
+            "country", map("iso_code", "NZ", "names", map("en", "New Zealand", "de", "Neuseeland")));
+        Object[] values = new Object[projection.size()];
+        projection.project(data, values);
+
+        Map<String, Object> projected = new HashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            if (projection.target(i) != null) {
+                projected.put(projection.target(i).getReference(), values[i]);
+            }
+        }
+        assertThat(projected, is(map(
+            "[info][name]", "DMZ",
+            "[info][iso_code]", "NZ",
+            "[info][country]", "New Zealand")));
+
+        // a scalar where a map was expected projects nothing below it
+        projection.project(map("country", "NZ"), values);
+        for (Object value : values) {
+            assertTrue(value == null || value.equals("NZ"));
+        }
+    }
+
+    @Test
+    public void testWildcardTargetsAreCached() {
+        FieldProjection projection = new FieldProjection("info", null);
+        assertTrue(projection.isWildcard());
+        assertSame(projection.wildcardTarget("subnet"), projection.wildcardTarget("subnet"));
+        assertThat(projection.wildcardTarget("subnet").getReference(), is("[info][subnet]"));
+    }
+}
@@ -0,0 +1,102 @@
+package org.logstashplugins;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+public class IpLiteralParserTest {
+
+    private static byte[] parse(String value) {
+        byte[] buffer = new byte[16];
+        int length = IpLiteralParser.parse(value, buffer);
+        return length == IpLiteralParser.INVALID ? null : Arrays.copyOf(buffer, length);
+    }
+
+    @Test
+    public void testIPv4() throws Exception {
+        for (String ip : new String[]{"0.0.0.0", "10.10.1.123", "255.255.255.255", "172.16.0.1"}) {
+            assertArrayEquals(ip, InetAddress.getByName(ip).getAddress(), parse(ip));
+        }
+    }
+
+    @Test
+    public void testIPv6() throws Exception {
+        String[] ips = new String[]{
+            "::", "::1", "1::", "2001:db8::1", "2001:DB8:0:0:8:800:200C:417A",
+            "fe80::1:2:3:4", "1:2:3:4:5:6:7:8", "1:2:3:4:5:6:7::", "::2:3:4:5:6:7:8",
+            "::ffff:10.10.1.123", "::10.10.1.123", "1:2:3:4:5:6:10.0.0.1"
+        };
+        for (String ip : ips) {
+            byte[] expected = new byte[16];
+            byte[] javaAddress = InetAddress.getByName(ip).getAddress();
+            System.arraycopy(javaAddress, 0, expected, 16 - javaAddress.length, javaAddress.length);
+            if (javaAddress.length == 4) {
+                // InetAddress folds mapped addresses to IPv4
+                expected[10] = expected[11] = (byte) 0xff;
+            }
+            assertArrayEquals(ip, expected, parse(ip));
+        }
+        assertThat(parse("fe80::1%eth0").length, is(16));
+    }
+
+    @Test
+    public void testRejectsNonLiterals() {
+        String[] values = new String[]{
+            "", "localhost", "example.com", "10.10.1", "10.10.1.256", "10.10.1.1.", "1.2.3.4.5",
+            "1.2.3.0004", " 10.0.0.1", "10.0.0.1 ", ":", ":::", ":1", "1:", "1::2::3",
+            "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7:8::", "12345::", "g::1", "::1.2.3",
+            "1:2:3:4:5:6:7:1.2.3.4", "%eth0",
+            // full-width and Arabic-Indic digits are digits to Character.digit, not to an IP literal
+            "\uFF11::1", "2001:db8::\uFF41", "\u0661::1", "\uFF11\uFF10.0.0.1"
+        };
+        for (String value : values) {
+            assertNull(value, parse(value));
+        }
+    }
+
+    @Test
+    public void testNormalize() throws Exception {
+        String[][] cases = new String[][]{
+            {"::ffff:10.10.1.123", "10.10.1.123"},
+            {"::ffff:a0a:17b", "10.10.1.123"},
+            {"::10.10.1.123", "10.10.1.123"},
+            {"::0.0.0.2", "0.0.0.2"},
+            {"10.10.1.123", "10.10.1.123"},
+            {"::", "::"},
+            {"::1", "::1"},
+            {"::fffe:10.10.1.123", "::fffe:10.10.1.123"},
+            {"1::ffff:10.10.1.123", "1::ffff:10.10.1.123"},
+            {"2001:db8::1", "2001:db8::1"}
+        };
+        for (String[] c : cases) {
+            byte[] buffer = new byte[16];
+            int length = IpLiteralParser.normalize(buffer, IpLiteralParser.parse(c[0], buffer));
+            assertArrayEquals(c[0], parse(c[1]), Arrays.copyOf(buffer, length));
+        }
+        assertThat(IpLiteralParser.normalize(new byte[16], IpLiteralParser.INVALID), is(IpLiteralParser.INVALID));
+    }
+
+    @Test
+    public void testFormatNetwork() {
+        String[][] cases = new String[][]{
+            {"10.10.1.123", "20", "10.10.0.0/20"},
+            {"10.10.1.123", "32", "10.10.1.123/32"},
+            {"255.255.255.255", "0", "0.0.0.0/0"},
+            {"2001:db8:1:2::1", "48", "2001:db8:1::/48"},
+            {"2001:db8::1", "128", "2001:db8::1/128"},
+            {"1:0:0:2:0:0:0:3", "128", "1:0:0:2::3/128"},
+            {"1:2:0:0:5:0:0:8", "128", "1:2::5:0:0:8/128"},
+            {"::ffff:10.10.1.123", "112", "::ffff:10.10.0.0/112"},
+            {"ffff::", "1", "8000::/1"},
+            {"::", "0", "::/0"}
+        };
+        for (String[] c : cases) {
+            byte[] address = parse(c[0]);
+            assertThat(c[0], IpLiteralParser.formatNetwork(address, address.length, Integer.parseInt(c[1])), is(c[2]));
+        }
+    }
+}
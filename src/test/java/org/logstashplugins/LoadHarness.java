@@ -0,0 +1,510 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.Event;
+import org.logstash.plugins.ConfigurationImpl;
+import org.logstash.plugins.ContextImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link MMDB#filter} from several worker threads sharing one filter, the
+ * way pipeline workers do, against a synthetic database of
+ * {@link SyntheticDatabases}, and reports throughput, batch latency
+ * percentiles, heap and GC figures. With {@code --reload-every} the database
+ * file is replaced every so many seconds while under load, and the batches that
+ * ran while a reload was going on are reported on their own. Every event of
+ * every batch is checked, so lookups lost to a reload show up as errors.
+ * <pre>
+ * ./gradlew loadTest -PloadArgs="--networks 2000000 --shape nested --workers 8 --reload-every 10"
+ * </pre>
+ * Generated databases are kept in {@code --directory}, so later runs of the same
+ * IP version, size and shape don't generate them again.
+ */
+final class LoadHarness {
+
+    /** batches of addresses each worker cycles through */
+    private static final int POOL_BATCHES = 64;
+    /** how long after a reload batches are still counted as running through it, for the cold caches */
+    private static final long RELOAD_TAIL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    static final class Options {
+        int ipVersion = 4;
+        int networks = 1_000_000;
+        SyntheticDatabases.Shape shape = SyntheticDatabases.Shape.DEMO;
+        int workers = Runtime.getRuntime().availableProcessors();
+        int batchSize = 125;
+        long seconds = 30;
+        long warmupSeconds = 5;
+        double hitRatio = 0.9;
+        long cacheSize = 0;
+        /** the filter's fields, or null for all of them */
+        List<Object> fields;
+        /** 0 never reloads */
+        long reloadEverySeconds = 0;
+        File directory = new File(System.getProperty("java.io.tmpdir"), "mmdb-load");
+    }
+
+    static final class Report {
+        long events;
+        long batches;
+        long errors;
+        double seconds;
+        long[] latencies = new long[0];
+        long[] reloadLatencies = new long[0];
+        int reloads;
+        long maxReloadMillis;
+        long heapUsed;
+        long peakHeapUsed;
+        long allocatedBytes = -1;
+        long gcCount;
+        long gcMillis;
+
+        double eventsPerSecond() {
+            return seconds == 0 ? 0.0 : events / seconds;
+        }
+
+        /**
+         * @return the batch latency at {@code percentile} (0 to 1) in nanoseconds
+         */
+        long percentile(double percentile) {
+            return percentile(latencies, percentile);
+        }
+
+        long reloadPercentile(double percentile) {
+            return percentile(reloadLatencies, percentile);
+        }
+
+        private static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0L;
+            }
+            int rank = (int) Math.ceil(percentile * sorted.length);
+            return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("events %d in %d batches over %.1f s: %.0f events/s, %d errors%n",
+                events, batches, seconds, eventsPerSecond(), errors));
+            out.append(String.format("batch latency p50 %s, p99 %s, p99.9 %s, max %s%n",
+                millis(percentile(0.50)), millis(percentile(0.99)), millis(percentile(0.999)), millis(percentile(1.0))));
+            if (reloads > 0) {
+                out.append(String.format("%d reloads, slowest %d ms; %d batches during reloads: p99 %s, max %s%n",
+                    reloads, maxReloadMillis, reloadLatencies.length,
+                    millis(reloadPercentile(0.99)), millis(reloadPercentile(1.0))));
+            }
+            out.append(String.format("heap used %d MB at the end, peak %d MB%s%n",
+                heapUsed >> 20, peakHeapUsed >> 20,
+                allocatedBytes < 0 || events == 0 ? "" : String.format(", %d bytes allocated per event", allocatedBytes / events)));
+            out.append(String.format("gc %d collections, %d ms", gcCount, gcMillis));
+            return out.toString();
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.3f ms", nanos / 1e6);
+        }
+    }
+
+    private LoadHarness() {
+    }
+
+    /**
+     * The database of the given shape, generated into {@code options.directory} unless a
+     * previous run already did.
+     */
+    static File database(Options options, int revision) throws IOException {
+        File file = new File(options.directory, String.format("synthetic-ipv%d-%d-%s-r%d.mmdb",
+            options.ipVersion, options.networks, options.shape.name().toLowerCase(), revision));
+        if (!file.exists()) {
+            Files.createDirectories(options.directory.toPath());
+            File partial = new File(options.directory, file.getName() + ".partial");
+            long start = System.nanoTime();
+            SyntheticDatabases.write(partial, options.ipVersion, options.networks, options.shape, revision);
+            Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.err.printf("generated %s (%d MB) in %d s%n", file, file.length() >> 20,
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+        }
+        return file;
+    }
+
+    private static final class Worker extends Thread {
+        private final MMDB filter;
+        private final Options options;
+        private final String[] addresses;
+        private final boolean[] hits;
+        private final long measureStart;
+        private final long end;
+        private long[] starts = new long[1024];
+        private long[] latencies = new long[1024];
+        private int batches;
+        private long events;
+        private long errors;
+        /** -1 where the JVM doesn't count allocations per thread */
+        private long allocatedBytes = -1;
+        private Throwable failure;
+
+        Worker(int index, MMDB filter, Options options, long measureStart, long end) {
+            super("mmdb-load-" + index);
+            this.filter = filter;
+            this.options = options;
+            this.measureStart = measureStart;
+            this.end = end;
+            int count = POOL_BATCHES * options.batchSize;
+            int hitCount = (int) Math.round(count * options.hitRatio);
+            List<String> hitAddresses = SyntheticDatabases.addresses(options.ipVersion, options.networks,
+                1.0, hitCount, index * 2L + 1);
+            List<String> missAddresses = SyntheticDatabases.addresses(options.ipVersion, options.networks,
+                0.0, count - hitCount, index * 2L + 2);
+            List<Integer> order = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                order.add(i);
+            }
+            Collections.shuffle(order, new Random(index));
+            this.addresses = new String[count];
+            this.hits = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                int source = order.get(i);
+                hits[i] = source < hitCount;
+                addresses[i] = hits[i] ? hitAddresses.get(source) : missAddresses.get(source - hitCount);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                work();
+            } catch (Throwable ex) {
+                failure = ex;
+            }
+        }
+
+        private void work() {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads : null;
+            boolean measuring = false;
+            long allocatedAtStart = 0;
+            int next = 0;
+            List<Event> batch = new ArrayList<>(options.batchSize);
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= end) {
+                    break;
+                }
+                if (!measuring && now >= measureStart) {
+                    measuring = true;
+                    allocatedAtStart = allocations == null ? 0 : allocations.getThreadAllocatedBytes(getId());
+                }
+                batch.clear();
+                int first = next;
+                for (int i = 0; i < options.batchSize; i++) {
+                    Event e = new org.logstash.Event();
+                    e.setField("ip", addresses[next]);
+                    batch.add(e);
+                    next = (next + 1) % addresses.length;
+                }
+                long start = System.nanoTime();
+                filter.filter(batch, e -> { });
+                long nanos = System.nanoTime() - start;
+                for (int i = 0; i < batch.size(); i++) {
+                    boolean tagged = batch.get(i).getField("tags") != null;
+                    if (tagged == hits[(first + i) % addresses.length]) {
+                        errors++;
+                    }
+                }
+                if (measuring) {
+                    record(start, nanos);
+                    events += batch.size();
+                }
+            }
+            if (measuring && allocations != null) {
+                allocatedBytes = allocations.getThreadAllocatedBytes(getId()) - allocatedAtStart;
+            }
+        }
+
+        private void record(long start, long nanos) {
+            if (batches == latencies.length) {
+                starts = Arrays.copyOf(starts, batches * 2);
+                latencies = Arrays.copyOf(latencies, batches * 2);
+            }
+            starts[batches] = start;
+            latencies[batches++] = nanos;
+        }
+    }
+
+    /**
+     * Replaces the database file with the other revision every so often, and notes when
+     * each replacement was made and when the filter had swapped it in.
+     */
+    private static final class Reloader extends Thread {
+        private final File live;
+        private final File[] revisions;
+        private final SharedDatabase database;
+        private final long intervalNanos;
+        private final long end;
+        private final List<long[]> windows = new ArrayList<>();
+        private long maxReloadMillis;
+        private Throwable failure;
+
+        Reloader(File live, File[] revisions, SharedDatabase database, long intervalNanos, long end) {
+            super("mmdb-load-reloader");
+            this.live = live;
+            this.revisions = revisions;
+            this.database = database;
+            this.intervalNanos = intervalNanos;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long next = System.nanoTime() + intervalNanos;
+                for (int revision = 1; next < end; revision++, next += intervalNanos) {
+                    TimeUnit.NANOSECONDS.sleep(next - System.nanoTime());
+                    long reloads = database.getReloadCount();
+                    File copy = new File(live.getParentFile(), live.getName() + ".next");
+                    Files.copy(revisions[revision % revisions.length].toPath(), copy.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                    long replaced = System.nanoTime();
+                    Files.move(copy.toPath(), live.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    try {
+                        while (database.getReloadCount() == reloads && System.nanoTime() < end) {
+                            Thread.sleep(5);
+                        }
+                    } finally {
+                        // a swap still reloading when the run ends counts until then
+                        windows.add(new long[]{replaced, System.nanoTime() + RELOAD_TAIL_NANOS});
+                    }
+                    maxReloadMillis = Math.max(maxReloadMillis, database.getLastReloadDurationMillis());
+                }
+            } catch (InterruptedException ex) {
+                // the run is over
+            } catch (Throwable ex) {
+                failure = ex;
+            }
+        }
+    }
+
+    static Report run(Options options) throws IOException, InterruptedException {
+        File[] revisions = {database(options, 1), null};
+        if (options.reloadEverySeconds > 0) {
+            revisions[1] = database(options, 2);
+        }
+        File live = Files.createTempDirectory(options.directory.toPath(), "live-").resolve("live.mmdb").toFile();
+        Files.copy(revisions[0].toPath(), live.toPath());
+
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("source", "ip");
+        settings.put("target", "info");
+        settings.put("database", live.getPath());
+        settings.put("cache_size", options.cacheSize);
+        if (options.fields != null) {
+            settings.put("fields", options.fields);
+        }
+        MMDB filter = new MMDB("load", new ConfigurationImpl(settings), new ContextImpl(null, NoopMetric.INSTANCE));
+        SharedDatabase database = DatabaseRegistry.acquire(live);
+        try {
+            long measureStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+            long end = measureStart + TimeUnit.SECONDS.toNanos(options.seconds);
+            List<Worker> workers = new ArrayList<>();
+            for (int w = 0; w < options.workers; w++) {
+                workers.add(new Worker(w, filter, options, measureStart, end));
+            }
+            Reloader reloader = options.reloadEverySeconds > 0
+                ? new Reloader(live, revisions, database, TimeUnit.SECONDS.toNanos(options.reloadEverySeconds), end)
+                : null;
+            for (Worker worker : workers) {
+                worker.start();
+            }
+
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, measureStart - System.nanoTime()));
+            long[] gcBefore = gcTotals();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            if (reloader != null) {
+                reloader.start();
+            }
+            for (Worker worker : workers) {
+                worker.join();
+            }
+            if (reloader != null) {
+                reloader.interrupt();
+                reloader.join();
+            }
+            long[] gcAfter = gcTotals();
+
+            Report report = new Report();
+            report.seconds = options.seconds;
+            report.gcCount = gcAfter[0] - gcBefore[0];
+            report.gcMillis = gcAfter[1] - gcBefore[1];
+            report.heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    report.peakHeapUsed += pool.getPeakUsage().getUsed();
+                }
+            }
+            List<long[]> windows = reloader == null ? Collections.<long[]>emptyList() : reloader.windows;
+            Throwable failure = reloader == null ? null : reloader.failure;
+            for (Worker worker : workers) {
+                failure = worker.failure != null ? worker.failure : failure;
+                report.events += worker.events;
+                report.errors += worker.errors;
+                report.batches += worker.batches;
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Load run failed", failure);
+            }
+            long[] latencies = new long[(int) report.batches];
+            long[] reloadLatencies = new long[(int) report.batches];
+            int count = 0;
+            int reloadCount = 0;
+            report.allocatedBytes = 0;
+            for (Worker worker : workers) {
+                report.allocatedBytes = worker.allocatedBytes < 0 || report.allocatedBytes < 0
+                    ? -1 : report.allocatedBytes + worker.allocatedBytes;
+                for (int b = 0; b < worker.batches; b++) {
+                    latencies[count++] = worker.latencies[b];
+                    if (inWindow(worker.starts[b], windows)) {
+                        reloadLatencies[reloadCount++] = worker.latencies[b];
+                    }
+                }
+            }
+            Arrays.sort(latencies);
+            report.latencies = latencies;
+            report.reloadLatencies = Arrays.copyOf(reloadLatencies, reloadCount);
+            Arrays.sort(report.reloadLatencies);
+            report.reloads = windows.size();
+            report.maxReloadMillis = reloader == null ? 0 : reloader.maxReloadMillis;
+            return report;
+        } finally {
+            DatabaseRegistry.release(database);
+            filter.close();
+            Files.deleteIfExists(live.toPath());
+            Files.deleteIfExists(live.getParentFile().toPath());
+        }
+    }
+
+    private static boolean inWindow(long start, List<long[]> windows) {
+        for (long[] window : windows) {
+            if (start >= window[0] && start < window[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return collections and milliseconds spent collecting, over all collectors
+     */
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, collector.getCollectionCount());
+            totals[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return totals;
+    }
+
+    private static final String USAGE = String.join("\n",
+        "usage: LoadHarness [options]",
+        "",
+        "  --ip-version 4|6          default 4",
+        "  --networks N              networks in the database, default 1000000",
+        "  --shape demo|flat|nested|lists",
+        "                            record shape, default demo",
+        "  --workers N               threads sharing the filter, default the number of processors",
+        "  --batch-size N            events per batch, default 125",
+        "  --seconds N               measured run time, default 30",
+        "  --warmup N                seconds run before measuring, default 5",
+        "  --hit-ratio R             share of addresses in the database, default 0.9",
+        "  --cache-size N            the filter's cache_size, default 0",
+        "  --fields a,b              the filter's fields, default all",
+        "  --reload-every N          replace the database every N seconds, default never",
+        "  --directory DIR           where generated databases are kept");
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (args[i].equals("-h") || args[i].equals("--help")) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--ip-version":
+                        options.ipVersion = Integer.parseInt(value);
+                        if (options.ipVersion != 4 && options.ipVersion != 6) {
+                            throw new IllegalArgumentException("--ip-version must be 4 or 6");
+                        }
+                        break;
+                    case "--networks":
+                        options.networks = Integer.parseInt(value);
+                        break;
+                    case "--shape":
+                        options.shape = SyntheticDatabases.Shape.parse(value);
+                        break;
+                    case "--workers":
+                        options.workers = Integer.parseInt(value);
+                        break;
+                    case "--batch-size":
+                        options.batchSize = Integer.parseInt(value);
+                        break;
+                    case "--seconds":
+                        options.seconds = Long.parseLong(value);
+                        break;
+                    case "--warmup":
+                        options.warmupSeconds = Long.parseLong(value);
+                        break;
+                    case "--hit-ratio":
+                        options.hitRatio = Double.parseDouble(value);
+                        break;
+                    case "--cache-size":
+                        options.cacheSize = Long.parseLong(value);
+                        break;
+                    case "--fields":
+                        options.fields = new ArrayList<>(Arrays.asList((Object[]) value.split(",")));
+                        break;
+                    case "--reload-every":
+                        options.reloadEverySeconds = Long.parseLong(value);
+                        break;
+                    case "--directory":
+                        options.directory = new File(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        System.out.printf("%d IPv%d networks of %s records, %d workers, batches of %d, %d s after %d s warm-up%s%n",
+            options.networks, options.ipVersion, options.shape.name().toLowerCase(), options.workers,
+            options.batchSize, options.seconds, options.warmupSeconds,
+            options.reloadEverySeconds > 0 ? ", reloading every " + options.reloadEverySeconds + " s" : "");
+        System.out.println(run(options));
+    }
+}
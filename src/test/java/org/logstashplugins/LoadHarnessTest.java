@@ -0,0 +1,89 @@
+package org.logstashplugins;
+
+import co.elastic.logstash.api.Event;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.logstash.plugins.ConfigurationImpl;
+import org.logstash.plugins.ContextImpl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+public class LoadHarnessTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testEveryShapeIsReadable() throws Exception {
+        for (SyntheticDatabases.Shape shape : SyntheticDatabases.Shape.values()) {
+            for (int ipVersion : new int[]{4, 6}) {
+                File file = temporaryFolder.newFile();
+                SyntheticDatabases.write(file, ipVersion, 1000, shape, 2);
+                Map<String, Object> settings = new HashMap<>();
+                settings.put("source", "ip");
+                settings.put("target", "info");
+                settings.put("database", file.getPath());
+                MMDB filter = new MMDB("test-id", new ConfigurationImpl(settings), new ContextImpl(null, NoopMetric.INSTANCE));
+
+                List<String> addresses = SyntheticDatabases.addresses(ipVersion, 1000, 1.0, 10, 1);
+                addresses.addAll(SyntheticDatabases.addresses(ipVersion, 1000, 0.0, 10, 1));
+                List<Event> events = new ArrayList<>();
+                for (String address : addresses) {
+                    Event e = new org.logstash.Event();
+                    e.setField("ip", address);
+                    events.add(e);
+                }
+                filter.filter(events, e -> { });
+                for (int i = 0; i < events.size(); i++) {
+                    Event e = events.get(i);
+                    String message = shape + " IPv" + ipVersion + " " + addresses.get(i);
+                    if (i < 10) {
+                        assertThat(message, e.getField("[info][name]"), is(instanceOf(String.class)));
+                        assertThat(message, e.getField("[info][revision]"), is((Object) 2L));
+                    } else {
+                        assertThat(message, e.getField("tags"), is((Object) Arrays.asList("_mmdb_lookup_failure")));
+                    }
+                }
+                filter.close();
+            }
+        }
+        assertThat(SyntheticDatabases.record(7, SyntheticDatabases.Shape.NESTED, 0).toString(),
+            containsString("rack={name=rack 3, code=3}"));
+    }
+
+    @Test
+    public void testLoadWithHotReloads() throws Exception {
+        LoadHarness.Options options = new LoadHarness.Options();
+        options.networks = 20000;
+        options.shape = SyntheticDatabases.Shape.LISTS;
+        options.workers = 4;
+        options.seconds = 3;
+        options.warmupSeconds = 0;
+        options.cacheSize = 1024;
+        options.reloadEverySeconds = 1;
+        options.directory = temporaryFolder.newFolder();
+
+        LoadHarness.Report report = LoadHarness.run(options);
+
+        assertThat(report.errors, is(0L));
+        assertTrue(report.events > 0);
+        assertThat(report.events, is(report.batches * options.batchSize));
+        assertTrue(report.reloads >= 1);
+        assertTrue(report.reloadLatencies.length > 0);
+        assertTrue(report.percentile(0.99) > 0);
+        assertTrue(report.percentile(0.99) <= report.percentile(1.0));
+        assertTrue(report.peakHeapUsed > 0);
+        assertThat(report.toString(), containsString("events/s"));
+        // generated once, then reused
+        assertThat(options.directory.list((dir, name) -> name.endsWith(".mmdb")).length, is(2));
+    }
+}
@@ -0,0 +1,66 @@
+package org.logstashplugins;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class LookupBatchTest {
+
+    private static LookupBatch batch(boolean deduplicate, String... ips) {
+        LookupBatch batch = new LookupBatch(ips.length, deduplicate);
+        byte[] address = new byte[16];
+        for (String ip : ips) {
+            batch.add(address, IpLiteralParser.parse(ip, address));
+        }
+        return batch;
+    }
+
+    private static String address(LookupBatch batch, int index) {
+        byte[] address = new byte[16];
+        int length = batch.address(index, address);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(i == 0 ? "" : ".").append(address[i] & 0xFF);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testDeduplicatesAndSorts() {
+        LookupBatch batch = batch(true, "10.0.0.2", "192.168.0.1", "not an ip", "10.0.0.2", "::1", "10.0.0.1", "192.168.0.1");
+        assertThat(batch.size(), is(7));
+        assertThat(batch.distinct(), is(4));
+        assertThat(batch.slot(0), is(batch.slot(3)));
+        assertThat(batch.slot(1), is(batch.slot(6)));
+        assertThat(batch.slot(2), is(-1));
+        assertThat(address(batch, batch.slot(4)), is("0.0.0.0.0.0.0.0.0.0.0.0.0.0.0.1"));
+
+        int[] order = batch.lookupOrder();
+        assertThat(address(batch, order[0]), is("10.0.0.1"));
+        assertThat(address(batch, order[1]), is("10.0.0.2"));
+        assertThat(address(batch, order[2]), is("192.168.0.1"));
+        assertThat(order[3], is(batch.slot(4)));
+    }
+
+    @Test
+    public void testWithoutDeduplication() {
+        LookupBatch batch = batch(false, "10.0.0.2", "10.0.0.2", "10.0.0.1");
+        assertThat(batch.distinct(), is(3));
+        assertArrayEquals(new int[]{0, 1, 2}, batch.lookupOrder());
+    }
+
+    @Test
+    public void testLargeBatch() {
+        String[] ips = new String[1000];
+        for (int i = 0; i < ips.length; i++) {
+            ips[i] = "10.0." + (i % 300 / 256) + "." + (i % 300 % 256);
+        }
+        LookupBatch batch = batch(true, ips);
+        assertThat(batch.distinct(), is(300));
+        int[] order = batch.lookupOrder();
+        for (int i = 0; i < order.length; i++) {
+            assertThat(address(batch, order[i]), is("10.0." + (i / 256) + "." + (i % 256)));
+        }
+    }
+}
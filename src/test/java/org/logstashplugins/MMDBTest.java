@@ -12,16 +12,22 @@ import org.logstashplugins.MMDB;
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -32,6 +38,9 @@ import java.net.InetAddress;
 
 public class MMDBTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void testConfigRequiresDatabase() {
 
@@ -215,6 +224,123 @@ public class MMDBTest {
         }
     }
 
+    @Test
+    public void testNetworkOutputs() {
+        // 10.10.16.0/20 and 10.10.128.0/17 are both left of 10.10.0.0/16 by its more specific
+        // networks, and so lead to the same record
+        for (long rangeIndexMaxNodes : new long[]{0L, 65536L}) {
+            HashMap configMap = new HashMap();
+            configMap.put("source", "ip");
+            configMap.put("target", "info");
+            configMap.put("database", "samples/demo.mmdb");
+            configMap.put("fields", Arrays.asList("name"));
+            configMap.put("network_field", "network");
+            configMap.put("prefix_length_field", "prefix_length");
+            configMap.put("cache_size", 16L);
+            configMap.put("range_index_max_nodes", rangeIndexMaxNodes);
+            MMDB filter = new MMDB("test-id", new ConfigurationImpl(configMap), new ContextImpl(null, NoopMetric.INSTANCE));
+
+            for (int round = 0; round < 2; round++) {
+                String[] ips = {"10.10.20.1", "10.10.200.1", "10.10.20.2", "10.10.1.1", "10.10.200.2"};
+                String[] networks = {"10.10.16.0/20", "10.10.128.0/17", "10.10.16.0/20", "10.10.1.0/24", "10.10.128.0/17"};
+                List<Event> events = new ArrayList<>();
+                for (String ip : ips) {
+                    Event e = new org.logstash.Event();
+                    e.setField("ip", ip);
+                    events.add(e);
+                }
+                filter.filter(events, new TestMatchListener());
+                for (int i = 0; i < ips.length; i++) {
+                    Event e = events.get(i);
+                    assertThat(ips[i], e.getField("[info][network]"), is(networks[i]));
+                    assertThat(e.getField("[info][prefix_length]"),
+                        is(Long.valueOf(networks[i].substring(networks[i].indexOf('/') + 1))));
+                    assertThat(e.getField("[info][name]"), is(i == 3 ? "Load balancer VIPs" : "Datacenter range"));
+                }
+            }
+            filter.close();
+        }
+    }
+
+    @Test
+    public void testOverlay() throws Exception {
+        File overlay = temporaryFolder.newFile("overlay.json");
+        Files.write(overlay.toPath(), ("{\"172.16.0.0/24\": {\"name\": \"Overlay DMZ\", \"site\": \"lab\"},"
+            + " \"10.10.1.0/24\": null}").getBytes(StandardCharsets.UTF_8));
+        for (long rangeIndexMaxNodes : new long[]{0L, 65536L}) {
+            HashMap configMap = new HashMap();
+            configMap.put("source", "ip");
+            configMap.put("target", "info");
+            configMap.put("database", "samples/demo.mmdb");
+            configMap.put("overlay", overlay.getPath());
+            configMap.put("fields", Arrays.asList("name", "vlan_id"));
+            configMap.put("network_field", "network");
+            configMap.put("cache_size", 16L);
+            configMap.put("range_index_max_nodes", rangeIndexMaxNodes);
+            MMDB filter = new MMDB("test-id", new ConfigurationImpl(configMap), new ContextImpl(null, NoopMetric.INSTANCE));
+
+            List<Event> events = filterIps(filter, "172.16.0.1", "10.10.1.1", "10.10.20.1", "10.10.200.1");
+            assertThat(events.get(0).getField("[info][name]"), is("Overlay DMZ"));
+            assertThat(events.get(0).getField("[info][network]"), is("172.16.0.0/24"));
+            assertNull(events.get(0).getField("[info][vlan_id]"));
+            assertNull(events.get(0).getField("[info][site]"));
+            // hidden by the overlay
+            assertNull(events.get(1).getField("[info]"));
+            assertThat(events.get(1).getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+            assertThat(events.get(2).getField("[info][name]"), is("Datacenter range"));
+
+            Files.write(overlay.toPath(), "{\"10.10.20.0/24\": {\"name\": \"Moved\"}".getBytes(StandardCharsets.UTF_8));
+            filter.getOverlay().reload();
+            assertTrue(filter.getOverlay().getReloadFailureCount() > 0);
+            assertThat(filterIps(filter, "172.16.0.1").get(0).getField("[info][name]"), is("Overlay DMZ"));
+            Files.write(overlay.toPath(), "{\"10.10.20.0/24\": {\"name\": \"Moved\"}}".getBytes(StandardCharsets.UTF_8));
+            filter.getOverlay().reload();
+
+            long cacheHits = filter.getMetrics().getCacheHits();
+            events = filterIps(filter, "172.16.0.1", "10.10.1.1", "10.10.20.1", "10.10.200.1");
+            assertThat(events.get(0).getField("[info][name]"), is("DMZ"));
+            assertThat(events.get(1).getField("[info][name]"), is("Load balancer VIPs"));
+            assertThat(events.get(2).getField("[info][name]"), is("Moved"));
+            assertThat(events.get(2).getField("[info][network]"), is("10.10.20.0/24"));
+            assertThat(events.get(3).getField("[info][name]"), is("Datacenter range"));
+            if (rangeIndexMaxNodes == 0L) {
+                // the database results cached before the overlay changed are still there
+                assertThat(filter.getMetrics().getCacheHits(), is(cacheHits + 1));
+            }
+            filter.close();
+            Files.write(overlay.toPath(), ("{\"172.16.0.0/24\": {\"name\": \"Overlay DMZ\", \"site\": \"lab\"},"
+                + " \"10.10.1.0/24\": null}").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testConfigOverlayMustBeValid() throws Exception {
+        File overlay = temporaryFolder.newFile("overlay.json");
+        Files.write(overlay.toPath(), "{\"10.0.0.0/33\": {}}".getBytes(StandardCharsets.UTF_8));
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("overlay", overlay.getPath());
+        try {
+            new MMDB("test-id", new ConfigurationImpl(configMap), new ContextImpl(null, NoopMetric.INSTANCE));
+            fail("Expected an exception to be thrown");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), containsString("10.0.0.0/33"));
+        }
+    }
+
+    private static List<Event> filterIps(MMDB filter, String... ips) {
+        List<Event> events = new ArrayList<>();
+        for (String ip : ips) {
+            Event e = new org.logstash.Event();
+            e.setField("ip", ip);
+            events.add(e);
+        }
+        filter.filter(events, new TestMatchListener());
+        return events;
+    }
+
     @Test
     public void testDemoFields() {
 
@@ -302,8 +428,10 @@ public class MMDBTest {
         File databaseFile = new File("samples/demo.mmdb");
         databaseFile.setLastModified(System.currentTimeMillis());
         Thread.sleep(1000);
-        assertNotEquals(MMDB.lastModifiedTime, 0L);
-        long lastModifiedTime = MMDB.lastModifiedTime;
+        assertNotEquals(filter.getLastCheckedTime(), 0L);
+        // the content is the same, so nothing was reloaded
+        assertEquals(filter.getLastModifiedTime(), 0L);
+        long lastCheckedTime = filter.getLastCheckedTime();
         Path other = databaseFile.toPath().getParent().resolve("test");
         if (Files.exists(other)) {
             Files.delete(other);
@@ -311,7 +439,7 @@ public class MMDBTest {
             Files.createFile(other);
         }
         Thread.sleep(1000);
-        assertEquals(MMDB.lastModifiedTime, lastModifiedTime);
+        assertEquals(filter.getLastCheckedTime(), lastCheckedTime);
     }
 
     @Test
@@ -345,6 +473,965 @@ public class MMDBTest {
         assertThat(e.getField("[info][new_vlan_id]"), is(234L));
         assertNull(e.getField("[info][city]"));
     }
+
+    @Test
+    public void testHostnameIsNotResolvedByDefault() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+
+        TestMatchListener matchListener = new TestMatchListener();
+        for (String value : new String[]{"localhost", "not an ip", "", "10.10.1"}) {
+            Event e = new org.logstash.Event();
+            e.setField("ip", value);
+            filter.filter(Collections.singletonList(e), matchListener);
+
+            assertThat(e.getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+            assertNull(e.getField("[info]"));
+        }
+
+        Event e = new org.logstash.Event();
+        filter.filter(Collections.singletonList(e), matchListener);
+        assertThat(e.getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+        assertThat(matchListener.getMatchCount(), is(0));
+    }
+
+    @Test
+    public void testIPv6LiteralAgainstIPv4Database() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+
+        Event e = new org.logstash.Event();
+        TestMatchListener matchListener = new TestMatchListener();
+        e.setField("ip", "2001:db8::1");
+        filter.filter(Collections.singletonList(e), matchListener);
+
+        assertThat(e.getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+    }
+
+    @Test
+    public void testIPv4MappedAndCompatibleLiteralsAreLookedUpAsIPv4() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("network_field", "network");
+        configMap.put("skip_networks", Collections.singletonList("::ffff:172.17.0.0/112"));
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+
+        String[] ips = new String[]{"::ffff:172.16.0.1", "::172.16.0.1", "172.16.0.1", "172.17.0.1", "::1"};
+        List<Event> events = new ArrayList<>();
+        for (String ip : ips) {
+            Event e = new org.logstash.Event();
+            e.setField("ip", ip);
+            events.add(e);
+        }
+        TestMatchListener matchListener = new TestMatchListener();
+        filter.filter(events, matchListener);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(ips[i], events.get(i).getField("[info][name]"), is("DMZ"));
+            assertThat(ips[i], events.get(i).getField("[info][network]"), is("172.16.0.0/12"));
+        }
+        assertThat(matchListener.getMatchCount(), is(3));
+        assertThat(events.get(3).getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+        assertThat(events.get(4).getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+    }
+
+    @Test
+    public void testResolveHostnames() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("resolve_hostnames", true);
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+
+        Event e = new org.logstash.Event();
+        TestMatchListener matchListener = new TestMatchListener();
+        e.setField("ip", "localhost");
+        filter.filter(Collections.singletonList(e), matchListener);
+
+        // loopback is not part of the demo database, but it must get as far as the lookup
+        assertThat(e.getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+        assertThat(matchListener.getMatchCount(), is(0));
+    }
+
+    @Test
+    public void testSharedDatabase() throws Exception {
+        File copy = temporaryFolder.newFile("shared.mmdb");
+        Files.copy(new File("samples/demo.mmdb").toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", copy.getPath());
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB first = new MMDB("first", config, context);
+        configMap.put("database", copy.getParent() + "/../" + copy.getParentFile().getName() + "/shared.mmdb");
+        MMDB second = new MMDB("second", new ConfigurationImpl(configMap), context);
+        configMap.put("database", "samples/demo.mmdb");
+        MMDB other = new MMDB("other", new ConfigurationImpl(configMap), context);
+
+        Metadata shared = first.getMetadata();
+        assertSame(shared, second.getMetadata());
+        assertNotSame(shared, other.getMetadata());
+
+        first.close();
+        Event e = new org.logstash.Event();
+        e.setField("ip", "172.16.0.1");
+        second.filter(Collections.singletonList(e), new TestMatchListener());
+        assertThat(e.getField("[info][name]"), is("DMZ"));
+        second.close();
+
+        configMap.put("database", copy.getPath());
+        MMDB reopened = new MMDB("reopened", new ConfigurationImpl(configMap), context);
+        assertNotSame(shared, reopened.getMetadata());
+        reopened.close();
+        other.close();
+    }
+
+    @Test
+    public void testConfigCacheEvictionMustBeKnown() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("cache_size", 16L);
+        configMap.put("cache_eviction", "mru");
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+
+        try {
+            MMDB filter = new MMDB("test-id", config, context);
+            fail("Expected an exception to be thrown");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("Cache eviction must be one of lru, fifo or random"));
+        }
+    }
+
+    @Test
+    public void testCacheIsInvalidatedOnReload() throws Exception {
+        File copy = temporaryFolder.newFile("reloaded.mmdb");
+        Files.copy(new File("samples/demo.mmdb").toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", copy.getPath());
+        configMap.put("cache_size", 64L);
+        List configFields = new ArrayList<String>();
+        configFields.add("name");
+        configMap.put("fields", configFields);
+        configMap.put("range_index_max_nodes", 0L);
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+
+        Event e = new org.logstash.Event();
+        e.setField("ip", "172.16.0.1");
+        filter.filter(Collections.singletonList(e), new TestMatchListener());
+        assertThat(e.getField("[info][name]"), is("DMZ"));
+
+        new MMDBWriter(4, 24, "demo-network")
+            .insert("172.16.0.0/12", Collections.singletonMap("name", "Renamed DMZ"))
+            .write(copy);
+        for (int i = 0; i < 50 && filter.getLastModifiedTime() == 0L; i++) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(200);
+
+        e = new org.logstash.Event();
+        e.setField("ip", "172.16.0.1");
+        filter.filter(Collections.singletonList(e), new TestMatchListener());
+        assertThat(e.getField("[info][name]"), is("Renamed DMZ"));
+        filter.close();
+    }
+
+    @Test
+    public void testSkipNetworks() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("skip_networks", Arrays.asList("172.16.0.0/16", "192.168.0.0/16"));
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+
+        Event skipped = new org.logstash.Event();
+        skipped.setField("ip", "172.16.0.1");
+        Event found = new org.logstash.Event();
+        found.setField("ip", "172.17.0.1");
+        TestMatchListener matchListener = new TestMatchListener();
+        filter.filter(Arrays.asList(skipped, found), matchListener);
+
+        assertThat(skipped.getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+        assertNull(skipped.getField("[info]"));
+        assertNull(found.getField("tags"));
+        assertThat(found.getField("[info][name]"), is("DMZ"));
+        assertThat(matchListener.getMatchCount(), is(1));
+    }
+
+    @Test
+    public void testConfigSkipNetworksMustBeValid() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("skip_networks", Arrays.asList("10.0.0.0/8", "not-a-network"));
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+
+        try {
+            MMDB filter = new MMDB("test-id", config, context);
+            fail("Expected an exception to be thrown");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("Invalid network in skip_networks: not-a-network"));
+        }
+    }
+
+    @Test
+    public void testNegativeCache() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("negative_cache_size", 64L);
+        configMap.put("range_index_max_nodes", 0L);
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+
+        TestMatchListener matchListener = new TestMatchListener();
+        for (String ip : new String[]{"192.168.1.1", "192.168.1.1", "192.168.200.1", "172.16.0.1", "10.0.0.1", "10.0.0.2"}) {
+            Event e = new org.logstash.Event();
+            e.setField("ip", ip);
+            filter.filter(Collections.singletonList(e), matchListener);
+            if (ip.equals("172.16.0.1")) {
+                assertNull(e.getField("tags"));
+                assertThat(e.getField("[info][name]"), is("DMZ"));
+            } else {
+                assertThat(e.getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+            }
+        }
+        assertThat(matchListener.getMatchCount(), is(1));
+    }
+
+    @Test
+    public void testBatchWithRepeatedAddresses() {
+
+        for (boolean deduplicate : new boolean[]{true, false}) {
+            HashMap configMap = new HashMap();
+            configMap.put("source", "ip");
+            configMap.put("target", "info");
+            configMap.put("database", "samples/demo.mmdb");
+            configMap.put("deduplicate_batches", deduplicate);
+            Configuration config = new ConfigurationImpl(configMap);
+            Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+            MMDB filter = new MMDB("test-id", config, context);
+
+            List<Event> events = new ArrayList<>();
+            for (String ip : new String[]{"172.16.0.1", "10.64.1.255", "192.168.1.1", "172.16.0.1", "bogus", "10.64.1.255"}) {
+                Event e = new org.logstash.Event();
+                e.setField("ip", ip);
+                events.add(e);
+            }
+            TestMatchListener matchListener = new TestMatchListener();
+            filter.filter(events, matchListener);
+
+            assertThat(matchListener.getMatchCount(), is(4));
+            assertThat(events.get(0).getField("[info][name]"), is("DMZ"));
+            assertThat(events.get(3).getField("[info][name]"), is("DMZ"));
+            assertThat(events.get(1).getField("[info][subnet]"), is("10.64.0.0/23"));
+            assertThat(events.get(5).getField("[info][subnet]"), is("10.64.0.0/23"));
+            assertThat(events.get(2).getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+            assertThat(events.get(4).getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+            assertNull(events.get(0).getField("tags"));
+
+            // events sharing a result must not share mutable field values
+            events.get(0).setField("[info][name]", "changed");
+            assertThat(events.get(3).getField("[info][name]"), is("DMZ"));
+            filter.close();
+        }
+    }
+
+    @Test
+    public void testFileModes() {
+
+        for (String mode : new String[]{"mmap", "heap", "direct"}) {
+            HashMap configMap = new HashMap();
+            configMap.put("source", "ip");
+            configMap.put("target", "info");
+            configMap.put("database", "samples/demo.mmdb");
+            configMap.put("file_mode", mode);
+            configMap.put("preload_database", true);
+            Configuration config = new ConfigurationImpl(configMap);
+            Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+            MMDB filter = new MMDB("test-id", config, context);
+
+            Event e = new org.logstash.Event();
+            e.setField("ip", "172.16.0.1");
+            TestMatchListener matchListener = new TestMatchListener();
+            filter.filter(Collections.singletonList(e), matchListener);
+
+            assertNull(e.getField("tags"));
+            assertThat(e.getField("[info][name]"), is("DMZ"));
+            filter.close();
+        }
+    }
+
+    @Test
+    public void testConfigFileModeMustBeKnown() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("file_mode", "swap");
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+
+        try {
+            MMDB filter = new MMDB("test-id", config, context);
+            fail("Expected an exception to be thrown");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("File mode must be one of mmap, heap or direct"));
+        }
+    }
+
+    @Test
+    public void testReloadRejectsTruncatedDatabase() throws Exception {
+        File copy = temporaryFolder.newFile("prewarmed.mmdb");
+        Files.copy(new File("samples/demo.mmdb").toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", copy.getPath());
+        configMap.put("cache_size", 64L);
+        configMap.put("negative_cache_size", 64L);
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+
+        List<Event> events = new ArrayList<>();
+        for (String ip : new String[]{"172.16.0.1", "192.168.1.1"}) {
+            Event e = new org.logstash.Event();
+            e.setField("ip", ip);
+            events.add(e);
+        }
+        filter.filter(events, new TestMatchListener());
+
+        // a truncated file is rejected and the current database stays in use
+        byte[] renamed = new MMDBWriter(4, 24, "demo-network")
+            .insert("172.16.0.0/12", Collections.singletonMap("name", "Renamed DMZ"))
+            .toByteArray();
+        Files.write(copy.toPath(), Arrays.copyOf(renamed, renamed.length - 20));
+        Thread.sleep(1000);
+        assertThat(filter.getLastModifiedTime(), is(0L));
+
+        Files.write(copy.toPath(), renamed);
+        for (int i = 0; i < 50 && filter.getLastModifiedTime() == 0L; i++) {
+            Thread.sleep(100);
+        }
+        assertNotEquals(0L, filter.getLastModifiedTime());
+        // still there for code reading the old static field
+        assertTrue(MMDB.lastModifiedTime >= filter.getLastModifiedTime());
+
+        Event e = new org.logstash.Event();
+        e.setField("ip", "172.16.0.1");
+        filter.filter(Collections.singletonList(e), new TestMatchListener());
+        assertThat(e.getField("[info][name]"), is("Renamed DMZ"));
+        filter.close();
+    }
+
+    @Test
+    public void testMetrics() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("cache_size", 64L);
+        configMap.put("skip_networks", Collections.singletonList("10.10.0.0/16"));
+        configMap.put("range_index_max_nodes", 0L);
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+
+        for (int round = 0; round < 2; round++) {
+            List<Event> events = new ArrayList<>();
+            for (String ip : new String[]{"172.16.0.1", "172.16.0.2", "192.168.1.1", "10.10.1.1", "bogus"}) {
+                Event e = new org.logstash.Event();
+                e.setField("ip", ip);
+                events.add(e);
+            }
+            filter.filter(events, new TestMatchListener());
+        }
+
+        FilterMetrics metrics = filter.getMetrics();
+        assertThat(metrics.getEvents(), is(10L));
+        assertThat(metrics.getHits(), is(4L));
+        assertThat(metrics.getMisses(), is(2L));
+        assertThat(metrics.getSkipped(), is(2L));
+        assertThat(metrics.getParseFailures(), is(2L));
+        // both addresses fall in 172.16.0.0/12, so only the very first lookup decodes
+        assertThat(metrics.getCacheMisses(), is(1L));
+        assertThat(metrics.getCacheHits(), is(3L));
+        assertThat(metrics.getCacheHitRatio(), is(0.75));
+        // the first batch is always timed
+        assertThat(metrics.getLatency(FilterMetrics.Stage.LOOKUP).count(), is(1L));
+        assertTrue(metrics.getLatency(FilterMetrics.Stage.LOOKUP).percentile(0.99) > 0);
+    }
+
+    private MMDB chainedFilter(String chainMode) throws IOException {
+        return chainedFilter(chainMode, null);
+    }
+
+    private MMDB chainedFilter(String chainMode, File overlay) throws IOException {
+        File asn = temporaryFolder.newFile();
+        Map<String, Object> dmzAsn = new HashMap<>();
+        dmzAsn.put("number", 64512L);
+        dmzAsn.put("organisation", "Example DMZ");
+        new MMDBWriter(4, 24, "test-asn")
+            .insert("172.16.0.0/12", dmzAsn)
+            .insert("192.168.0.0/16", Collections.singletonMap("number", 64513L))
+            .write(asn);
+        File intel = temporaryFolder.newFile();
+        new MMDBWriter(4, 24, "test-intel")
+            .insert("192.168.1.0/24", Collections.singletonMap("verdict", "suspicious"))
+            .write(intel);
+
+        Map<String, Object> asnEntry = new HashMap<>();
+        asnEntry.put("database", asn.getPath());
+        asnEntry.put("target", "asn");
+        asnEntry.put("fields", Collections.singletonList("number"));
+        Map<String, Object> intelEntry = new HashMap<>();
+        intelEntry.put("database", intel.getPath());
+        intelEntry.put("target", "intel");
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("fields", Collections.singletonList("name"));
+        configMap.put("databases", Arrays.asList(asnEntry, intelEntry));
+        configMap.put("chain_mode", chainMode);
+        if (overlay != null) {
+            configMap.put("overlay", overlay.getPath());
+        }
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        return new MMDB("test-id", config, context);
+    }
+
+    private static List<Event> events(String... ips) {
+        List<Event> events = new ArrayList<>();
+        for (String ip : ips) {
+            Event e = new org.logstash.Event();
+            e.setField("ip", ip);
+            events.add(e);
+        }
+        return events;
+    }
+
+    @Test
+    public void testChainedDatabasesMerge() throws Exception {
+        MMDB filter = chainedFilter("merge");
+        List<Event> events = events("172.16.0.1", "192.168.1.1", "8.8.8.8");
+        TestMatchListener matchListener = new TestMatchListener();
+        filter.filter(events, matchListener);
+
+        assertThat(events.get(0).getField("[info][name]"), is("DMZ"));
+        assertThat(events.get(0).getField("[asn][number]"), is(64512L));
+        assertNull(events.get(0).getField("[asn][organisation]"));
+        assertNull(events.get(0).getField("[intel]"));
+
+        assertNull(events.get(1).getField("[info]"));
+        assertThat(events.get(1).getField("[asn][number]"), is(64513L));
+        assertThat(events.get(1).getField("[intel][verdict]"), is("suspicious"));
+        assertNull(events.get(1).getField("tags"));
+
+        assertThat(events.get(2).getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+        assertThat(matchListener.getMatchCount(), is(2));
+        filter.close();
+    }
+
+    @Test
+    public void testChainedDatabasesFirstMatch() throws Exception {
+        MMDB filter = chainedFilter("first_match");
+        List<Event> events = events("172.16.0.1", "192.168.1.1", "8.8.8.8");
+        TestMatchListener matchListener = new TestMatchListener();
+        filter.filter(events, matchListener);
+
+        assertThat(events.get(0).getField("[info][name]"), is("DMZ"));
+        assertNull(events.get(0).getField("[asn]"));
+
+        assertThat(events.get(1).getField("[asn][number]"), is(64513L));
+        assertNull(events.get(1).getField("[intel]"));
+
+        assertThat(events.get(2).getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+        assertThat(matchListener.getMatchCount(), is(2));
+        filter.close();
+    }
+
+    @Test
+    public void testOverlayAppliesToChainedDatabases() throws Exception {
+        File overlay = temporaryFolder.newFile("overlay.json");
+        Files.write(overlay.toPath(), ("{\"192.168.1.0/24\": {\"name\": \"Lab\", \"number\": 64600},"
+            + " \"192.168.2.0/24\": null}").getBytes(StandardCharsets.UTF_8));
+
+        MMDB filter = chainedFilter("merge", overlay);
+        List<Event> events = filterIps(filter, "192.168.1.1", "192.168.2.1", "192.168.3.1");
+        // overridden in every database, each through its own fields
+        assertThat(events.get(0).getField("[info][name]"), is("Lab"));
+        assertThat(events.get(0).getField("[asn][number]"), is(64600L));
+        assertThat(events.get(0).getField("[intel][name]"), is("Lab"));
+        assertNull(events.get(0).getField("[intel][verdict]"));
+        // hidden in every database
+        assertNull(events.get(1).getField("[asn]"));
+        assertThat(events.get(1).getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+        assertThat(events.get(2).getField("[asn][number]"), is(64513L));
+        filter.close();
+
+        filter = chainedFilter("first_match", overlay);
+        events = filterIps(filter, "192.168.1.1", "192.168.2.1", "192.168.3.1");
+        assertThat(events.get(0).getField("[info][name]"), is("Lab"));
+        assertNull(events.get(0).getField("[asn]"));
+        assertNull(events.get(1).getField("[asn]"));
+        assertThat(events.get(1).getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+        assertThat(events.get(2).getField("[asn][number]"), is(64513L));
+        filter.close();
+    }
+
+    @Test
+    public void testConfigChainModeMustBeKnown() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("chain_mode", "all");
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+
+        try {
+            MMDB filter = new MMDB("test-id", config, context);
+            fail("Expected an exception to be thrown");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("Chain mode must be one of merge or first_match"));
+        }
+    }
+
+    @Test
+    public void testConfigDatabasesEntriesNeedADatabase() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("databases", Collections.singletonList(Collections.singletonMap("target", "asn")));
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+
+        try {
+            MMDB filter = new MMDB("test-id", config, context);
+            fail("Expected an exception to be thrown");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("Each entry of databases must be a hash with a database path"));
+        }
+    }
+
+    @Test
+    public void testMultipleSources() {
+
+        Map<String, Object> sources = new LinkedHashMap<>();
+        sources.put("[source][ip]", "source_info");
+        sources.put("[destination][ip]", "destination_info");
+        sources.put("forwarded", "forwarded_info");
+        HashMap configMap = new HashMap();
+        configMap.put("sources", sources);
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("fields", Arrays.asList("name", "vlan_id:vlan"));
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+
+        Event first = new org.logstash.Event();
+        first.setField("[source][ip]", "172.16.0.1");
+        first.setField("[destination][ip]", "10.64.1.255");
+        first.setField("forwarded", Arrays.asList("172.16.0.1", "8.8.8.8", "bogus", "10.64.1.255"));
+        Event second = new org.logstash.Event();
+        second.setField("[destination][ip]", "8.8.8.8");
+        TestMatchListener matchListener = new TestMatchListener();
+        filter.filter(Arrays.asList(first, second), matchListener);
+
+        assertNull(first.getField("tags"));
+        assertThat(first.getField("[source_info][name]"), is("DMZ"));
+        assertThat(first.getField("[destination_info][vlan]"), is(234L));
+        List<?> forwarded = (List<?>) first.getField("forwarded_info");
+        assertThat(forwarded.size(), is(4));
+        assertThat(((Map<?, ?>) forwarded.get(0)).get("name"), is("DMZ"));
+        assertTrue(((Map<?, ?>) forwarded.get(1)).isEmpty());
+        assertTrue(((Map<?, ?>) forwarded.get(2)).isEmpty());
+        assertThat(((Map<?, ?>) forwarded.get(3)).get("vlan"), is(234L));
+
+        assertNull(second.getField("source_info"));
+        assertNull(second.getField("destination_info"));
+        assertThat(second.getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+        assertThat(matchListener.getMatchCount(), is(1));
+
+        assertThat(filter.getMetrics().getEvents(), is(2L));
+        assertThat(filter.getMetrics().getHits(), is(4L));
+        assertThat(filter.getMetrics().getMisses(), is(2L));
+        assertThat(filter.getMetrics().getParseFailures(), is(1L));
+        filter.close();
+    }
+
+    @Test
+    public void testConfigSourcesExcludesSource() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("sources", Collections.singletonMap("[source][ip]", "source_info"));
+        configMap.put("database", "samples/demo.mmdb");
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+
+        try {
+            MMDB filter = new MMDB("test-id", config, context);
+            fail("Expected an exception to be thrown");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("Use either source and target, or sources"));
+        }
+    }
+
+    @Test
+    public void testParallelLookupMatchesSerial() {
+
+        List<List<Event>> runs = new ArrayList<>();
+        List<FilterMetrics> metrics = new ArrayList<>();
+        for (long threshold : new long[]{0L, 1L}) {
+            HashMap configMap = new HashMap();
+            configMap.put("source", "ip");
+            configMap.put("target", "info");
+            configMap.put("database", "samples/demo.mmdb");
+            configMap.put("cache_size", 64L);
+            configMap.put("negative_cache_size", 64L);
+            configMap.put("parallel_lookup_threshold", threshold);
+            Configuration config = new ConfigurationImpl(configMap);
+            Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+            MMDB filter = new MMDB("test-id", config, context);
+
+            List<Event> events = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                Event e = new org.logstash.Event();
+                e.setField("ip", (i % 3 == 0 ? "10.64." : i % 3 == 1 ? "172.16." : "8.8.") + (i % 7) + "." + (i % 251));
+                events.add(e);
+            }
+            filter.filter(events, new TestMatchListener());
+            runs.add(events);
+            metrics.add(filter.getMetrics());
+            filter.close();
+        }
+
+        for (int i = 0; i < runs.get(0).size(); i++) {
+            assertEquals(runs.get(0).get(i).getField("info"), runs.get(1).get(i).getField("info"));
+            assertEquals(runs.get(0).get(i).getField("tags"), runs.get(1).get(i).getField("tags"));
+        }
+        assertThat(metrics.get(1).getHits(), is(metrics.get(0).getHits()));
+        assertThat(metrics.get(1).getMisses(), is(metrics.get(0).getMisses()));
+        assertThat(metrics.get(1).getCacheHits() + metrics.get(1).getCacheMisses(),
+            is(metrics.get(0).getCacheHits() + metrics.get(0).getCacheMisses()));
+    }
+
+    @Test
+    public void testRangeIndexMatchesSearchTree() {
+
+        List<List<Event>> runs = new ArrayList<>();
+        for (long maxNodes : new long[]{0L, 65536L}) {
+            HashMap configMap = new HashMap();
+            configMap.put("source", "ip");
+            configMap.put("target", "info");
+            configMap.put("database", "samples/demo.mmdb");
+            configMap.put("range_index_max_nodes", maxNodes);
+            Configuration config = new ConfigurationImpl(configMap);
+            Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+            MMDB filter = new MMDB("test-id", config, context);
+
+            List<Event> events = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                Event e = new org.logstash.Event();
+                e.setField("ip", (i % 2 == 0 ? "10." : "172.") + (i % 37) + "." + (i % 5) + "." + (i % 251));
+                events.add(e);
+            }
+            filter.filter(events, new TestMatchListener());
+            runs.add(events);
+            filter.close();
+        }
+
+        for (int i = 0; i < runs.get(0).size(); i++) {
+            assertEquals(runs.get(0).get(i).getField("info"), runs.get(1).get(i).getField("info"));
+            assertEquals(runs.get(0).get(i).getField("tags"), runs.get(1).get(i).getField("tags"));
+        }
+    }
+
+    @Test
+    public void testAllValueTypesAreWritten() throws Exception {
+        Map<String, Object> record = new HashMap<>();
+        record.put("port", 443);
+        record.put("offset", -5);
+        record.put("weight", 0.25);
+        record.put("ratio", 1.5f);
+        record.put("count", 4000000000L);
+        record.put("id", new java.math.BigInteger("340282366920938463463374607431768211455"));
+        record.put("raw", new byte[]{1, 2, 3});
+        record.put("nested", Collections.singletonMap("vlan", 12));
+        File file = temporaryFolder.newFile("types.mmdb");
+        new MMDBWriter(4, 24, "types").insert("10.0.0.0/8", record).write(file);
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", file.getPath());
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+
+        Event e = new org.logstash.Event();
+        e.setField("ip", "10.1.2.3");
+        TestMatchListener matchListener = new TestMatchListener();
+        filter.filter(Collections.singletonList(e), matchListener);
+
+        assertNull(e.getField("tags"));
+        assertThat(matchListener.getMatchCount(), is(1));
+        assertThat(e.getField("[info][port]"), is(443L));
+        assertThat(e.getField("[info][offset]"), is(-5L));
+        assertThat(e.getField("[info][weight]"), is(0.25));
+        assertThat(e.getField("[info][ratio]"), is(1.5));
+        assertThat(e.getField("[info][count]"), is(4000000000L));
+        assertThat(e.getField("[info][id]"), is(new java.math.BigInteger("340282366920938463463374607431768211455")));
+        assertThat(e.getField("[info][raw]"), is("AQID"));
+        assertThat(e.getField("[info][nested][vlan]"), is(12L));
+        filter.close();
+    }
+
+    @Test
+    public void testCorruptRangeFailsTheRangeIndex() throws Exception {
+        byte[] bytes = new MMDBWriter(4, 24, "test")
+            .insert("10.0.0.0/8", Collections.singletonMap("name", "ten"))
+            .toByteArray();
+        // the right record of the root node, 128.0.0.0/1, points past the end of the file
+        bytes[3] = bytes[4] = bytes[5] = (byte) 0xFF;
+        File file = temporaryFolder.newFile("corrupt.mmdb");
+        Files.write(file.toPath(), bytes);
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", file.getPath());
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        try {
+            new MMDB("test-id", new ConfigurationImpl(configMap), context);
+            fail("Expected an exception to be thrown");
+        } catch (IllegalStateException e) {
+            assertThat(e.getCause().getMessage(), containsString("the range from 128.0.0.0 is corrupt"));
+        }
+
+        // the search tree only fails the lookups that reach the corrupt record
+        configMap.put("range_index_max_nodes", 0L);
+        MMDB filter = new MMDB("test-id", new ConfigurationImpl(configMap), context);
+        List<Event> events = events("10.0.0.1", "200.0.0.1");
+        filter.filter(events, new TestMatchListener());
+        assertThat(events.get(0).getField("[info][name]"), is("ten"));
+        assertThat(events.get(1).getField("tags"), is(Collections.singletonList("_mmdb_lookup_failure")));
+        filter.close();
+    }
+
+    @Test
+    public void testRunsWithoutAMetric() {
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        Configuration config = new ConfigurationImpl(configMap);
+        // logstash-core's context fails like this when it was given no metric
+        Context withoutMetric = new ContextImpl(null, null);
+        Context context = (Context) java.lang.reflect.Proxy.newProxyInstance(Context.class.getClassLoader(),
+            new Class<?>[]{Context.class}, (proxy, method, args) -> {
+                if (method.getName().equals("getMetric")) {
+                    throw new NullPointerException();
+                }
+                return method.invoke(withoutMetric, args);
+            });
+
+        for (Context c : Arrays.asList(withoutMetric, context)) {
+            MMDB filter = new MMDB("test-id", config, c);
+            List<Event> events = events("172.16.0.1");
+            filter.filter(events, new TestMatchListener());
+            assertThat(events.get(0).getField("[info][name]"), is("DMZ"));
+            assertThat(filter.getMetrics().getHits(), is(1L));
+            filter.close();
+        }
+
+        // any other failure is not a missing metric
+        Context broken = (Context) java.lang.reflect.Proxy.newProxyInstance(Context.class.getClassLoader(),
+            new Class<?>[]{Context.class}, (proxy, method, args) -> {
+                if (method.getName().equals("getMetric")) {
+                    throw new IllegalStateException("metric registry is gone");
+                }
+                return method.invoke(withoutMetric, args);
+            });
+        try {
+            new MMDB("test-id", config, broken);
+            fail("expected the metric failure to propagate");
+        } catch (IllegalStateException ex) {
+            assertThat(ex.getMessage(), is("metric registry is gone"));
+        }
+    }
+
+    @Test
+    public void testSharedNestedResultsAreNotShared() throws Exception {
+        Map<String, Object> country = new HashMap<>();
+        country.put("iso_code", "NZ");
+        country.put("names", Collections.singletonMap("en", "New Zealand"));
+        File file = temporaryFolder.newFile("nested.mmdb");
+        new MMDBWriter(4, 24, "nested").insert("10.0.0.0/8", Collections.singletonMap("country", country)).write(file);
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", file.getPath());
+        configMap.put("cache_size", 16L);
+        configMap.put("range_index_max_nodes", 0L);
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+
+        List<Event> first = events("10.0.0.1", "10.0.0.1");
+        filter.filter(first, new TestMatchListener());
+        first.get(0).setField("[info][country][names][en]", "changed");
+        assertThat(first.get(1).getField("[info][country][names][en]"), is("New Zealand"));
+
+        List<Event> second = events("10.0.0.2");
+        filter.filter(second, new TestMatchListener());
+        assertThat(second.get(0).getField("[info][country][names][en]"), is("New Zealand"));
+        assertThat(second.get(0).getField("[info][country][iso_code]"), is("NZ"));
+        assertThat(filter.getMetrics().getCacheHits(), is(1L));
+        filter.close();
+    }
+
+    @Test
+    public void testAbandonedReloadKeepsCaches() throws Exception {
+        File file = temporaryFolder.newFile("abandoned.mmdb");
+        new MMDBWriter(4, 24, "test").insert("10.0.0.0/8", Collections.singletonMap("name", "first")).write(file);
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", file.getPath());
+        // the file is rewritten in place below, which a mapped reader would see
+        configMap.put("file_mode", "heap");
+        configMap.put("cache_size", 16L);
+        configMap.put("range_index_max_nodes", 0L);
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+        MMDB filter = new MMDB("test-id", config, context);
+        filter.filter(events("10.0.0.1"), new TestMatchListener());
+
+        // another filter on the same database refuses the reload after this one prepared for it
+        SharedDatabase database = DatabaseRegistry.acquire(file, DatabaseReader.FileMode.HEAP, false);
+        SharedDatabase.ReloadListener failing = candidate -> {
+            throw new IOException("not ready");
+        };
+        database.addReloadListener(failing);
+        long failures = database.getReloadFailureCount();
+        new MMDBWriter(4, 24, "test").insert("10.0.0.0/8", Collections.singletonMap("name", "second")).write(file);
+        database.reload();
+        assertTrue(database.getReloadFailureCount() > failures);
+
+        List<Event> events = events("10.0.0.2", "10.0.0.3");
+        filter.filter(events, new TestMatchListener());
+        assertThat(events.get(0).getField("[info][name]"), is("first"));
+        assertThat(filter.getMetrics().getCacheHits(), is(2L));
+
+        database.removeReloadListener(failing);
+        DatabaseRegistry.release(database);
+        filter.close();
+    }
+
+    @Test
+    public void testWarmupSnapshot() throws Exception {
+        File snapshot = new File(temporaryFolder.getRoot(), "warmup.bin");
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("cache_size", 64L);
+        configMap.put("negative_cache_size", 64L);
+        configMap.put("range_index_max_nodes", 0L);
+        configMap.put("warmup_snapshot", snapshot.getPath());
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+
+        MMDB filter = new MMDB("test-id", config, context);
+        filter.getWarmupSnapshot().awaitWarmup(5, java.util.concurrent.TimeUnit.SECONDS);
+        filter.filter(events("172.16.0.1", "10.64.1.255", "192.168.1.1"), new TestMatchListener());
+        assertThat(filter.getMetrics().getCacheMisses(), is(3L));
+        filter.close();
+        assertTrue(snapshot.isFile());
+
+        filter = new MMDB("test-id", config, context);
+        filter.getWarmupSnapshot().awaitWarmup(5, java.util.concurrent.TimeUnit.SECONDS);
+        List<Event> events = events("172.16.0.2", "10.64.1.1", "192.168.1.2");
+        filter.filter(events, new TestMatchListener());
+        assertThat(events.get(0).getField("[info][name]"), is("DMZ"));
+        assertThat(filter.getMetrics().getCacheHits(), is(3L));
+        assertThat(filter.getMetrics().getCacheMisses(), is(0L));
+        filter.close();
+    }
+
+    @Test
+    public void testConfigWarmupSnapshotRequiresACache() {
+
+        HashMap configMap = new HashMap();
+        configMap.put("source", "ip");
+        configMap.put("target", "info");
+        configMap.put("database", "samples/demo.mmdb");
+        configMap.put("warmup_snapshot", "warmup.bin");
+        Configuration config = new ConfigurationImpl(configMap);
+        Context context = new ContextImpl(null, NoopMetric.INSTANCE);
+
+        try {
+            MMDB filter = new MMDB("test-id", config, context);
+            fail("Expected an exception to be thrown");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("Warmup snapshot requires cache_size or negative_cache_size"));
+        }
+    }
 }
 
 class TestMatchListener implements FilterMatchListener {
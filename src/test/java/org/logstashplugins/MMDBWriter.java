@@ -0,0 +1,302 @@
+package org.logstashplugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes MMDB files for tests, from a handful of networks up to the millions
+ * of {@link SyntheticDatabases}. Identical strings and maps are written once and
+ * referenced through pointers, like real databases do.
+ */
+class MMDBWriter {
+
+    private static final byte[] METADATA_START_MARKER = {(byte) 0xAB, (byte) 0xCD, (byte) 0xEF,
+        'M', 'a', 'x', 'M', 'i', 'n', 'd', '.', 'c', 'o', 'm'};
+
+    private final int ipVersion;
+    private final int recordSize;
+    private final String databaseType;
+    private final Object[] root = new Object[2];
+
+    MMDBWriter(int ipVersion, int recordSize, String databaseType) {
+        this.ipVersion = ipVersion;
+        this.recordSize = recordSize;
+        this.databaseType = databaseType;
+    }
+
+    private static final class Data {
+        final Object value;
+
+        Data(Object value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Networks must be inserted from least to most specific.
+     *
+     * @param network an IPv4 or IPv6 network such as "10.10.0.0/16"
+     */
+    MMDBWriter insert(String network, Object value) {
+        int slash = network.indexOf('/');
+        byte[] address = new byte[16];
+        int length = IpLiteralParser.parse(network.substring(0, slash), address);
+        int prefixLength = Integer.parseInt(network.substring(slash + 1));
+        if (length == 4 && ipVersion == 6) {
+            System.arraycopy(address, 0, address, 12, 4);
+            Arrays.fill(address, 0, 12, (byte) 0);
+            prefixLength += 96;
+        } else if (length == 16 && ipVersion == 4) {
+            throw new IllegalArgumentException("IPv6 network in an IPv4 database");
+        }
+        return insert(address, prefixLength, value);
+    }
+
+    MMDBWriter insert(byte[] address, int prefixLength, Object value) {
+        Object[] node = root;
+        for (int i = 0; i < prefixLength - 1; i++) {
+            int bit = 1 & ((address[i >> 3] & 0xFF) >> (7 - (i & 7)));
+            Object child = node[bit];
+            if (!(child instanceof Object[])) {
+                Object[] split = new Object[]{child, child};
+                node[bit] = split;
+                child = split;
+            }
+            node = (Object[]) child;
+        }
+        int bit = 1 & ((address[(prefixLength - 1) >> 3] & 0xFF) >> (7 - ((prefixLength - 1) & 7)));
+        node[bit] = new Data(value);
+        return this;
+    }
+
+    void write(File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(toByteArray());
+        }
+    }
+
+    byte[] toByteArray() throws IOException {
+        List<Object[]> nodes = new ArrayList<>();
+        // no entry object per node, which adds up over millions of networks
+        Map<Object[], Integer> numbers = new IdentityHashMap<>();
+        number(root, nodes, numbers);
+        int nodeCount = nodes.size();
+
+        Encoder data = new Encoder(true);
+        Map<Data, Integer> dataOffsets = new IdentityHashMap<>();
+        ByteArrayOutputStream tree = new ByteArrayOutputStream();
+        for (Object[] node : nodes) {
+            long[] records = new long[2];
+            for (int i = 0; i < 2; i++) {
+                Object child = node[i];
+                if (child == null) {
+                    records[i] = nodeCount;
+                } else if (child instanceof Object[]) {
+                    records[i] = numbers.get(child);
+                } else {
+                    Integer offset = dataOffsets.get(child);
+                    if (offset == null) {
+                        offset = data.write(((Data) child).value);
+                        dataOffsets.put((Data) child, offset);
+                    }
+                    records[i] = nodeCount + 16L + offset;
+                }
+            }
+            writeNode(tree, records[0], records[1]);
+        }
+
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("binary_format_major_version", 2);
+        metadata.put("binary_format_minor_version", 0);
+        metadata.put("build_epoch", BigInteger.valueOf(System.currentTimeMillis() / 1000));
+        metadata.put("database_type", databaseType);
+        metadata.put("description", java.util.Collections.singletonMap("en", "Generated by MMDBWriter"));
+        metadata.put("ip_version", ipVersion);
+        metadata.put("languages", java.util.Collections.singletonList("en"));
+        metadata.put("node_count", (long) nodeCount);
+        metadata.put("record_size", recordSize);
+        Encoder meta = new Encoder(false);
+        meta.write(metadata);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tree.writeTo(out);
+        out.write(new byte[16]);
+        data.out.writeTo(out);
+        out.write(METADATA_START_MARKER);
+        meta.out.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static void number(Object[] node, List<Object[]> nodes, Map<Object[], Integer> numbers) {
+        if (numbers.containsKey(node)) {
+            return;
+        }
+        numbers.put(node, nodes.size());
+        nodes.add(node);
+        for (Object child : node) {
+            if (child instanceof Object[]) {
+                number((Object[]) child, nodes, numbers);
+            }
+        }
+    }
+
+    private void writeNode(ByteArrayOutputStream out, long left, long right) {
+        switch (recordSize) {
+            case 24:
+                writeInt(out, left, 3);
+                writeInt(out, right, 3);
+                break;
+            case 28:
+                writeInt(out, left & 0xFFFFFF, 3);
+                out.write((int) (((left >>> 24) & 0x0F) << 4 | ((right >>> 24) & 0x0F)));
+                writeInt(out, right & 0xFFFFFF, 3);
+                break;
+            case 32:
+                writeInt(out, left, 4);
+                writeInt(out, right, 4);
+                break;
+            default:
+                throw new IllegalArgumentException("record size " + recordSize);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--) {
+            out.write((int) (value >>> (i * 8)));
+        }
+    }
+
+    private static final class Encoder {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final boolean usePointers;
+        final Map<Object, Integer> written = new HashMap<>();
+
+        Encoder(boolean usePointers) {
+            this.usePointers = usePointers;
+        }
+
+        int write(Object value) {
+            int offset = out.size();
+            if (usePointers && (value instanceof String || value instanceof Map)) {
+                Integer previous = written.get(value);
+                if (previous != null) {
+                    writePointer(previous);
+                    return offset;
+                }
+                written.put(value, offset);
+            }
+            if (value instanceof String) {
+                byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                writeControl(DataDecoder.UTF8_STRING, bytes.length);
+                out.write(bytes, 0, bytes.length);
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                writeControl(DataDecoder.MAP, map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    write(entry.getKey());
+                    write(entry.getValue());
+                }
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                writeControl(DataDecoder.ARRAY, list.size());
+                for (Object element : list) {
+                    write(element);
+                }
+            } else if (value instanceof Boolean) {
+                writeControl(DataDecoder.BOOLEAN, (Boolean) value ? 1 : 0);
+            } else if (value instanceof Double) {
+                writeControl(DataDecoder.DOUBLE, 8);
+                writeInt(out, Double.doubleToLongBits((Double) value), 8);
+            } else if (value instanceof Float) {
+                writeControl(DataDecoder.FLOAT, 4);
+                writeInt(out, Float.floatToIntBits((Float) value), 4);
+            } else if (value instanceof Integer) {
+                int i = (Integer) value;
+                if (i >= 0 && i <= 0xFFFF) {
+                    writeUnsigned(DataDecoder.UINT16, i);
+                } else {
+                    writeControl(DataDecoder.INT32, 4);
+                    writeInt(out, i, 4);
+                }
+            } else if (value instanceof Long) {
+                writeUnsigned(DataDecoder.UINT32, (Long) value);
+            } else if (value instanceof BigInteger) {
+                byte[] bytes = ((BigInteger) value).toByteArray();
+                int start = bytes[0] == 0 ? 1 : 0;
+                int length = bytes.length - start;
+                writeControl(length > 8 ? DataDecoder.UINT128 : DataDecoder.UINT64, length);
+                out.write(bytes, start, length);
+            } else if (value instanceof byte[]) {
+                byte[] bytes = (byte[]) value;
+                writeControl(DataDecoder.BYTES, bytes.length);
+                out.write(bytes, 0, bytes.length);
+            } else {
+                throw new IllegalArgumentException("cannot encode " + value);
+            }
+            return offset;
+        }
+
+        private void writeUnsigned(int type, long value) {
+            int length = 0;
+            while (length < 8 && (value >>> (length * 8)) != 0) {
+                length++;
+            }
+            writeControl(type, length);
+            writeInt(out, value, length);
+        }
+
+        private void writePointer(int pointer) {
+            if (pointer < 2048) {
+                out.write(0x20 | ((pointer >>> 8) & 0x7));
+                writeInt(out, pointer, 1);
+            } else if (pointer < 526336) {
+                int p = pointer - 2048;
+                out.write(0x20 | (1 << 3) | ((p >>> 16) & 0x7));
+                writeInt(out, p, 2);
+            } else if (pointer < 134744064) {
+                int p = pointer - 526336;
+                out.write(0x20 | (2 << 3) | ((p >>> 24) & 0x7));
+                writeInt(out, p, 3);
+            } else {
+                out.write(0x20 | (3 << 3));
+                writeInt(out, pointer, 4);
+            }
+        }
+
+        private void writeControl(int type, int size) {
+            int ctrl = type < 8 ? type << 5 : 0;
+            if (size < 29) {
+                ctrl |= size;
+            } else if (size < 285) {
+                ctrl |= 29;
+            } else if (size < 65821) {
+                ctrl |= 30;
+            } else {
+                ctrl |= 31;
+            }
+            out.write(ctrl);
+            if (type >= 8) {
+                out.write(type - 7);
+            }
+            if (size >= 65821) {
+                writeInt(out, size - 65821, 3);
+            } else if (size >= 285) {
+                writeInt(out, size - 285, 2);
+            } else if (size >= 29) {
+                writeInt(out, size - 29, 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.logstashplugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class NegativeCacheTest {
+
+    private static byte[] address(String ip) {
+        byte[] address = new byte[16];
+        IpLiteralParser.parse(ip, address);
+        return address;
+    }
+
+    @Test
+    public void testWholeNetworkIsCached() {
+        NegativeCache cache = new NegativeCache(64, ResultCache.Eviction.LRU, 1);
+        cache.add(address("192.168.1.1"), 4, 2);
+        assertTrue(cache.contains(address("192.168.1.1"), 4));
+        assertTrue(cache.contains(address("255.0.0.1"), 4));
+        assertFalse(cache.contains(address("10.0.0.1"), 4));
+
+        cache.add(address("2001:db8::1"), 16, 96);
+        assertTrue(cache.contains(address("2001:db8::ffff:ffff"), 16));
+        assertFalse(cache.contains(address("2001:db8::1:0:0"), 16));
+        assertFalse(cache.contains(address("::192.168.1.1"), 16));
+
+        cache.add(address("2001:db8::1"), 16, 128);
+        cache.add(address("::"), 16, 0);
+        assertTrue(cache.contains(address("ffff::"), 16));
+    }
+}
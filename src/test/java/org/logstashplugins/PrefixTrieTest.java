@@ -0,0 +1,105 @@
+package org.logstashplugins;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class PrefixTrieTest {
+
+    private static String get(PrefixTrie<String> trie, String ip) {
+        byte[] address = new byte[16];
+        return trie.get(address, IpLiteralParser.parse(ip, address));
+    }
+
+    @Test
+    public void testLongestPrefixMatch() {
+        PrefixTrie<String> trie = new PrefixTrie<>();
+        trie.insert("10.0.0.0/8", "ten");
+        trie.insert("10.10.0.0/16", "ten-ten");
+        trie.insert("10.10.1.1", "host");
+        trie.insert("2001:db8::/32", "doc");
+        assertThat(trie.size(), is(4));
+
+        assertThat(get(trie, "10.1.2.3"), is("ten"));
+        assertThat(get(trie, "10.10.2.3"), is("ten-ten"));
+        assertThat(get(trie, "10.10.1.1"), is("host"));
+        assertNull(get(trie, "11.0.0.1"));
+        assertThat(get(trie, "2001:db8:ffff::1"), is("doc"));
+        assertNull(get(trie, "2001:db9::1"));
+        // IPv4 networks do not match IPv6 addresses and vice versa
+        assertNull(get(trie, "::10.10.1.1"));
+    }
+
+    @Test
+    public void testDefaultRoute() {
+        PrefixTrie<String> trie = new PrefixTrie<>();
+        trie.insert("0.0.0.0/0", "any");
+        assertThat(get(trie, "192.0.2.1"), is("any"));
+        assertNull(get(trie, "::1"));
+    }
+
+    // as MMDB looks addresses up, with mapped and compatible ones as IPv4
+    private static String getNormalized(PrefixTrie<String> trie, String ip) {
+        byte[] address = new byte[16];
+        return trie.get(address, IpLiteralParser.normalize(address, IpLiteralParser.parse(ip, address)));
+    }
+
+    @Test
+    public void testMappedAndCompatibleNetworks() {
+        String[][] cases = new String[][]{
+            // network, addresses it holds, addresses it doesn't; the mapped and compatible
+            // forms of an IPv4 address are that address, so every IPv4 network holds all three
+            {"::ffff:0:0/96", "::ffff:10.0.0.1 10.0.0.1 ::10.0.0.1", "::fffe:0:1 ::1 2001:db8::1"},
+            {"::ffff:0:0/95", "::ffff:10.0.0.1 10.0.0.1 ::10.0.0.1 ::fffe:0:1", "::1 ::fffd:0:1 2001:db8::1"},
+            {"::/96", "::10.0.0.1 10.0.0.1 ::ffff:10.0.0.1 :: ::1", "::1:0:1 2001:db8::1"},
+            {"::/95", "::10.0.0.1 10.0.0.1 :: ::1 ::1:0:1", "::2:0:1 2001:db8::1"},
+            {"::/127", ":: ::1", "0.0.0.1 ::2"},
+            {"::10.0.0.0/104", "::10.1.2.3 10.1.2.3 ::ffff:10.1.2.3", "11.0.0.1 ::"}
+        };
+        for (String[] c : cases) {
+            PrefixTrie<String> trie = new PrefixTrie<>();
+            trie.insert(c[0], c[0]);
+            for (String ip : c[1].split(" ")) {
+                assertThat(c[0] + " holds " + ip, getNormalized(trie, ip), is(c[0]));
+            }
+            for (String ip : c[2].split(" ")) {
+                assertNull(c[0] + " doesn't hold " + ip, getNormalized(trie, ip));
+            }
+        }
+    }
+
+    @Test
+    public void testMostSpecificNetworkWinsAcrossFamilies() {
+        for (boolean ipv4First : new boolean[]{true, false}) {
+            PrefixTrie<String> trie = new PrefixTrie<>();
+            if (ipv4First) {
+                trie.insert("0.0.0.0/0", "any");
+                trie.insert("::/80", "zeros");
+            } else {
+                trie.insert("::/80", "zeros");
+                trie.insert("0.0.0.0/0", "any");
+            }
+            trie.insert("::/95", "compatible");
+            trie.insert("10.0.0.0/8", "ten");
+            assertThat(getNormalized(trie, "192.0.2.1"), is("any"));
+            assertThat(getNormalized(trie, "::192.0.2.1"), is("any"));
+            assertThat(getNormalized(trie, "::ffff:10.1.2.3"), is("ten"));
+            assertThat(getNormalized(trie, "::1"), is("compatible"));
+            assertThat(getNormalized(trie, "::2:0:1"), is("zeros"));
+        }
+    }
+
+    @Test
+    public void testRejectsInvalidNetworks() {
+        PrefixTrie<String> trie = new PrefixTrie<>();
+        for (String network : new String[]{"10.0.0.0/33", "10.0.0.0/", "10.0.0/8", "::/129", "localhost/8", "10.0.0.0/-1"}) {
+            try {
+                trie.insert(network, "x");
+                fail("Expected " + network + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                assertThat(e.getMessage(), is("Invalid network: " + network));
+            }
+        }
+    }
+}
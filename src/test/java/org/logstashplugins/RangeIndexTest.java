@@ -0,0 +1,64 @@
+package org.logstashplugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+
+public class RangeIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static void assertSameAsTree(DatabaseReader reader, int length, long seed) throws IOException {
+        RangeIndex index = RangeIndex.build(reader);
+        Random random = new Random(seed);
+        byte[] address = new byte[16];
+        for (int i = 0; i < 20000; i++) {
+            random.nextBytes(address);
+            if (i % 4 == 0) {
+                // stay near the start of the space, where the sample networks are
+                address[0] = (byte) (length == 4 ? 10 + (i % 3) * 81 : 0x20);
+            }
+            long expected = reader.lookup(address, length);
+            assertEquals(expected, index.result(index.find(address, length)));
+        }
+    }
+
+    @Test
+    public void testSameResultsAsSearchTree() throws IOException {
+        DatabaseReader reader = new DatabaseReader(new File("samples/demo.mmdb"));
+        assertSameAsTree(reader, 4, 1);
+        assertSameAsTree(reader, 16, 2);
+    }
+
+    @Test
+    public void testIpv6Database() throws IOException {
+        File file = temporaryFolder.newFile("ipv6.mmdb");
+        new MMDBWriter(6, 28, "test")
+            .insert("10.0.0.0/8", Collections.singletonMap("name", "ten"))
+            .insert("10.1.0.0/16", Collections.singletonMap("name", "ten-one"))
+            .insert("2000::/3", Collections.singletonMap("name", "global"))
+            .insert("2001:db8::/32", Collections.singletonMap("name", "documentation"))
+            .insert("2001:db8::1/128", Collections.singletonMap("name", "host"))
+            .write(file);
+        DatabaseReader reader = new DatabaseReader(file);
+        assertSameAsTree(reader, 4, 3);
+        assertSameAsTree(reader, 16, 4);
+
+        RangeIndex index = RangeIndex.build(reader);
+        byte[] address = new byte[16];
+        int length = IpLiteralParser.parse("2001:db8::1", address);
+        int position = index.find(address, length);
+        assertEquals(128, DatabaseReader.prefixLength(index.result(position)));
+        byte[] start = new byte[16];
+        assertEquals(16, index.start(position, start));
+        assertArrayEquals(address, start);
+    }
+}
@@ -0,0 +1,84 @@
+package org.logstashplugins;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Test;
+
+public class ResultCacheTest {
+
+    @Test
+    public void testCapacityIsRoundedUpToWholeSets() {
+        assertThat(new ResultCache<String>(1, ResultCache.Eviction.LRU, 1).capacity(), is(4));
+        assertThat(new ResultCache<String>(100, ResultCache.Eviction.LRU, 1).capacity(), is(128));
+        assertThat(new ResultCache<String>(128, ResultCache.Eviction.LRU, 1).capacity(), is(128));
+    }
+
+    @Test
+    public void testGetAndPut() {
+        for (ResultCache.Eviction eviction : ResultCache.Eviction.values()) {
+            ResultCache<String> cache = new ResultCache<>(1024, eviction, 1);
+            assertNull(cache.get(42L));
+            cache.put(42L, "a");
+            cache.put(42L, "b");
+            assertThat(cache.get(42L), is("b"));
+        }
+    }
+
+    @Test
+    public void testBounded() {
+        for (ResultCache.Eviction eviction : ResultCache.Eviction.values()) {
+            ResultCache<Long> cache = new ResultCache<>(16, eviction, 1);
+            for (long key = 0; key < 10000; key++) {
+                cache.put(key, key);
+            }
+            int present = 0;
+            for (long key = 0; key < 10000; key++) {
+                Long value = cache.get(key);
+                if (value != null) {
+                    assertThat(value, is(key));
+                    present++;
+                }
+            }
+            assertTrue(present <= cache.capacity());
+            assertTrue(present > 0);
+        }
+    }
+
+    @Test
+    public void testLruKeepsRecentlyUsedEntries() {
+        // a single set, so every key competes for the same four ways
+        ResultCache<Long> cache = new ResultCache<>(4, ResultCache.Eviction.LRU, 1);
+        for (long key = 0; key < 4; key++) {
+            cache.put(key, key);
+        }
+        cache.get(0L);
+        cache.put(4L, 4L);
+        assertThat(cache.get(0L), is(0L));
+        assertNull(cache.get(1L));
+
+        cache = new ResultCache<>(4, ResultCache.Eviction.FIFO, 1);
+        for (long key = 0; key < 4; key++) {
+            cache.put(key, key);
+        }
+        cache.get(0L);
+        cache.put(4L, 4L);
+        assertNull(cache.get(0L));
+        assertThat(cache.get(1L), is(1L));
+    }
+
+    @Test
+    public void testEvictionPastTheIntRange() {
+        for (ResultCache.Eviction eviction : new ResultCache.Eviction[]{ResultCache.Eviction.LRU, ResultCache.Eviction.FIFO}) {
+            ResultCache<Long> cache = new ResultCache<>(4, eviction, 1);
+            cache.tick = Integer.MAX_VALUE - 2;
+            for (long key = 0; key < 4; key++) {
+                cache.put(key, key);
+            }
+            cache.put(4L, 4L);
+            assertNull(cache.get(0L));
+            assertThat(cache.get(3L), is(3L));
+            assertThat(cache.get(4L), is(4L));
+        }
+    }
+}
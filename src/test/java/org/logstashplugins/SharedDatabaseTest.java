@@ -0,0 +1,191 @@
+package org.logstashplugins;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SharedDatabaseTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static MMDBWriter writer(String name) {
+        return new MMDBWriter(4, 24, "test").insert("10.0.0.0/8", Collections.singletonMap("name", name));
+    }
+
+    @Test
+    public void testReloadSwapsOnlyChangedValidDatabases() throws Exception {
+        File file = temporaryFolder.newFile();
+        writer("first").write(file);
+        SharedDatabase database = new SharedDatabase(file, DatabaseReader.FileMode.MMAP, false);
+        List<DatabaseReader> prepared = new ArrayList<>();
+        database.addReloadListener(prepared::add);
+        DatabaseReader first = database.getReader();
+
+        // rewritten with the same content
+        writer("first").write(file);
+        database.reload();
+        assertThat(database.getReader(), is(sameInstance(first)));
+        assertTrue(prepared.isEmpty());
+
+        // half written
+        byte[] bytes = writer("second").toByteArray();
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+        database.reload();
+        assertThat(database.getReader(), is(sameInstance(first)));
+        assertTrue(prepared.isEmpty());
+
+        Files.write(file.toPath(), bytes);
+        database.reload();
+        DatabaseReader second = database.getReader();
+        assertThat(second, is(not(sameInstance(first))));
+        assertThat(prepared, is(Collections.singletonList(second)));
+        database.close();
+    }
+
+    @Test
+    public void testFailingListenerKeepsCurrentDatabase() throws Exception {
+        File file = temporaryFolder.newFile();
+        writer("first").write(file);
+        SharedDatabase database = new SharedDatabase(file, DatabaseReader.FileMode.HEAP, false);
+        database.addReloadListener(candidate -> {
+            throw new IOException("not ready");
+        });
+        DatabaseReader first = database.getReader();
+
+        writer("second").write(file);
+        database.reload();
+        assertThat(database.getReader(), is(sameInstance(first)));
+        database.close();
+    }
+
+    @Test
+    public void testReplacedReaderClosesOncePinnedLookupsFinish() throws Exception {
+        File file = temporaryFolder.newFile();
+        writer("first").write(file);
+        SharedDatabase database = new SharedDatabase(file, DatabaseReader.FileMode.MMAP, false);
+        DatabaseReader first = database.pinReader();
+
+        writer("second").write(file);
+        database.reload();
+        assertThat(database.getReader(), is(not(sameInstance(first))));
+        assertFalse(first.isClosed());
+        byte[] address = {10, 1, 2, 3};
+        assertTrue(DatabaseReader.isFound(first.lookup(address, 4)));
+
+        first.unpin();
+        assertTrue(first.isClosed());
+        DatabaseReader second = database.pinReader();
+        second.unpin();
+        assertFalse(second.isClosed());
+        database.close();
+        assertTrue(second.isClosed());
+        assertNull(database.pinReader());
+    }
+
+    @Test
+    public void testReleaseStopsWatching() throws Exception {
+        File file = temporaryFolder.newFile("watched.mmdb");
+        writer("first").write(file);
+        SharedDatabase database = DatabaseRegistry.acquire(file);
+        assertThat(DatabaseRegistry.acquire(file), is(sameInstance(database)));
+        assertTrue(ReloadScheduler.isWatching(database));
+
+        // picked up by the shared reload thread
+        writer("second").write(file);
+        for (int i = 0; i < 50 && database.getReloadCount() == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertThat(database.getReloadCount(), is(1L));
+        long reloadThreads = Thread.getAllStackTraces().keySet().stream()
+            .filter(thread -> thread.getName().equals("mmdb-reload")).count();
+        assertThat(reloadThreads, is(1L));
+
+        DatabaseReader reader = database.getReader();
+        DatabaseRegistry.release(database);
+        assertTrue(ReloadScheduler.isWatching(database));
+        DatabaseRegistry.release(database);
+        assertFalse(ReloadScheduler.isWatching(database));
+        assertTrue(reader.isClosed());
+    }
+
+    @Test
+    public void testReloadsNeverCloseAPinnedReader() throws Exception {
+        File file = temporaryFolder.newFile();
+        writer("version 0").write(file);
+        SharedDatabase database = new SharedDatabase(file, DatabaseReader.FileMode.DIRECT, false);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                byte[] address = {10, 1, 2, 3};
+                while (!done.get()) {
+                    DatabaseReader reader = database.pinReader();
+                    try {
+                        for (int i = 0; i < 100; i++) {
+                            if (reader.isClosed() || !DatabaseReader.isFound(reader.lookup(address, 4))) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (IOException ex) {
+                        failures.incrementAndGet();
+                    } finally {
+                        reader.unpin();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        List<DatabaseReader> replaced = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            replaced.add(database.getReader());
+            writer("version " + i).write(file);
+            database.reload();
+        }
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(failures.get(), is(0));
+        assertThat(database.getReloadCount(), is(20L));
+        for (DatabaseReader reader : replaced) {
+            assertTrue(reader.isClosed());
+        }
+        database.close();
+    }
+
+    @Test
+    public void testMetricsPublishAfterClose() throws Exception {
+        File file = temporaryFolder.newFile();
+        writer("first").write(file);
+        SharedDatabase database = new SharedDatabase(file, DatabaseReader.FileMode.MMAP, false);
+        FilterMetrics metrics = new FilterMetrics(NoopMetric.INSTANCE);
+        metrics.record(metrics.newBatch(), database);
+
+        writer("second").write(file);
+        database.reload();
+        assertThat(database.getReloadCount(), is(1L));
+        database.close();
+        assertNull(database.getMetadata());
+        // a batch recorded after the close publishes the reload without a build date
+        FilterMetrics.Batch batch = metrics.newBatch();
+        batch.events = 1;
+        metrics.record(batch, database);
+        assertThat(metrics.getEvents(), is(1L));
+    }
+}
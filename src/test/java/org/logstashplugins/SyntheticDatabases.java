@@ -0,0 +1,211 @@
+package org.logstashplugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic databases and source addresses for benchmarks and load tests.
+ * Databases are written with {@link MMDBWriter} and hold one /24 (IPv4) or /64
+ * (IPv6) network per record, up to a few million of them, with records of one
+ * of several {@link Shape shapes}. Every record has a {@code name}, so the same
+ * {@code fields} work whatever the shape.
+ */
+final class SyntheticDatabases {
+
+    static final String DEMO = "samples/demo.mmdb";
+    /** IPv4 networks beyond this would run into the addresses that are meant to miss */
+    static final int MAX_NETWORKS = 0xC5120000 >>> 8;
+
+    enum Shape {
+        /** like the demo database: a few strings, a number, one nested map and a short list */
+        DEMO,
+        /** a dozen top-level strings, numbers, doubles and booleans */
+        FLAT,
+        /** a chain of maps six levels deep, each with a name and a code */
+        NESTED,
+        /** lists of strings, numbers and maps */
+        LISTS;
+
+        static Shape parse(String value) {
+            for (Shape shape : values()) {
+                if (shape.name().equalsIgnoreCase(value)) {
+                    return shape;
+                }
+            }
+            throw new IllegalArgumentException("Shape must be one of demo, flat, nested or lists");
+        }
+    }
+
+    private SyntheticDatabases() {
+    }
+
+    static Map<String, Object> record(int i) {
+        return record(i, Shape.DEMO, 0);
+    }
+
+    /**
+     * @param revision above 0, marks the record as changed, for databases that replace
+     *                 one another on reload
+     */
+    static Map<String, Object> record(int i, Shape shape, int revision) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("name", "network " + i);
+        if (revision > 0) {
+            record.put("revision", (long) revision);
+        }
+        switch (shape) {
+            case DEMO:
+                Map<String, Object> country = new LinkedHashMap<>();
+                country.put("iso_code", "NZ");
+                Map<String, Object> names = new LinkedHashMap<>();
+                names.put("en", "New Zealand");
+                names.put("zh_CN", "新西兰");
+                country.put("names", names);
+                record.put("vlan_id", (long) (i % 4096));
+                record.put("campus", i % 2 == 0 ? "Head Office" : "Branch");
+                record.put("subnet", "synthetic/" + i);
+                record.put("country", country);
+                record.put("tags", Arrays.asList("internal", i % 3 == 0 ? "dmz" : "lan"));
+                break;
+            case FLAT:
+                record.put("vlan_id", (long) (i % 4096));
+                record.put("campus", i % 2 == 0 ? "Head Office" : "Branch");
+                record.put("subnet", "synthetic/" + i);
+                record.put("site_code", "SITE-" + (i % 500));
+                record.put("owner", "team-" + (i % 37));
+                record.put("cost_center", (long) (100000 + i % 900));
+                record.put("latitude", -36.8 + (i % 1000) / 1000.0);
+                record.put("longitude", 174.7 + (i % 1000) / 1000.0);
+                record.put("dmz", i % 3 == 0);
+                record.put("building", "B" + (i % 60));
+                record.put("rack", (long) (i % 48));
+                break;
+            case NESTED:
+                Map<String, Object> level = record;
+                String[] levels = {"region", "site", "building", "floor", "room", "rack"};
+                for (int depth = 0; depth < levels.length; depth++) {
+                    Map<String, Object> child = new LinkedHashMap<>();
+                    child.put("name", levels[depth] + " " + (i >>> (levels.length - depth)));
+                    child.put("code", (long) ((i >>> (levels.length - depth)) % 1000));
+                    level.put(levels[depth], child);
+                    level = child;
+                }
+                break;
+            case LISTS:
+                List<Object> tags = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    tags.add("tag-" + ((i + t) % 64));
+                }
+                record.put("tags", tags);
+                List<Object> ports = new ArrayList<>();
+                for (int p = 0; p < 16; p++) {
+                    ports.add((long) (1024 + (i * 16 + p) % 60000));
+                }
+                record.put("ports", ports);
+                List<Object> contacts = new ArrayList<>();
+                for (int c = 0; c < 4; c++) {
+                    Map<String, Object> contact = new LinkedHashMap<>();
+                    contact.put("name", "contact " + (i + c) % 1000);
+                    contact.put("role", c == 0 ? "owner" : "operator");
+                    contact.put("phones", Arrays.asList("+64 9 " + (1000000 + (i + c) % 9000000)));
+                    contacts.add(contact);
+                }
+                record.put("contacts", contacts);
+                break;
+            default:
+                throw new IllegalArgumentException(shape.toString());
+        }
+        return record;
+    }
+
+    /**
+     * Writes a database of {@code networks} records to a temporary file that is deleted on exit.
+     */
+    static File synthetic(int ipVersion, int networks) throws IOException {
+        File file = File.createTempFile("benchmark-", ".mmdb");
+        file.deleteOnExit();
+        write(file, ipVersion, networks, Shape.DEMO, 0);
+        return file;
+    }
+
+    static void write(File file, int ipVersion, int networks, Shape shape, int revision) throws IOException {
+        if (networks > MAX_NETWORKS) {
+            throw new IllegalArgumentException("At most " + MAX_NETWORKS + " networks");
+        }
+        MMDBWriter writer = new MMDBWriter(ipVersion, networks > 1 << 20 ? 32 : 28,
+            "synthetic-ipv" + ipVersion + "-" + shape.name().toLowerCase());
+        byte[] address = new byte[16];
+        for (int i = 0; i < networks; i++) {
+            int length = networkAddress(ipVersion, i, address);
+            writer.insert(Arrays.copyOf(address, length), length == 4 ? 24 : 64, record(i, shape, revision));
+        }
+        writer.write(file);
+    }
+
+    /**
+     * The base address of synthetic network {@code i}: 1.0.0.0 onwards in /24 steps for IPv4,
+     * 2001:db8::/32 carved into /64s for IPv6.
+     */
+    private static int networkAddress(int ipVersion, int i, byte[] address) {
+        Arrays.fill(address, (byte) 0);
+        if (ipVersion == 4) {
+            int base = 0x01000000 + (i << 8);
+            address[0] = (byte) (base >>> 24);
+            address[1] = (byte) (base >>> 16);
+            address[2] = (byte) (base >>> 8);
+            return 4;
+        }
+        address[0] = 0x20;
+        address[1] = 0x01;
+        address[2] = 0x0d;
+        address[3] = (byte) 0xb8;
+        address[4] = (byte) (i >>> 24);
+        address[5] = (byte) (i >>> 16);
+        address[6] = (byte) (i >>> 8);
+        address[7] = (byte) i;
+        return 16;
+    }
+
+    /**
+     * Source addresses as strings, a share {@code hitRatio} of them inside the first
+     * {@code networks} synthetic networks and the rest in ranges no network covers.
+     */
+    static List<String> addresses(int ipVersion, int networks, double hitRatio, int count, long seed) {
+        Random random = new Random(seed);
+        List<String> addresses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            boolean hit = random.nextDouble() < hitRatio;
+            int network = random.nextInt(networks);
+            int host = 1 + random.nextInt(254);
+            if (ipVersion == 4) {
+                int base = hit ? 0x01000000 + (network << 8) : 0xC6120000 + (network & 0xFFFF) * 256;
+                addresses.add((base >>> 24) + "." + ((base >>> 16) & 0xFF) + "." + ((base >>> 8) & 0xFF) + "." + host);
+            } else {
+                addresses.add(String.format("2001:%s:%x:%x::%x", hit ? "db8" : "db9",
+                    network >>> 16, network & 0xFFFF, host));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Addresses that hit the demo database, in the proportion given.
+     */
+    static List<String> demoAddresses(double hitRatio, int count, long seed) {
+        String[] hits = {"172.16.0.1", "10.64.1.255", "10.10.1.1", "10.10.1.2", "10.64.0.1"};
+        Random random = new Random(seed);
+        List<String> addresses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            addresses.add(random.nextDouble() < hitRatio
+                ? hits[random.nextInt(hits.length)]
+                : "192.168." + random.nextInt(256) + "." + random.nextInt(256));
+        }
+        return addresses;
+    }
+}